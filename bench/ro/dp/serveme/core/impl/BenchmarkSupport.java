@@ -0,0 +1,140 @@
+package ro.dp.serveme.core.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+/**
+ * Fixtures shared by the benchmarks: document roots with generated files,
+ * sockets that discard what is written to them and loopback connections.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+class BenchmarkSupport {
+
+	/**
+	 * Creates an empty temporary folder.
+	 */
+	static File createFolder(String prefix) throws IOException {
+		File folder = File.createTempFile(prefix, "");
+		if (!folder.delete() || !folder.mkdir()) {
+			throw new IOException("Cannot create the folder " + folder);
+		}
+		return folder;
+	}
+
+	/**
+	 * Creates a file filled with random bytes.
+	 */
+	static File createFile(File folder, String name, int size)
+			throws IOException {
+		File file = new File(folder, name);
+		byte[] content = new byte[size];
+		new Random(size).nextBytes(content);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	/**
+	 * Deletes a folder and everything under it.
+	 */
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Returns a socket whose output is thrown away. The socket has no
+	 * channel, so the responses are copied through the output buffer.
+	 */
+	static Socket discardingSocket() {
+		return new Socket() {
+			private OutputStream out = new OutputStream() {
+				@Override
+				public void write(int b) {
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+				}
+			};
+
+			@Override
+			public OutputStream getOutputStream() {
+				return out;
+			}
+		};
+	}
+
+	/**
+	 * A connection over the loopback interface whose server side is drained
+	 * (and the bytes thrown away) by a background thread.
+	 */
+	static class DrainedConnection implements Runnable {
+
+		private ServerSocketChannel listener;
+
+		private SocketChannel client;
+
+		private SocketChannel server;
+
+		private Thread drainer;
+
+		DrainedConnection() throws IOException {
+			listener = ServerSocketChannel.open();
+			listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+					0));
+			client = SocketChannel.open(listener.getLocalAddress());
+			server = listener.accept();
+			drainer = new Thread(this, "Drainer");
+			drainer.setDaemon(true);
+			drainer.start();
+		}
+
+		/**
+		 * Returns the writing side of the connection, backed by a blocking
+		 * channel.
+		 */
+		Socket socket() {
+			return server.socket();
+		}
+
+		public void run() {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+			try {
+				while (client.read(buffer) >= 0) {
+					buffer.clear();
+				}
+			} catch (IOException e) {
+				// the connection was closed
+			}
+		}
+
+		void close() throws IOException {
+			try {
+				server.close();
+				client.close();
+			} finally {
+				listener.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package ro.dp.serveme.core.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures {@link DirectoryListings#write} for large directories, streaming
+ * through an {@link HttpResponse} as the handler does: a page of a cached
+ * listing, and the first listing of the directory (reading, sorting and
+ * rendering).
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DirectoryListingBenchmark {
+
+	@Param({ "1000", "10000" })
+	public int entries;
+
+	@Param({ "name", "size", "modified" })
+	public String sort;
+
+	private File folder;
+
+	private String query;
+
+	private HttpRequestHandler handler;
+
+	private ResponseOutput out;
+
+	private HttpResponse response;
+
+	private DirectoryListings listings;
+
+	@Setup
+	public void setUp() throws IOException {
+		folder = BenchmarkSupport.createFolder("serveme-listing");
+		for (int idx = 0; idx < entries; idx++) {
+			BenchmarkSupport.createFile(folder, "file-" + idx + ".txt",
+					idx % 512);
+		}
+		query = "sort=" + sort;
+		handler = new HttpRequestHandler(folder.getParent());
+		out = new ResponseOutput(BenchmarkSupport.discardingSocket(), 8192);
+		response = new HttpResponse(handler, out,
+				HttpRequestHandler.DEFAULT_RESPONSE_BUFFER_SIZE);
+		listings = new DirectoryListings(
+				HttpRequestHandler.DEFAULT_LISTING_PAGE_SIZE);
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchmarkSupport.delete(folder);
+	}
+
+	@Benchmark
+	public void cachedListing() throws IOException {
+		response.reset(true, true);
+		listings.write(folder, query, response);
+	}
+
+	@Benchmark
+	public void firstListing() throws IOException {
+		response.reset(true, true);
+		new DirectoryListings(HttpRequestHandler.DEFAULT_LISTING_PAGE_SIZE)
+				.write(folder, query, response);
+	}
+}
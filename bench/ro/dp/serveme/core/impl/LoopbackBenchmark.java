@@ -0,0 +1,198 @@
+package ro.dp.serveme.core.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures the full {@link HttpRequestHandler#handle(Socket)} path over the
+ * loopback interface: a client sends requests over a persistent connection
+ * and reads the responses, which the handler serves from a thread of its
+ * own as it does behind {@link ConnectorImpl}.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LoopbackBenchmark {
+
+	/**
+	 * The server: a document root, a handler and a listening socket.
+	 */
+	@State(Scope.Benchmark)
+	public static class Server implements Runnable {
+
+		@Param({ "1024", "65536", "1048576" })
+		public int size;
+
+		@Param({ "true", "false" })
+		public boolean cached;
+
+		private File folder;
+
+		private HttpRequestHandler handler;
+
+		private ServerSocket listener;
+
+		private ExecutorService workers = Executors.newCachedThreadPool();
+
+		@Setup
+		public void setUp() throws IOException {
+			folder = BenchmarkSupport.createFolder("serveme-loopback");
+			BenchmarkSupport.createFile(folder, "file.bin", size);
+			handler = new HttpRequestHandler(folder.getPath());
+			handler.setMaxKeepAliveRequests(Integer.MAX_VALUE);
+			if (cached) {
+				handler.setResponseCache(new ResponseCache(64 * 1024 * 1024,
+						16 * 1024 * 1024));
+			}
+			// the accepted sockets have channels, as behind ConnectorImpl
+			listener = ServerSocketChannel.open().socket();
+			listener.bind(new InetSocketAddress(
+					InetAddress.getLoopbackAddress(), 0));
+			Thread acceptor = new Thread(this, "Acceptor");
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					final Socket connection = listener.accept();
+					connection.setTcpNoDelay(true);
+					workers.execute(new Runnable() {
+						public void run() {
+							try {
+								handler.handle(connection);
+							} catch (Exception e) {
+								// the client went away
+							}
+						}
+					});
+				}
+			} catch (IOException e) {
+				// the listener was closed
+			}
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			listener.close();
+			workers.shutdownNow();
+			BenchmarkSupport.delete(folder);
+		}
+	}
+
+	/**
+	 * A client, with its own persistent connection.
+	 */
+	@State(Scope.Thread)
+	public static class Client {
+
+		private Socket socket;
+
+		private InputStream in;
+
+		private OutputStream out;
+
+		private byte[] request = ResponseHeaders
+				.bytes("GET /file.bin HTTP/1.1\r\nHost: localhost\r\n\r\n");
+
+		private byte[] buffer = new byte[64 * 1024];
+
+		@Setup
+		public void setUp(Server server) throws IOException {
+			socket = new Socket(InetAddress.getLoopbackAddress(),
+					server.listener.getLocalPort());
+			socket.setTcpNoDelay(true);
+			in = socket.getInputStream();
+			out = socket.getOutputStream();
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			socket.close();
+		}
+
+		/**
+		 * Sends the request and reads the whole response.
+		 *
+		 * @return the length of the response body
+		 */
+		long exchange() throws IOException {
+			out.write(request);
+			// reading the header
+			int count = 0;
+			int end = -1;
+			while (end == -1) {
+				int read = in.read(buffer, count, buffer.length - count);
+				if (read < 0) {
+					throw new IOException("Connection closed");
+				}
+				count += read;
+				end = headerEnd(count);
+			}
+			long length = contentLength(end);
+			// reading the rest of the body
+			long remaining = length - (count - end);
+			while (remaining > 0) {
+				int read = in.read(buffer, 0,
+						(int) Math.min(buffer.length, remaining));
+				if (read < 0) {
+					throw new IOException("Connection closed");
+				}
+				remaining -= read;
+			}
+			return length;
+		}
+
+		/**
+		 * Returns the position after the empty line ending the header, or -1.
+		 */
+		private int headerEnd(int count) {
+			for (int idx = 3; idx < count; idx++) {
+				if (buffer[idx] == '\n' && buffer[idx - 1] == '\r'
+						&& buffer[idx - 2] == '\n' && buffer[idx - 3] == '\r') {
+					return idx + 1;
+				}
+			}
+			return -1;
+		}
+
+		private long contentLength(int end) throws IOException {
+			String header = new String(buffer, 0, end,
+					ResponseOutput.HEADER_CHARSET);
+			int start = header.indexOf("Content-Length: ");
+			if (start == -1) {
+				throw new IOException("No Content-Length in " + header);
+			}
+			start += "Content-Length: ".length();
+			return Long.parseLong(header.substring(start,
+					header.indexOf('\r', start)));
+		}
+	}
+
+	@Benchmark
+	public long get(Client client) throws IOException {
+		return client.exchange();
+	}
+}
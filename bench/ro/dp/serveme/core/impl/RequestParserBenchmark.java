@@ -0,0 +1,74 @@
+package ro.dp.serveme.core.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the parsing of a request head by {@link HttpRequestParser}: a
+ * bare request line, and a request with the headers a browser sends.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RequestParserBenchmark {
+
+	private static String MINIMAL = "GET /index.html HTTP/1.1\r\n\r\n";
+
+	private static String BROWSER = "GET /docs/guide/index.html?lang=en HTTP/1.1\r\n"
+			+ "Host: www.example.com\r\n"
+			+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n"
+			+ "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+			+ "Accept-Language: en-US,en;q=0.5\r\n"
+			+ "Accept-Encoding: gzip, deflate, br\r\n"
+			+ "Referer: http://www.example.com/docs/\r\n"
+			+ "Connection: keep-alive\r\n"
+			+ "Cookie: session=0123456789abcdef; theme=dark\r\n"
+			+ "If-Modified-Since: Sat, 29 Oct 2022 19:43:31 GMT\r\n"
+			+ "If-None-Match: \"18a2b3c4d5-23f\"\r\n"
+			+ "Cache-Control: max-age=0\r\n\r\n";
+
+	@Param({ "minimal", "browser" })
+	public String request;
+
+	private ByteArrayInputStream in;
+
+	private HttpRequestParser parser = new HttpRequestParser();
+
+	@Setup
+	public void setUp() {
+		in = new ByteArrayInputStream(ResponseHeaders
+				.bytes("minimal".equals(request) ? MINIMAL : BROWSER));
+	}
+
+	@Benchmark
+	public HttpRequest parse() throws IOException {
+		in.reset();
+		parser.reset(in);
+		return parser.next();
+	}
+
+	/**
+	 * Parses the request and reads the values the handler asks for.
+	 */
+	@Benchmark
+	public boolean parseAndInspect() throws IOException {
+		in.reset();
+		parser.reset(in);
+		HttpRequest parsed = parser.next();
+		return parsed.isMethod("GET") && parsed.isKeepAlive()
+				&& parsed.acceptsEncoding("gzip")
+				&& parsed.getPath().length() > 0;
+	}
+}
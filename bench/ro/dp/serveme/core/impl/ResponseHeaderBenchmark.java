@@ -0,0 +1,63 @@
+package ro.dp.serveme.core.impl;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ro.dp.serveme.core.utils.HttpResponseCodes;
+
+/**
+ * Measures the serialization of a response header into the output buffer of
+ * a connection, as the handler sends it: {@link ResponseHeaders#write}
+ * followed by the serialized <code>Connection</code> header of
+ * {@link HttpRequestHandler#endOfHeader}.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ResponseHeaderBenchmark {
+
+	@Param({ "text/html", "application/pdf" })
+	public String contentType;
+
+	@Param({ "true", "false" })
+	public boolean keepAlive;
+
+	private HttpRequestHandler handler;
+
+	private ResponseOutput out;
+
+	private long length = 0;
+
+	@Setup
+	public void setUp() throws IOException {
+		handler = new HttpRequestHandler(".");
+		out = new ResponseOutput(BenchmarkSupport.discardingSocket(), 8192);
+	}
+
+	@Benchmark
+	public void write() throws IOException {
+		// a different length every time, as for different files
+		length = (length + 7919) & 0xffffff;
+		ResponseHeaders.write(out, HttpResponseCodes.HTTP_OK, contentType,
+				length);
+		out.write(handler.endOfHeader(keepAlive));
+	}
+
+	@Benchmark
+	public byte[] serialize() {
+		length = (length + 7919) & 0xffffff;
+		return ResponseHeaders.serialize(HttpResponseCodes.HTTP_OK,
+				contentType, length);
+	}
+}
@@ -0,0 +1,70 @@
+package ro.dp.serveme.core.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures {@link HttpRequestHandler#sendStream} at several file sizes,
+ * writing to a loopback connection (with {@link java.nio.channels.FileChannel#transferTo})
+ * and to a socket without a channel (through the output buffer).
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SendStreamBenchmark {
+
+	@Param({ "4096", "65536", "1048576", "16777216" })
+	public int size;
+
+	@Param({ "channel", "stream" })
+	public String output;
+
+	private File folder;
+
+	private File file;
+
+	private HttpRequestHandler handler;
+
+	private BenchmarkSupport.DrainedConnection connection;
+
+	private ResponseOutput out;
+
+	@Setup
+	public void setUp() throws IOException {
+		folder = BenchmarkSupport.createFolder("serveme-stream");
+		file = BenchmarkSupport.createFile(folder, "file.bin", size);
+		handler = new HttpRequestHandler(folder.getPath());
+		if ("channel".equals(output)) {
+			connection = new BenchmarkSupport.DrainedConnection();
+			out = new ResponseOutput(connection.socket(), 8192);
+		} else {
+			out = new ResponseOutput(BenchmarkSupport.discardingSocket(), 8192);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		if (connection != null) {
+			connection.close();
+		}
+		BenchmarkSupport.delete(folder);
+	}
+
+	@Benchmark
+	public void sendStream() throws IOException {
+		handler.sendStream(out, file, size);
+	}
+}
@@ -7,10 +7,10 @@ REM *************************************************************************
 if "" == "%JAVA_HOME%" goto noJavaHome
 if not exist %JAVA_HOME%/bin/java.exe goto noJavaExe
 
-%JAVA_HOME%\bin\java.exe -cp .\lib\log4j-1.2.17.jar;.\bin\ServeMe.jar;.\bin ro.dp.serveme.ServeMe %1 %2
+%JAVA_HOME%\bin\java.exe %SERVEME_OPTS% -cp .\lib\log4j-1.2.17.jar;.\bin\ServeMe.jar;.\bin ro.dp.serveme.ServeMe %1 %2
 goto end
 :noJavaHome
-echo "The JAVA_HOME environment variable is not set. Please set it so it points to a valid JRE / JDK (i.e. 1.5 or greater)
+echo "The JAVA_HOME environment variable is not set. Please set it so it points to a valid JRE / JDK (i.e. 7 or greater)
 exit /b
 
 :noJavaExe
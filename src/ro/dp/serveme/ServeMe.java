@@ -1,15 +1,28 @@
 package ro.dp.serveme;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.BindException;
+import java.nio.channels.Channel;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 
-import ro.dp.serveme.core.Handler;
 import ro.dp.serveme.core.Connector;
-import ro.dp.serveme.core.Server;
 import ro.dp.serveme.core.impl.HttpRequestHandler;
+import ro.dp.serveme.core.impl.MappedFileRegistry;
+import ro.dp.serveme.core.impl.ResponseCache;
 import ro.dp.serveme.core.impl.ConnectorImpl;
+import ro.dp.serveme.core.impl.DocumentIndex;
+import ro.dp.serveme.core.impl.DirectoryListings;
+import ro.dp.serveme.core.impl.SelectorConnectorImpl;
 import ro.dp.serveme.core.impl.ServerImpl;
+import ro.dp.serveme.core.utils.AccessLog;
+import ro.dp.serveme.core.utils.DocumentRootWatcher;
+import ro.dp.serveme.core.utils.ExecutionMode;
+import ro.dp.serveme.core.utils.PidFile;
 
 /**
  * The main class of the ServeMe(tm) web server.<br>
@@ -24,50 +37,553 @@ public class ServeMe {
 
 	private static Logger log = Logger.getLogger(ServeMe.class);
 
+	/**
+	 * System property selecting the connector implementation:
+	 * <code>blocking</code> (default) for {@link ConnectorImpl} or
+	 * <code>nio</code> for {@link SelectorConnectorImpl}.
+	 */
+	public static final String CONNECTOR_PROPERTY = "serveme.connector";
+
+	/**
+	 * System property selecting how the server runs the connections:
+	 * <code>pooled</code> (default) or <code>virtual</code>, see
+	 * {@link ExecutionMode}.
+	 */
+	public static final String EXECUTOR_PROPERTY = "serveme.executor";
+
+	/**
+	 * System properties holding the bounds of the thread pool: the initial
+	 * (and smallest) number of threads, the maximum number of threads and
+	 * the size of the queue.
+	 */
+	public static final String POOL_MIN_THREADS_PROPERTY = "serveme.pool.minThreads";
+	public static final String POOL_MAX_THREADS_PROPERTY = "serveme.pool.maxThreads";
+	public static final String POOL_QUEUE_SIZE_PROPERTY = "serveme.pool.queueSize";
+
+	/**
+	 * System property holding the number of connections in flight at which
+	 * the server stops accepting new ones.
+	 */
+	public static final String HIGH_WATER_MARK_PROPERTY = "serveme.highWaterMark";
+
+	/**
+	 * System property holding the number of seconds a persistent connection
+	 * may stay idle between requests.
+	 */
+	public static final String KEEP_ALIVE_TIMEOUT_PROPERTY = "serveme.keepAlive.timeout";
+
+	/**
+	 * System property holding the number of seconds a response may make no
+	 * progress (the client not reading it) before the connection is closed.
+	 */
+	public static final String STALL_TIMEOUT_PROPERTY = "serveme.stallTimeout";
+
+	/**
+	 * System property holding the number of seconds a client may take to
+	 * send a whole request head.
+	 */
+	public static final String HEADER_TIMEOUT_PROPERTY = "serveme.headerTimeout";
+
+	/**
+	 * System property holding the lowest rate (in bytes per second) at which
+	 * a response may be written, 0 for no limit.
+	 */
+	public static final String MIN_WRITE_RATE_PROPERTY = "serveme.minWriteRate";
+
+	/**
+	 * System property holding the maximum number of connections open from the
+	 * same address, 0 for no limit.
+	 */
+	public static final String MAX_CONNECTIONS_PER_IP_PROPERTY = "serveme.maxConnectionsPerIp";
+
+	/**
+	 * System property holding the maximum number of requests served over a
+	 * persistent connection.
+	 */
+	public static final String KEEP_ALIVE_MAX_REQUESTS_PROPERTY = "serveme.keepAlive.maxRequests";
+
+	/**
+	 * System property holding the size (in kilobytes) of the static response
+	 * cache. 0 disables the cache.
+	 */
+	public static final String CACHE_SIZE_PROPERTY = "serveme.cache.size";
+
+	/**
+	 * System property holding the size (in kilobytes) of the largest response
+	 * stored in the cache.
+	 */
+	public static final String CACHE_MAX_ENTRY_SIZE_PROPERTY = "serveme.cache.maxEntrySize";
+
+	/**
+	 * System property holding the size (in kilobytes) from which files are
+	 * served from shared memory mappings. 0 (the default) disables the
+	 * memory-mapped serving mode.
+	 */
+	public static final String MMAP_THRESHOLD_PROPERTY = "serveme.mmap.threshold";
+
+	/**
+	 * System property holding the number of megabytes kept mapped by the
+	 * memory-mapped serving mode.
+	 */
+	public static final String MMAP_SIZE_PROPERTY = "serveme.mmap.size";
+
+	/**
+	 * System property holding the size (in kilobytes) of the cache of the
+	 * compressed variants of the text files. 0 disables compression.
+	 */
+	public static final String GZIP_CACHE_SIZE_PROPERTY = "serveme.gzip.cacheSize";
+
+	/**
+	 * System property holding the length (in bytes) under which files are
+	 * not compressed.
+	 */
+	public static final String GZIP_MIN_LENGTH_PROPERTY = "serveme.gzip.minLength";
+
+	/**
+	 * System property holding the largest number of files and folders of the
+	 * document root that are indexed in memory, 0 to look the files up on
+	 * disk.
+	 */
+	public static final String INDEX_MAX_ENTRIES_PROPERTY = "serveme.index.maxEntries";
+
+	/**
+	 * System property holding the number of entries per page of the
+	 * directory listings.
+	 */
+	public static final String LISTING_PAGE_SIZE_PROPERTY = "serveme.listing.pageSize";
+
+	/**
+	 * System property holding the size (in bytes) of the buffer of the
+	 * streamed response bodies.
+	 */
+	public static final String RESPONSE_BUFFER_SIZE_PROPERTY = "serveme.responseBufferSize";
+
+	/**
+	 * System property holding the number of acceptors per binding: the
+	 * listeners of the blocking connector or the event loops of the
+	 * <code>nio</code> connector.
+	 */
+	public static final String ACCEPTORS_PROPERTY = "serveme.acceptors";
+
+	/**
+	 * System property holding the length of the queue of pending connections
+	 * of the listening sockets.
+	 */
+	public static final String BACKLOG_PROPERTY = "serveme.backlog";
+
+	/**
+	 * System property selecting whether the acceptors get listening sockets
+	 * of their own, bound with <code>SO_REUSEPORT</code> where it is
+	 * supported (<code>false</code> by default, as another process could then
+	 * bind the same address without an error).
+	 */
+	public static final String REUSE_PORT_PROPERTY = "serveme.reusePort";
+
+	/**
+	 * System property holding the number of seconds the requests in flight
+	 * are given to complete when the server stops.
+	 */
+	public static final String DRAIN_TIMEOUT_PROPERTY = "serveme.drainTimeout";
+
+	/**
+	 * System property holding the path of the file where the server writes
+	 * its process id. When it is set, the listening sockets are bound so
+	 * that the next server process can take them over.
+	 */
+	public static final String PID_FILE_PROPERTY = "serveme.pidFile";
+
+	/**
+	 * System property selecting whether the server takes over the addresses
+	 * of the process named in the pid file: it listens beside it, then asks
+	 * it to stop.
+	 */
+	public static final String TAKEOVER_PROPERTY = "serveme.takeover";
+
+	/**
+	 * System property selecting whether the first binding accepts on the
+	 * listening socket inherited from the process that started the server
+	 * (e.g. systemd or inetd), instead of binding one.
+	 */
+	public static final String INHERIT_CHANNEL_PROPERTY = "serveme.inheritChannel";
+
+	/**
+	 * System property selecting whether the clients may switch to HTTP/2 over
+	 * cleartext connections (h2c). Enabled by default.
+	 */
+	public static final String HTTP2_PROPERTY = "serveme.http2";
+
+	/**
+	 * System property holding the number of streams served at the same time
+	 * over an HTTP/2 connection.
+	 */
+	public static final String HTTP2_MAX_CONCURRENT_STREAMS_PROPERTY = "serveme.http2.maxConcurrentStreams";
+
+	/**
+	 * System property holding the path of the status page, which renders the
+	 * metrics of the server. An empty value disables the page.
+	 */
+	public static final String STATUS_PATH_PROPERTY = "serveme.status.path";
+
+	/**
+	 * System property holding the path of the access log file. The access log
+	 * is disabled if the property is not set.
+	 */
+	public static final String ACCESS_LOG_FILE_PROPERTY = "serveme.accessLog.file";
+
+	/**
+	 * System property holding the number of entries buffered for the access
+	 * log before new entries are dropped.
+	 */
+	public static final String ACCESS_LOG_BUFFER_SIZE_PROPERTY = "serveme.accessLog.bufferSize";
+
+	/**
+	 * System property holding the size (in MB) at which the access log is
+	 * rotated.
+	 */
+	public static final String ACCESS_LOG_MAX_FILE_SIZE_PROPERTY = "serveme.accessLog.maxFileSize";
+
+	/**
+	 * System property holding the number of rotated access log files kept.
+	 */
+	public static final String ACCESS_LOG_MAX_BACKUPS_PROPERTY = "serveme.accessLog.maxBackups";
+
 	public static void main(String[] args) {
 		// some defaults
 		int port = 80;
 		String host = "localhost";
 		String docroot = "wwwroot";
+		// the hosts and ports to which this server is bound
+		List<String> hosts = new ArrayList<String>();
+		List<Integer> ports = new ArrayList<Integer>();
 		// parsing the arguments to determine the host and the port to which
-		// this server is bound to
+		// this server is bound to (several bindings are separated by commas)
 		// if no arguments were supplied then the defaults apply.
 		if (args.length > 0 && args[0].indexOf(':') != -1) {
-			String[] hp = args[0].split(":");
-			host = hp[0];
-			try {
-				port = Integer.valueOf(hp[1]);
-			} catch (NumberFormatException e) {
-				log.error(e.getMessage());
-				log.debug("Using default port number (" + port + ")");
+			for (String binding : args[0].split(",")) {
+				String[] hp = binding.trim().split(":");
+				int bindingPort = port;
+				try {
+					bindingPort = Integer.valueOf(hp[1]);
+				} catch (RuntimeException e) {
+					log.error("Invalid binding '" + binding + "' ("
+							+ e.getMessage() + ")");
+					log.debug("Using default port number (" + port + ")");
+				}
+				hosts.add(hp[0]);
+				ports.add(bindingPort);
 			}
 			if (args.length > 1) {
 				docroot = args[1];
 			}
 		} else {
+			hosts.add(host);
+			ports.add(port);
 			log.warn("No arguments set, using defaults (Host: " + host + "; Port: " + port + "; Document root: " + docroot + ").");
 		}
 		log.info("ServeMe v1.0 starting...");
-		Server theServer = new ServerImpl();
+		ServerImpl theServer = new ServerImpl(executionMode(), intProperty(
+				POOL_MIN_THREADS_PROPERTY, ServerImpl.CORE_POOL_SIZE),
+				intProperty(POOL_MAX_THREADS_PROPERTY,
+						ServerImpl.MAXIMUM_POOL_SIZE), intProperty(
+						POOL_QUEUE_SIZE_PROPERTY, ServerImpl.QUEUE_SIZE));
+		int highWaterMark = intProperty(HIGH_WATER_MARK_PROPERTY, 0);
+		if (highWaterMark > 0) {
+			theServer.setHighWaterMark(highWaterMark);
+		}
+		theServer.getConnections().setIdleTimeout(keepAliveTimeout());
+		theServer.getConnections().setStallTimeout(
+				intProperty(STALL_TIMEOUT_PROPERTY, 60) * 1000);
+		theServer.getConnections().setHeaderTimeout(
+				intProperty(HEADER_TIMEOUT_PROPERTY, 10) * 1000);
+		theServer.getConnections().setMinWriteRate(
+				intProperty(MIN_WRITE_RATE_PROPERTY, 256));
+		theServer.getConnections().setMaxConnectionsPerAddress(
+				intProperty(MAX_CONNECTIONS_PER_IP_PROPERTY, 0));
+		theServer.setDrainTimeout(intProperty(DRAIN_TIMEOUT_PROPERTY, 30) * 1000L);
+		String pidFileName = System.getProperty(PID_FILE_PROPERTY);
+		PidFile pidFile = pidFileName != null && pidFileName.length() > 0 ? new PidFile(
+				new File(pidFileName)) : null;
+		boolean takeover = Boolean.parseBoolean(System.getProperty(
+				TAKEOVER_PROPERTY, "false"));
+		if (takeover && pidFile == null) {
+			log.warn(TAKEOVER_PROPERTY + " needs " + PID_FILE_PROPERTY
+					+ ", nothing to take over");
+		}
 		try {
-			log.debug("Creating connector...");
-			// creating the connector
-			Connector connector = new ConnectorImpl(port, host);
-			theServer.addConnector(connector);
+			log.debug("Creating connectors...");
+			ServerSocketChannel inherited = Boolean.parseBoolean(System
+					.getProperty(INHERIT_CHANNEL_PROPERTY, "false")) ? inheritedChannel()
+					: null;
+			// creating a connector per binding
+			for (int idx = 0; idx < hosts.size(); idx++) {
+				theServer.addConnector(createConnector(ports.get(idx),
+						hosts.get(idx), pidFile != null, idx == 0 ? inherited
+								: null));
+			}
 			log.debug("Creating the request handler");
 
 			// creating the request handler
-			Handler httpHandler = new HttpRequestHandler(docroot);
+			HttpRequestHandler httpHandler = new HttpRequestHandler(docroot);
+			httpHandler.setKeepAliveTimeout(keepAliveTimeout());
+			httpHandler.setMaxKeepAliveRequests(intProperty(
+					KEEP_ALIVE_MAX_REQUESTS_PROPERTY, 100));
+			DirectoryListings listings = new DirectoryListings(intProperty(
+					LISTING_PAGE_SIZE_PROPERTY,
+					HttpRequestHandler.DEFAULT_LISTING_PAGE_SIZE));
+			httpHandler.setDirectoryListings(listings);
+			httpHandler.setResponseBufferSize(intProperty(
+					RESPONSE_BUFFER_SIZE_PROPERTY,
+					HttpRequestHandler.DEFAULT_RESPONSE_BUFFER_SIZE));
+			httpHandler.setMetrics(theServer.getMetrics());
+			httpHandler.setConnections(theServer.getConnections());
+			httpHandler.setServer(theServer);
+			httpHandler.setHttp2Enabled(Boolean.parseBoolean(System
+					.getProperty(HTTP2_PROPERTY, "true")));
+			httpHandler.setMaxConcurrentStreams(intProperty(
+					HTTP2_MAX_CONCURRENT_STREAMS_PROPERTY, 100));
+			httpHandler.setStatusPath(System.getProperty(STATUS_PATH_PROPERTY,
+					"/server-status"));
+			String accessLogFile = System.getProperty(ACCESS_LOG_FILE_PROPERTY);
+			if (accessLogFile != null && accessLogFile.length() > 0) {
+				final AccessLog accessLog = new AccessLog(new File(
+						accessLogFile), intProperty(
+						ACCESS_LOG_BUFFER_SIZE_PROPERTY, 8192), intProperty(
+						ACCESS_LOG_MAX_FILE_SIZE_PROPERTY, 100) * 1024L * 1024L,
+						intProperty(ACCESS_LOG_MAX_BACKUPS_PROPERTY, 10));
+				try {
+					accessLog.start();
+					httpHandler.setAccessLog(accessLog);
+					theServer.getMetrics().setAccessLog(accessLog);
+					// writing the buffered entries on exit
+					Runtime.getRuntime().addShutdownHook(new Thread() {
+						@Override
+						public void run() {
+							accessLog.stop();
+						}
+					});
+				} catch (IOException e) {
+					log.warn("Cannot open the access log " + accessLogFile
+							+ ", requests are not logged (" + e.getMessage()
+							+ ")");
+				}
+			}
+
+			// watching the document root for the in-memory copies of its
+			// content
+			DocumentRootWatcher watcher = new DocumentRootWatcher(docroot);
+			watcher.addListener(listings);
+			int indexMaxEntries = intProperty(INDEX_MAX_ENTRIES_PROPERTY,
+					1000000);
+			if (indexMaxEntries > 0) {
+				try {
+					DocumentIndex index = new DocumentIndex(docroot,
+							indexMaxEntries);
+					watcher.addListener(index);
+					httpHandler.setDocumentIndex(index);
+				} catch (IOException e) {
+					log.warn("Cannot index the document root, files are looked up on disk ("
+							+ e.getMessage() + ")");
+				}
+			}
+			int cacheSize = intProperty(CACHE_SIZE_PROPERTY, 16384);
+			if (cacheSize > 0) {
+				ResponseCache cache = new ResponseCache(cacheSize * 1024L,
+						intProperty(CACHE_MAX_ENTRY_SIZE_PROPERTY, 1024) * 1024L);
+				watcher.addListener(cache);
+				httpHandler.setResponseCache(cache);
+			}
+			int mmapThreshold = intProperty(MMAP_THRESHOLD_PROPERTY, 0);
+			if (mmapThreshold > 0) {
+				MappedFileRegistry mappedFiles = new MappedFileRegistry(
+						mmapThreshold * 1024L, intProperty(MMAP_SIZE_PROPERTY,
+								1024) * 1024L * 1024L);
+				watcher.addListener(mappedFiles);
+				httpHandler.setMappedFileRegistry(mappedFiles);
+			}
+			int gzipCacheSize = intProperty(GZIP_CACHE_SIZE_PROPERTY, 4096);
+			if (gzipCacheSize > 0) {
+				ResponseCache compressedCache = new ResponseCache(
+						gzipCacheSize * 1024L, intProperty(
+								CACHE_MAX_ENTRY_SIZE_PROPERTY, 1024) * 1024L);
+				watcher.addListener(compressedCache);
+				httpHandler.setCompressedCache(compressedCache);
+				httpHandler.setCompressionMinLength(intProperty(
+						GZIP_MIN_LENGTH_PROPERTY, 1024));
+			}
+			try {
+				watcher.start();
+			} catch (IOException e) {
+				log.warn("Cannot watch the document root, caching and indexing are disabled ("
+						+ e.getMessage() + ")");
+				httpHandler.setDocumentIndex(null);
+				httpHandler.setResponseCache(null);
+				httpHandler.setMappedFileRegistry(null);
+				httpHandler.setCompressedCache(null);
+			}
 			theServer.setHandler(httpHandler);
 
 			// starting server
+			long previous = pidFile != null && takeover ? pidFile.read() : -1;
 			theServer.start();
+			if (pidFile != null) {
+				writePidFile(pidFile, previous);
+			}
 		} catch (BindException e) {
-			log.error("Error opening a connection on port " + port + ". Maybe some other process is using it?");
+			log.error("Error opening a connection on " + e.getMessage() + ". Maybe some other process is using it?");
 			log.debug(e.getMessage(), e);
 		} catch (Exception e) {
 			log.error("An error has occured. See the log file for details.");
 			log.debug(e.getMessage(), e);
 		}
 	}
+
+	/**
+	 * Writes the pid file once the server accepts connections, and asks the
+	 * process it replaces to stop. That process drains its connections while
+	 * the new connections already go to this one.
+	 * 
+	 * @param pidFile
+	 *            the pid file
+	 * @param previous
+	 *            the id of the process taken over, -1 if none
+	 */
+	private static void writePidFile(final PidFile pidFile, long previous) {
+		try {
+			pidFile.write();
+		} catch (IOException e) {
+			log.warn("Cannot write the pid file (" + e.getMessage() + ")");
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				pidFile.delete();
+			}
+		});
+		if (previous > 0 && previous != PidFile.currentPid()) {
+			if (PidFile.terminate(previous)) {
+				log.info("Took over from process " + previous);
+			} else {
+				log.warn("Cannot stop process " + previous
+						+ ", it may not be running any more");
+			}
+		}
+	}
+
+	/**
+	 * Returns the listening socket inherited from the process that started
+	 * the server.
+	 * 
+	 * @return the socket, or <code>null</code> if the server did not inherit
+	 *         one
+	 */
+	private static ServerSocketChannel inheritedChannel() {
+		try {
+			Channel channel = System.inheritedChannel();
+			if (channel instanceof ServerSocketChannel) {
+				log.info("Accepting on the inherited socket "
+						+ ((ServerSocketChannel) channel).socket()
+								.getLocalSocketAddress());
+				return (ServerSocketChannel) channel;
+			}
+			log.warn("No listening socket was inherited, binding one");
+		} catch (IOException e) {
+			log.warn("Cannot get the inherited socket, binding one ("
+					+ e.getMessage() + ")");
+		}
+		return null;
+	}
+
+	/**
+	 * Creates the connector selected by the {@link #CONNECTOR_PROPERTY}
+	 * system property.
+	 * 
+	 * @param port
+	 *            the port of the binding
+	 * @param host
+	 *            the host of the binding
+	 * @param handover
+	 *            whether the listening sockets are bound so that another
+	 *            process can take them over
+	 * @param inherited
+	 *            the listening socket inherited for the binding, or
+	 *            <code>null</code>
+	 */
+	private static Connector createConnector(int port, String host,
+			boolean handover, ServerSocketChannel inherited) {
+		String type = System.getProperty(CONNECTOR_PROPERTY, "blocking");
+		int acceptors = intProperty(ACCEPTORS_PROPERTY, 0);
+		int backlog = intProperty(BACKLOG_PROPERTY, 1024);
+		boolean reusePort = Boolean.parseBoolean(System.getProperty(
+				REUSE_PORT_PROPERTY, "false"));
+		if ("nio".equalsIgnoreCase(type)) {
+			log.debug("Using the selector connector");
+			SelectorConnectorImpl connector = acceptors > 0 ? new SelectorConnectorImpl(
+					port, host, acceptors) : new SelectorConnectorImpl(port,
+					host);
+			connector.setBacklog(backlog);
+			connector.setReusePort(reusePort);
+			connector.setHandover(handover);
+			connector.setServerChannel(inherited);
+			return connector;
+		}
+		if (!"blocking".equalsIgnoreCase(type)) {
+			log.warn("Unknown connector type '" + type
+					+ "', using the blocking connector");
+		}
+		ConnectorImpl connector = new ConnectorImpl(port, host);
+		if (acceptors > 0) {
+			connector.setListenerCount(acceptors);
+		}
+		connector.setBacklog(backlog);
+		connector.setReusePort(reusePort);
+		connector.setHandover(handover);
+		connector.setServerChannel(inherited);
+		return connector;
+	}
+
+	/**
+	 * Returns the execution mode selected by the {@link #EXECUTOR_PROPERTY}
+	 * system property.
+	 */
+	private static ExecutionMode executionMode() {
+		String name = System.getProperty(EXECUTOR_PROPERTY,
+				ExecutionMode.POOLED.getName());
+		ExecutionMode mode = ExecutionMode.forName(name);
+		if (mode == null) {
+			log.warn("Unknown executor type '" + name
+					+ "', using the thread pool");
+			mode = ExecutionMode.POOLED;
+		}
+		return mode;
+	}
+
+	/**
+	 * Returns the keep-alive timeout (in milliseconds) configured by the
+	 * {@link #KEEP_ALIVE_TIMEOUT_PROPERTY} system property.
+	 */
+	private static int keepAliveTimeout() {
+		return intProperty(KEEP_ALIVE_TIMEOUT_PROPERTY, 15) * 1000;
+	}
+
+	/**
+	 * Reads an integer system property.
+	 * 
+	 * @param name
+	 *            the name of the property
+	 * @param defaultValue
+	 *            the value used if the property is missing or invalid
+	 */
+	private static int intProperty(String name, int defaultValue) {
+		String value = System.getProperty(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			log.warn("Invalid value for " + name + " (" + value
+					+ "), using the default (" + defaultValue + ")");
+			return defaultValue;
+		}
+	}
 }
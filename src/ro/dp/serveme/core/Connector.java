@@ -29,6 +29,15 @@ public interface Connector {
 	 */
 	public void setServer(Server server);
 
+	/**
+	 * Stops accepting connections: closes the listening sockets, so that new
+	 * clients are refused (or taken by another process listening on the same
+	 * port), while the connections already accepted are still served.
+	 * 
+	 * @throws Exception
+	 */
+	public void stopAccepting() throws Exception;
+
 	/**
 	 * Stops this connector and closes all the opened connections.
 	 * 
@@ -0,0 +1,20 @@
+package ro.dp.serveme.core;
+
+/**
+ * An endpoint that answers the requests routed to it.<br>
+ * Endpoints are registered on a path, or on a path prefix, with the
+ * {@link Handler} that parses the requests. They are shared by all the
+ * worker threads.
+ * 
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+public interface Endpoint {
+
+	/**
+	 * Answers a request.
+	 * @param request - the parsed {@link Request}
+	 * @param response - the {@link Response} to send
+	 * @throws Exception
+	 */
+	public void handle(Request request, Response response) throws Exception;
+}
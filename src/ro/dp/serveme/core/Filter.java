@@ -0,0 +1,24 @@
+package ro.dp.serveme.core;
+
+/**
+ * A filter, run on every request before the {@link Endpoint} it is routed
+ * to.<br>
+ * The filters form an ordered chain: a filter either passes the request on
+ * with {@link FilterChain#proceed(Request, Response)} or answers it itself
+ * (e.g. to refuse it), in which case the rest of the chain and the endpoint
+ * do not run.
+ * 
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+public interface Filter {
+
+	/**
+	 * Filters a request.
+	 * @param request - the parsed {@link Request}
+	 * @param response - the {@link Response} to send
+	 * @param chain - the rest of the chain, ending with the endpoint
+	 * @throws Exception
+	 */
+	public void filter(Request request, Response response, FilterChain chain)
+			throws Exception;
+}
@@ -0,0 +1,19 @@
+package ro.dp.serveme.core;
+
+/**
+ * The filters left to run on a request, followed by the {@link Endpoint}
+ * the request is routed to.
+ * 
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+public interface FilterChain {
+
+	/**
+	 * Runs the next filter of the chain, or the endpoint after the last
+	 * filter.
+	 * @param request - the {@link Request}
+	 * @param response - the {@link Response}
+	 * @throws Exception
+	 */
+	public void proceed(Request request, Response response) throws Exception;
+}
@@ -0,0 +1,46 @@
+package ro.dp.serveme.core;
+
+/**
+ * A parsed HTTP request, as seen by the {@link Endpoint}s and the
+ * {@link Filter}s.<br>
+ * The request head is parsed once by the {@link Handler}, before the
+ * request is routed. A request is only valid while it is being handled.
+ * 
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+public interface Request {
+
+	/**
+	 * Returns the request method (e.g. <code>GET</code>).
+	 */
+	public String getMethod();
+
+	/**
+	 * Returns the request URI, as sent by the client.
+	 */
+	public String getUri();
+
+	/**
+	 * Returns the path of the request URI (without the query string), as
+	 * sent by the client.
+	 */
+	public String getPath();
+
+	/**
+	 * Returns the query string of the request URI, or <code>null</code> if
+	 * there is none.
+	 */
+	public String getQuery();
+
+	/**
+	 * Returns the protocol version (e.g. <code>HTTP/1.1</code>).
+	 */
+	public String getVersion();
+
+	/**
+	 * Returns the value of the first header with the specified name.
+	 * @param name - the header name (case insensitive)
+	 * @return the value, or <code>null</code> if there is no such header
+	 */
+	public String getHeader(String name);
+}
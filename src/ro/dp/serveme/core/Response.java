@@ -0,0 +1,88 @@
+package ro.dp.serveme.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import ro.dp.serveme.core.utils.HttpResponseCodes;
+
+/**
+ * The response to a {@link Request}, as seen by the {@link Endpoint}s and
+ * the {@link Filter}s.<br>
+ * The status, the content type and the headers are set first; the response
+ * is committed (its head is written to the connection) when it is sent, or
+ * when its streamed body outgrows the response buffer or is flushed. A
+ * streamed body of an unknown length is sent with chunked transfer encoding
+ * (or, to HTTP/1.0 clients, delimited by the end of the connection). A
+ * request that no endpoint answers is answered with "404 Not Found".
+ * 
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+public interface Response {
+
+	/**
+	 * Sets the status of the response. Defaults to "200 OK".
+	 * @param status - the response code
+	 */
+	public void setStatus(HttpResponseCodes status);
+
+	/**
+	 * Sets the content type of the response. Defaults to <code>text/html</code>.
+	 * @param contentType - the content type (the charset is always UTF-8)
+	 */
+	public void setContentType(String contentType);
+
+	/**
+	 * Sets the length of a streamed body, which is then sent as it is written
+	 * instead of in chunks. A body of another length is an error.
+	 * @param contentLength - the length of the body, or -1 if it is not known in advance
+	 * @throws IllegalStateException if the response was already committed
+	 */
+	public void setContentLength(long contentLength);
+
+	/**
+	 * Adds a header to the response. The <code>Content-Type</code>,
+	 * <code>Content-Length</code> and <code>Connection</code> headers are set by the server.
+	 * @param name - the header name
+	 * @param value - the header value
+	 * @throws IllegalArgumentException if the name or the value holds a line break
+	 */
+	public void setHeader(String name, String value);
+
+	/**
+	 * Returns the stream of the response body. The body is buffered up to the
+	 * size of the response buffer; it ends when the stream is closed, or when
+	 * the endpoint returns. Flushing the stream has no effect until the response
+	 * is committed: use {@link #flush()} to send the beginning of the body early.
+	 * @return the body stream
+	 * @throws IllegalStateException if the response was already sent
+	 */
+	public OutputStream getOutputStream();
+
+	/**
+	 * Commits the response and sends what is buffered of the streamed body to
+	 * the client, e.g. to show the beginning of a page that takes long to generate.
+	 * @throws IOException
+	 */
+	public void flush() throws IOException;
+
+	/**
+	 * Sends the response, with the specified body, when the body is not streamed.
+	 * @param body - the response body
+	 * @throws IOException
+	 * @throws IllegalStateException if the response was already sent
+	 */
+	public void send(byte[] body) throws IOException;
+
+	/**
+	 * Sends the error page of a response code.
+	 * @param status - the response code
+	 * @throws IOException
+	 * @throws IllegalStateException if the response was already sent
+	 */
+	public void sendError(HttpResponseCodes status) throws IOException;
+
+	/**
+	 * Tells whether the response was already sent.
+	 */
+	public boolean isCommitted();
+}
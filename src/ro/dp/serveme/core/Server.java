@@ -2,6 +2,9 @@ package ro.dp.serveme.core;
 
 import java.net.Socket;
 import java.util.concurrent.ThreadPoolExecutor;
+
+import ro.dp.serveme.core.utils.ConnectionRegistry;
+import ro.dp.serveme.core.utils.ServerMetrics;
 /**
  * The actual server process, which takes care of starting / stopping the connectors and also handles the incoming HTTP requests.<br>
  * The server has an associated connection pool which is responsible for managing {@link Listener} and {@link Connection} tasks.
@@ -45,6 +48,33 @@ public interface Server {
 	/**
 	 * Submits a job to the server's associated {@link ThreadPoolExecutor}. 
 	 * @param job - the job to be ran. This can be either a {@link Listener} or a {@link Connection} task.
+	 * @return <code>true</code> if the job was accepted, <code>false</code> if the server has no capacity left for it
+	 */
+	public boolean dispatch(Runnable job);
+	
+	/**
+	 * Tells whether the server reached its high-water mark. Connectors should stop accepting new connections
+	 * for as long as this method returns <code>true</code>.
+	 */
+	public boolean isOverloaded();
+	
+	/**
+	 * Answers a connection that the server has no capacity for with "503 Service Unavailable" and closes it.
+	 * The connector removes the connection from the {@link ConnectionRegistry} afterwards.
+	 * @param connection - the {@link Socket} object which represents the rejected connection
+	 */
+	public void reject(Socket connection);
+	
+	/**
+	 * Returns the metrics of this server. Connectors record the connections they accept and close.
+	 * @return the {@link ServerMetrics} of the server
+	 */
+	public ServerMetrics getMetrics();
+	
+	/**
+	 * Returns the registry of the open connections. Connectors add the connections they accept and remove them
+	 * when they are closed; the registry closes the connections that stay idle or stalled for too long.
+	 * @return the {@link ConnectionRegistry} of the server
 	 */
-	public void dispatch(Runnable job);
+	public ConnectionRegistry getConnections();
 }
@@ -0,0 +1,162 @@
+package ro.dp.serveme.core.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A range of bytes requested with the <code>Range</code> header.<br>
+ * Both ends of the range are inclusive, as in the header.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ * @see http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.35
+ */
+class ByteRange {
+
+	/**
+	 * The maximum number of ranges served in one response. Requests asking
+	 * for more are answered with the whole file.
+	 */
+	static int MAX_RANGES = 16;
+
+	private long start;
+
+	private long end;
+
+	ByteRange(long start, long end) {
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * Returns the position of the first byte of the range.
+	 */
+	long getStart() {
+		return start;
+	}
+
+	/**
+	 * Returns the position of the last byte of the range.
+	 */
+	long getEnd() {
+		return end;
+	}
+
+	/**
+	 * Returns the number of bytes in the range.
+	 */
+	long length() {
+		return end - start + 1;
+	}
+
+	/**
+	 * Parses the value of a <code>Range</code> header.
+	 *
+	 * @param header
+	 *            the value of the header, e.g. <code>bytes=0-499,-500</code>
+	 * @param length
+	 *            the length of the file
+	 * @return the satisfiable ranges, clipped to the file and coalesced (an
+	 *         empty list if none of them is satisfiable), or
+	 *         <code>null</code> if the
+	 *         header must be ignored (it is malformed, uses another unit or
+	 *         asks for too many ranges)
+	 */
+	static List<ByteRange> parse(String header, long length) {
+		int eq = header.indexOf('=');
+		if (eq == -1
+				|| !header.substring(0, eq).trim().equalsIgnoreCase("bytes")) {
+			return null;
+		}
+		String[] specs = header.substring(eq + 1).split(",");
+		if (specs.length > MAX_RANGES) {
+			return null;
+		}
+		List<ByteRange> ranges = new ArrayList<ByteRange>(specs.length);
+		for (String spec : specs) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash == -1) {
+				return null;
+			}
+			long first = parseNumber(spec.substring(0, dash));
+			long last = parseNumber(spec.substring(dash + 1));
+			if (dash == 0) {
+				// a suffix: the last bytes of the file
+				if (last < 0) {
+					return null;
+				}
+				if (last > 0 && length > 0) {
+					ranges.add(new ByteRange(Math.max(0, length - last),
+							length - 1));
+				}
+			} else if (first < 0 || (dash < spec.length() - 1 && last < first)) {
+				return null;
+			} else if (first < length) {
+				long end = dash == spec.length() - 1 ? length - 1 : Math.min(
+						last, length - 1);
+				ranges.add(new ByteRange(first, end));
+			}
+		}
+		return coalesce(ranges);
+	}
+
+	/**
+	 * Merges the ranges that overlap or are adjacent, so a request cannot
+	 * ask for the same bytes more than once (e.g. <code>bytes=0-,0-</code>).
+	 * The ranges keep the order of the request when none of them is
+	 * merged, otherwise they are sorted by their start.
+	 */
+	private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+		if (ranges.size() < 2) {
+			return ranges;
+		}
+		List<ByteRange> sorted = new ArrayList<ByteRange>(ranges);
+		Collections.sort(sorted, new Comparator<ByteRange>() {
+			public int compare(ByteRange r1, ByteRange r2) {
+				return r1.start < r2.start ? -1 : (r1.start == r2.start ? 0
+						: 1);
+			}
+		});
+		List<ByteRange> merged = new ArrayList<ByteRange>(sorted.size());
+		ByteRange current = sorted.get(0);
+		for (int idx = 1; idx < sorted.size(); idx++) {
+			ByteRange next = sorted.get(idx);
+			if (next.start <= current.end + 1) {
+				current = new ByteRange(current.start, Math.max(current.end,
+						next.end));
+			} else {
+				merged.add(current);
+				current = next;
+			}
+		}
+		merged.add(current);
+		return merged.size() == ranges.size() ? ranges : merged;
+	}
+
+	/**
+	 * Parses a non negative decimal number.
+	 *
+	 * @return the number, or -1 if the text is not a number
+	 */
+	private static long parseNumber(String text) {
+		if (text.length() == 0 || text.length() > 18) {
+			return -1;
+		}
+		long value = 0;
+		for (int idx = 0; idx < text.length(); idx++) {
+			char c = text.charAt(idx);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		return start + "-" + end;
+	}
+}
@@ -0,0 +1,245 @@
+package ro.dp.serveme.core.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A {@link Socket} view over a {@link SocketChannel} that was read by a
+ * selector thread before being handed to a worker.<br>
+ * The bytes that were already consumed from the channel (the request head
+ * and any pipelined data) are replayed by the input stream before it falls
+ * back to the channel itself, so the handlers can keep working with plain
+ * streams. The channel must be in blocking mode while this socket is in use.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+class ChannelSocket extends Socket {
+
+	/**
+	 * The wrapped channel.
+	 */
+	private SocketChannel channel;
+
+	/**
+	 * The bytes read ahead by the selector, ready to be read (flipped).
+	 */
+	private ByteBuffer prefetched;
+
+	/**
+	 * The input stream that replays the prefetched bytes.
+	 */
+	private InputStream input = null;
+
+	/**
+	 * The number of requests already served over this connection.
+	 */
+	private int requestCount;
+
+	/**
+	 * Constructs a socket over the specified channel.
+	 *
+	 * @param channel
+	 *            the connected channel, in blocking mode
+	 * @param prefetched
+	 *            the bytes already read from the channel, flipped for reading
+	 * @param requestCount
+	 *            the number of requests already served over the connection
+	 * @throws SocketException
+	 */
+	ChannelSocket(SocketChannel channel, ByteBuffer prefetched,
+			int requestCount) throws SocketException {
+		super((java.net.SocketImpl) null);
+		this.channel = channel;
+		this.prefetched = prefetched;
+		this.requestCount = requestCount;
+	}
+
+	/**
+	 * Returns the number of requests served over this connection, across all
+	 * the times it was dispatched.
+	 */
+	int getRequestCount() {
+		return requestCount;
+	}
+
+	/**
+	 * Updates the number of requests served over this connection.
+	 */
+	void setRequestCount(int requestCount) {
+		this.requestCount = requestCount;
+	}
+
+	@Override
+	public SocketChannel getChannel() {
+		return channel;
+	}
+
+	@Override
+	public synchronized InputStream getInputStream() throws IOException {
+		if (input == null) {
+			input = new PrefetchedInputStream(channel.socket().getInputStream());
+		}
+		return input;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return channel.socket().getOutputStream();
+	}
+
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		return channel.socket().getRemoteSocketAddress();
+	}
+
+	@Override
+	public SocketAddress getLocalSocketAddress() {
+		return channel.socket().getLocalSocketAddress();
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return channel.socket().getInetAddress();
+	}
+
+	@Override
+	public InetAddress getLocalAddress() {
+		return channel.socket().getLocalAddress();
+	}
+
+	@Override
+	public int getPort() {
+		return channel.socket().getPort();
+	}
+
+	@Override
+	public int getLocalPort() {
+		return channel.socket().getLocalPort();
+	}
+
+	@Override
+	public synchronized void setSoTimeout(int timeout) throws SocketException {
+		channel.socket().setSoTimeout(timeout);
+	}
+
+	@Override
+	public synchronized int getSoTimeout() throws SocketException {
+		return channel.socket().getSoTimeout();
+	}
+
+	@Override
+	public void setTcpNoDelay(boolean on) throws SocketException {
+		channel.socket().setTcpNoDelay(on);
+	}
+
+	@Override
+	public boolean getTcpNoDelay() throws SocketException {
+		return channel.socket().getTcpNoDelay();
+	}
+
+	@Override
+	public void setSoLinger(boolean on, int linger) throws SocketException {
+		channel.socket().setSoLinger(on, linger);
+	}
+
+	@Override
+	public synchronized void setSendBufferSize(int size) throws SocketException {
+		channel.socket().setSendBufferSize(size);
+	}
+
+	@Override
+	public void shutdownInput() throws IOException {
+		channel.socket().shutdownInput();
+	}
+
+	@Override
+	public void shutdownOutput() throws IOException {
+		channel.socket().shutdownOutput();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return channel.isConnected();
+	}
+
+	@Override
+	public boolean isBound() {
+		return channel.socket().isBound();
+	}
+
+	@Override
+	public boolean isClosed() {
+		return !channel.isOpen();
+	}
+
+	@Override
+	public boolean isInputShutdown() {
+		return channel.socket().isInputShutdown();
+	}
+
+	@Override
+	public boolean isOutputShutdown() {
+		return channel.socket().isOutputShutdown();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		channel.close();
+	}
+
+	@Override
+	public String toString() {
+		return channel.socket().toString();
+	}
+
+	/**
+	 * Input stream that drains the prefetch buffer before reading from the
+	 * channel.
+	 */
+	private class PrefetchedInputStream extends InputStream {
+
+		private InputStream in;
+
+		PrefetchedInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (prefetched.hasRemaining()) {
+				return prefetched.get() & 0xff;
+			}
+			return in.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (prefetched.hasRemaining()) {
+				int count = Math.min(len, prefetched.remaining());
+				prefetched.get(b, off, count);
+				return count;
+			}
+			return in.read(b, off, len);
+		}
+
+		@Override
+		public int available() throws IOException {
+			return prefetched.remaining() + in.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
@@ -1,11 +1,12 @@
 package ro.dp.serveme.core.impl;
 
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashSet;
-import java.util.Set;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.log4j.Logger;
 
@@ -17,7 +18,11 @@ import ro.dp.serveme.core.Server;
  * A connector has a {@link Listener} that accepts incoming connections on the
  * connector's port. The listener triggers the dispatching of a
  * {@link Connection} process which is responsible for handling the actual
- * response.
+ * response. Where <code>SO_REUSEPORT</code> is supported, every listener
+ * accepts on a server socket of its own, so the listeners do not contend on
+ * a single <code>accept()</code>; otherwise they share one server socket.<br>
+ * The connector may also accept on a server socket it did not open, e.g.
+ * one inherited from the process that started the server.
  * 
  * @author Daniel Platon (dplaton@gmail.com)
  */
@@ -41,22 +46,55 @@ public class ConnectorImpl implements Connector {
 	/**
 	 * The collection of listeners that this connector manages.
 	 */
-	private Set<Listener> listeners = new HashSet<Listener>();
-	/**
-	 * The connections opened by this connector.
-	 */
-	private Set<Connection> connections = new HashSet<Connection>();
+	private List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
 
 	/**
-	 * The server socket that this connector initializes.
+	 * The server sockets that this connector initializes: one per listener,
+	 * or a single one shared by all the listeners.
 	 */
-	private ServerSocket serverSocket = null;
+	private List<ServerSocket> serverSockets = new ArrayList<ServerSocket>();
 
 	/**
 	 * Initial number of listener processes to dispatch.
 	 */
 	private int INIT_LISTENERS_COUNT = 3;
 
+	/**
+	 * The length of the queue of pending connections.
+	 */
+	private int backlog = ListeningChannels.DEFAULT_BACKLOG;
+
+	/**
+	 * Whether the listeners get server sockets of their own (when
+	 * <code>SO_REUSEPORT</code> is supported).
+	 */
+	private boolean reusePort = false;
+
+	/**
+	 * Whether the server sockets are always bound with
+	 * <code>SO_REUSEPORT</code>, so that another process can take the
+	 * address over.
+	 */
+	private boolean handover = false;
+
+	/**
+	 * The server socket given to the connector, used instead of binding one.
+	 */
+	private ServerSocketChannel serverChannel;
+
+	/**
+	 * The time (in milliseconds) that the listeners wait before checking
+	 * again whether the overloaded server can take new connections.
+	 */
+	private static int OVERLOAD_PAUSE = 10;
+
+	/**
+	 * The time (in milliseconds) that a listener waits before accepting again
+	 * after an accept failed, e.g. because the process ran out of file
+	 * descriptors.
+	 */
+	private static int ACCEPT_ERROR_PAUSE = 100;
+
 	/**
 	 * Constructs a connector object using the specified port and hostname
 	 * 
@@ -79,28 +117,73 @@ public class ConnectorImpl implements Connector {
 	 */
 	private class Listener implements Runnable {
 
-		Socket conn = null;
+		/**
+		 * The server socket this listener accepts on.
+		 */
+		private ServerSocket serverSocket;
 
-		Listener() {
+		private volatile boolean running = true;
+
+		Listener(ServerSocket serverSocket) {
+			this.serverSocket = serverSocket;
 			listeners.add(this);
 		}
 
 		public void run() {
 			try {
-				while (true) {
-					Socket conn = serverSocket.accept();
-					// we're telling the server to spawn a new connection thread
-					server.dispatch(new Connection(conn));
+				while (running) {
+					// leaving the connections in the backlog while the server
+					// is overloaded
+					while (running && server.isOverloaded()) {
+						Thread.sleep(OVERLOAD_PAUSE);
+					}
+					Socket conn;
+					try {
+						conn = serverSocket.accept();
+					} catch (IOException e) {
+						if (!running || serverSocket.isClosed()) {
+							break;
+						}
+						log.warn("Cannot accept connections (" + e.getMessage()
+								+ "), retrying in " + ACCEPT_ERROR_PAUSE + " ms");
+						Thread.sleep(ACCEPT_ERROR_PAUSE);
+						continue;
+					}
+					try {
+						if (server.getConnections().add(conn.getChannel()) == null) {
+							// too many connections from the same address
+							continue;
+						}
+						// we're telling the server to spawn a new connection
+						// thread
+						if (!server.dispatch(new Connection(conn))) {
+							server.reject(conn);
+							server.getConnections().remove(conn.getChannel());
+						}
+					} catch (RuntimeException e) {
+						log.error(e.getMessage(), e);
+						server.getConnections().remove(conn.getChannel());
+						try {
+							conn.close();
+						} catch (IOException ioe) {
+							// nothing to do
+						}
+					}
 				}
-			} catch (Exception e) {
-				e.printStackTrace();
+			} catch (InterruptedException e) {
+				// the pool is shutting down
+			} finally {
+				listeners.remove(this);
 			}
 		}
 
+		/**
+		 * Stops accepting connections, by closing the server socket (which may
+		 * be shared with other listeners that are stopping too).
+		 */
 		public void stop() throws IOException {
-			if (conn != null) {
-				conn.close();
-			}
+			running = false;
+			serverSocket.close();
 		}
 	}
 
@@ -116,7 +199,6 @@ public class ConnectorImpl implements Connector {
 
 		Connection(Socket socket) {
 			this.socket = socket;
-			connections.add(this);
 		}
 
 		public void run() {
@@ -124,6 +206,9 @@ public class ConnectorImpl implements Connector {
 				server.handle(socket);
 			} catch (Exception e) {
 				log.error(e.getMessage(), e);
+			} finally {
+				// the handler closes the sockets it is done with
+				server.getConnections().remove(socket.getChannel());
 			}
 		}
 	}
@@ -137,25 +222,118 @@ public class ConnectorImpl implements Connector {
 		log.info("Starting connector");
 		log.debug("Initializing listening socket (hostname: " + host
 				+ "; port: " + port + ")");
-		serverSocket = new ServerSocket(port, 0, InetAddress.getByName(host));
-		log.debug("Staring listeners");
+		// the sockets are created through channels so that the accepted
+		// sockets have channels too (used for zero-copy file transfers)
+		boolean ownSockets = serverChannel == null && reusePort
+				&& INIT_LISTENERS_COUNT > 1
+				&& ListeningChannels.isReusePortSupported();
+		ServerSocket shared = null;
+		if (serverChannel != null) {
+			serverChannel.configureBlocking(true);
+			shared = serverChannel.socket();
+			serverSockets.add(shared);
+		} else if (!ownSockets) {
+			shared = ListeningChannels.open(host, port, backlog, handover)
+					.socket();
+			serverSockets.add(shared);
+		}
+		log.debug("Staring " + INIT_LISTENERS_COUNT + " listeners"
+				+ (ownSockets ? " with a socket each" : ""));
 		for (int idx = 0; idx < INIT_LISTENERS_COUNT; idx++) {
-			server.dispatch(new Listener());
+			ServerSocket serverSocket = shared;
+			if (ownSockets) {
+				serverSocket = ListeningChannels.open(host, port, backlog, true)
+						.socket();
+				serverSockets.add(serverSocket);
+			}
+			server.dispatch(new Listener(serverSocket));
 		}
 		log.debug("Connector started.");
 	}
 
+	/**
+	 * Sets the number of listeners accepting connections. Defaults to 3.
+	 * 
+	 * @param count
+	 *            the number of listeners
+	 */
+	public void setListenerCount(int count) {
+		this.INIT_LISTENERS_COUNT = Math.max(1, count);
+	}
+
+	/**
+	 * Sets the length of the queue of pending connections.
+	 * 
+	 * @param backlog
+	 *            the backlog, 0 for the default of the JDK
+	 */
+	public void setBacklog(int backlog) {
+		this.backlog = backlog;
+	}
+
+	/**
+	 * Sets whether the listeners accept on server sockets of their own, bound
+	 * with <code>SO_REUSEPORT</code> (where it is supported). Disabled by
+	 * default: a server socket bound with <code>SO_REUSEPORT</code> does not
+	 * keep another process from binding the same address.
+	 * 
+	 * @param reusePort
+	 *            <code>true</code> to give every listener its own socket
+	 */
+	public void setReusePort(boolean reusePort) {
+		this.reusePort = reusePort;
+	}
+
+	/**
+	 * Sets whether a shared server socket is bound with
+	 * <code>SO_REUSEPORT</code> too (where it is supported), so that a new
+	 * server process can listen on the address before this one stops.
+	 * 
+	 * @param handover
+	 *            <code>true</code> to let another process take over
+	 */
+	public void setHandover(boolean handover) {
+		this.handover = handover;
+	}
+
+	/**
+	 * Sets a bound server socket that the listeners share, instead of binding
+	 * one on the host and port of the connector.
+	 * 
+	 * @param serverChannel
+	 *            the server socket, e.g. inherited from the parent process
+	 */
+	public void setServerChannel(ServerSocketChannel serverChannel) {
+		this.serverChannel = serverChannel;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see ro.dp.serveme.core.Connector#stop()
+	 * @see ro.dp.serveme.core.Connector#stopAccepting()
 	 */
-	public void stop() throws Exception {
-		log.debug("Stopping connector.");
+	public void stopAccepting() throws Exception {
+		log.debug("Closing the server sockets.");
 		for (Listener l : listeners) {
 			l.stop();
 		}
 		listeners.clear();
+		// closing the sockets of the listeners that did not start yet too
+		for (ServerSocket serverSocket : serverSockets) {
+			serverSocket.close();
+		}
+		serverSockets.clear();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see ro.dp.serveme.core.Connector#stop()
+	 */
+	public void stop() throws Exception {
+		log.debug("Stopping connector.");
+		// the accepted connections are closed by the server's registry
+		stopAccepting();
 		log.debug("Connector stopped.");
 
 	}
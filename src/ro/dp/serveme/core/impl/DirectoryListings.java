@@ -0,0 +1,398 @@
+package ro.dp.serveme.core.impl;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ro.dp.serveme.core.Response;
+import ro.dp.serveme.core.utils.DocumentRootWatcher;
+import ro.dp.serveme.core.utils.HttpDates;
+
+/**
+ * The directory listings, read once and cached.<br>
+ * The entries of a directory are read (with a single stat per entry) the
+ * first time the directory is listed, and again when the
+ * {@link DocumentRootWatcher} reports a change of the directory or of one of
+ * its entries, or when the modification time of the directory changes (an
+ * entry was added, removed or renamed; this check alone misses the files
+ * edited in place, but covers a document root that is not watched). The
+ * listing can be sorted by name, size or modification date and
+ * is split in pages; the sorted entries are kept, and a page is rendered
+ * straight into the streamed response body, so the first entries go out
+ * while the rest of the page is rendered and no page is held in memory.
+ * The least recently listed directories are evicted first.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+public class DirectoryListings implements DocumentRootWatcher.Listener {
+
+	/**
+	 * The number of directories kept.
+	 */
+	private static int MAX_DIRECTORIES = 256;
+
+	private static String[] SORT_KEYS = { "name", "size", "modified" };
+
+	/**
+	 * An entry of a directory.
+	 */
+	private static class Entry {
+
+		private String name;
+
+		private boolean directory;
+
+		private long length;
+
+		private long modified;
+
+		Entry(String name, BasicFileAttributes attributes) {
+			this.name = name;
+			this.directory = attributes.isDirectory();
+			this.length = attributes.size();
+			this.modified = attributes.lastModifiedTime().toMillis();
+		}
+	}
+
+	/**
+	 * The comparators of the entries, by sort key. Directories always come
+	 * first.
+	 */
+	private static Map<String, Comparator<Entry>> COMPARATORS = new LinkedHashMap<String, Comparator<Entry>>();
+	static {
+		COMPARATORS.put("name", new Comparator<Entry>() {
+			public int compare(Entry e1, Entry e2) {
+				if (e1.directory != e2.directory) {
+					return e1.directory ? -1 : 1;
+				}
+				return e1.name.compareToIgnoreCase(e2.name);
+			}
+		});
+		COMPARATORS.put("size", new Comparator<Entry>() {
+			public int compare(Entry e1, Entry e2) {
+				if (e1.directory != e2.directory) {
+					return e1.directory ? -1 : 1;
+				}
+				return e1.length < e2.length ? -1 : e1.length == e2.length ? 0
+						: 1;
+			}
+		});
+		COMPARATORS.put("modified", new Comparator<Entry>() {
+			public int compare(Entry e1, Entry e2) {
+				if (e1.directory != e2.directory) {
+					return e1.directory ? -1 : 1;
+				}
+				return e1.modified < e2.modified ? -1
+						: e1.modified == e2.modified ? 0 : 1;
+			}
+		});
+	}
+
+	/**
+	 * Reverses the order of a comparator, except that directories still come
+	 * first.
+	 */
+	private static Comparator<Entry> reverse(final Comparator<Entry> comparator) {
+		return new Comparator<Entry>() {
+			public int compare(Entry e1, Entry e2) {
+				if (e1.directory != e2.directory) {
+					return e1.directory ? -1 : 1;
+				}
+				return comparator.compare(e2, e1);
+			}
+		};
+	}
+
+	/**
+	 * The listing of a directory.
+	 */
+	private class Listing {
+
+		private String name;
+
+		/**
+		 * The modification time of the directory when it was read.
+		 */
+		private long modified;
+
+		private Entry[] entries;
+
+		/**
+		 * The entries sorted by each sort key and order, created on demand.
+		 */
+		private Map<String, Entry[]> sorted = new LinkedHashMap<String, Entry[]>();
+
+		Listing(File folder, long modified) throws IOException {
+			this.name = folder.getName();
+			this.modified = modified;
+			List<Entry> entries = new ArrayList<Entry>();
+			DirectoryStream<Path> stream = Files.newDirectoryStream(folder
+					.toPath());
+			try {
+				for (Path path : stream) {
+					try {
+						entries.add(new Entry(path.getFileName().toString(),
+								Files.readAttributes(path,
+										BasicFileAttributes.class)));
+					} catch (IOException e) {
+						// the entry was removed while the directory was read
+					}
+				}
+			} finally {
+				stream.close();
+			}
+			this.entries = entries.toArray(new Entry[entries.size()]);
+		}
+
+		/**
+		 * Returns the entries sorted by a key, sorting them the first time.
+		 */
+		synchronized Entry[] sorted(String sort, boolean descending) {
+			String key = sort + (descending ? ",desc" : ",asc");
+			Entry[] order = sorted.get(key);
+			if (order == null) {
+				order = entries.clone();
+				Comparator<Entry> comparator = COMPARATORS.get(sort);
+				Arrays.sort(order, descending ? reverse(comparator)
+						: comparator);
+				sorted.put(key, order);
+			}
+			return order;
+		}
+
+		/**
+		 * Renders a page of the listing into a response body.
+		 */
+		void render(String sort, boolean descending, int page, Response response)
+				throws IOException {
+			Entry[] order = sorted(sort, descending);
+			int pageCount = Math.max(1, (order.length + pageSize - 1)
+					/ pageSize);
+			page = Math.min(Math.max(1, page), pageCount);
+			response.setContentType("text/html");
+			Writer html = new BufferedWriter(new OutputStreamWriter(response
+					.getOutputStream(), "UTF-8"));
+			html.write("<html><head><title>Directory listing for ");
+			html.write(escape(name));
+			html.write("</title></head><body><table><tr>");
+			for (String column : SORT_KEYS) {
+				// a second click on the sorted column reverses the order
+				boolean reverse = column.equals(sort) && !descending;
+				html.write("<th><a href=\"?sort=" + column
+						+ (reverse ? "&amp;order=desc" : "") + "\">" + column
+						+ "</a></th>");
+			}
+			html.write("</tr><tr><td><a href=\"..\">..</a></td></tr>");
+			int first = (page - 1) * pageSize;
+			int last = Math.min(order.length, first + pageSize);
+			for (int idx = first; idx < last; idx++) {
+				Entry entry = order[idx];
+				String link = escape(encode(entry.name))
+						+ (entry.directory ? "/" : "");
+				html.write("<tr><td><a href=\"");
+				html.write(link);
+				html.write("\">");
+				html.write(escape(entry.name));
+				html.write(entry.directory ? "/</a></td><td>-</td><td>"
+						: "</a></td><td>" + entry.length + "</td><td>");
+				html.write(HttpDates.format(entry.modified));
+				html.write("</td></tr>");
+			}
+			html.write("</table>");
+			if (pageCount > 1) {
+				String query = "?sort=" + sort
+						+ (descending ? "&amp;order=desc" : "") + "&amp;page=";
+				if (page > 1) {
+					html.write("<a href=\"" + query + (page - 1)
+							+ "\">previous</a> ");
+				}
+				html.write("page " + page + " of " + pageCount);
+				if (page < pageCount) {
+					html.write(" <a href=\"" + query + (page + 1)
+							+ "\">next</a>");
+				}
+			}
+			html.write("</body></html>");
+			html.close();
+		}
+	}
+
+	/**
+	 * The number of entries per page.
+	 */
+	private int pageSize;
+
+	/**
+	 * The listings, by directory path, in access order.
+	 */
+	private LinkedHashMap<String, Listing> listings = new LinkedHashMap<String, Listing>(
+			64, 0.75f, true);
+
+	/**
+	 * Incremented on every change notification, so that listings read while a
+	 * change was being notified are not stored.
+	 */
+	private volatile long generation = 0;
+
+	/**
+	 * Constructs the listing cache.
+	 *
+	 * @param pageSize
+	 *            the number of entries per page
+	 */
+	public DirectoryListings(int pageSize) {
+		this.pageSize = Math.max(1, pageSize);
+	}
+
+	/**
+	 * Sends a page of the listing of a directory, reading the directory if
+	 * it changed since it was last listed.
+	 *
+	 * @param folder
+	 *            the directory
+	 * @param query
+	 *            the query string of the request (<code>sort</code>,
+	 *            <code>order</code> and <code>page</code> parameters), or
+	 *            <code>null</code>
+	 * @param response
+	 *            the response, whose body is streamed
+	 * @throws IOException
+	 *             if the directory cannot be read
+	 */
+	void write(File folder, String query, Response response)
+			throws IOException {
+		String path = folder.getPath();
+		long modified = folder.lastModified();
+		Listing listing;
+		synchronized (this) {
+			listing = listings.get(path);
+		}
+		if (listing == null || listing.modified != modified) {
+			long loadGeneration = generation;
+			listing = new Listing(folder, modified);
+			synchronized (this) {
+				// a listing read while a change was notified is served once
+				// and read again on the next request
+				if (loadGeneration == generation) {
+					listings.put(path, listing);
+					if (listings.size() > MAX_DIRECTORIES) {
+						Iterator<Listing> lru = listings.values().iterator();
+						lru.next();
+						lru.remove();
+					}
+				}
+			}
+		}
+		String sort = parameter(query, "sort");
+		if (sort == null || !COMPARATORS.containsKey(sort)) {
+			sort = "name";
+		}
+		int page = 1;
+		String number = parameter(query, "page");
+		if (number != null) {
+			try {
+				page = Integer.parseInt(number);
+			} catch (NumberFormatException e) {
+				// the first page
+			}
+		}
+		listing.render(sort, "desc".equals(parameter(query, "order")), page,
+				response);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * ro.dp.serveme.core.utils.DocumentRootWatcher.Listener#fileChanged(java
+	 * .io.File)
+	 */
+	public synchronized void fileChanged(File file) {
+		generation++;
+		String path = file.getPath();
+		String children = path + File.separator;
+		// the size and the modification date of a file are shown in the
+		// listing of its folder
+		File parent = file.getParentFile();
+		String folder = parent != null ? parent.getPath() : null;
+		Iterator<String> it = listings.keySet().iterator();
+		while (it.hasNext()) {
+			String key = it.next();
+			if (key.equals(path) || key.startsWith(children)
+					|| key.equals(folder)) {
+				it.remove();
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ro.dp.serveme.core.utils.DocumentRootWatcher.Listener#allChanged()
+	 */
+	public synchronized void allChanged() {
+		generation++;
+		listings.clear();
+	}
+
+	/**
+	 * Returns the value of a query parameter, or <code>null</code>.
+	 */
+	private static String parameter(String query, String name) {
+		if (query == null) {
+			return null;
+		}
+		for (String pair : query.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq != -1 && pair.substring(0, eq).equals(name)) {
+				return pair.substring(eq + 1);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Escapes the HTML special characters.
+	 */
+	private static String escape(String text) {
+		StringBuilder escaped = null;
+		for (int idx = 0; idx < text.length(); idx++) {
+			char c = text.charAt(idx);
+			String replacement = c == '&' ? "&amp;" : c == '<' ? "&lt;"
+					: c == '>' ? "&gt;" : c == '"' ? "&quot;" : null;
+			if (replacement != null && escaped == null) {
+				escaped = new StringBuilder(text.substring(0, idx));
+			}
+			if (escaped != null) {
+				if (replacement != null) {
+					escaped.append(replacement);
+				} else {
+					escaped.append(c);
+				}
+			}
+		}
+		return escaped != null ? escaped.toString() : text;
+	}
+
+	/**
+	 * Encodes the characters of a file name that have a meaning in a
+	 * relative URI.
+	 */
+	private static String encode(String name) {
+		return name.replace("%", "%25").replace(" ", "%20")
+				.replace("#", "%23").replace("?", "%3F");
+	}
+}
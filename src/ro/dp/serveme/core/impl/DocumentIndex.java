@@ -0,0 +1,417 @@
+package ro.dp.serveme.core.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import ro.dp.serveme.core.utils.DocumentRootWatcher;
+
+/**
+ * An in-memory index of the document root.<br>
+ * The index is a trie of the files and folders under the document root,
+ * one node per path segment, built when the server starts and kept current
+ * by the {@link DocumentRootWatcher} notifications. Every node holds what
+ * the handler needs to answer a request without touching the disk: the
+ * canonical path, the size, the modification time, the content type and
+ * whether it is a folder. Resolving an URI is a walk down the trie over the
+ * decoded, normalized segments of its path, so requests for files that do
+ * not exist (or that lie outside of the document root) are answered from
+ * memory. Links that lead out of the document root are not indexed.<br>
+ * The index holds at most a given number of files and folders. When the
+ * changes of the document root take it over that number, it is dropped and
+ * the files are looked up on disk, until the whole document root fits again
+ * (it is indexed again when the watcher reports that everything changed).
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+public class DocumentIndex implements DocumentRootWatcher.Listener {
+
+	private static Logger log = Logger.getLogger(DocumentIndex.class);
+
+	/**
+	 * Thrown when the document root holds more files and folders than the
+	 * index takes.
+	 */
+	private static class OverflowException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		OverflowException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * A file or folder of the index.
+	 */
+	public static class Entry {
+
+		private File file;
+
+		private String canonicalPath;
+
+		private long length;
+
+		private long lastModified;
+
+		private String contentType;
+
+		/**
+		 * The children of a folder, by (folded) name, or <code>null</code>
+		 * for a file.
+		 */
+		private Map<String, Entry> children;
+
+		Entry(File file, String canonicalPath, BasicFileAttributes attributes) {
+			this.file = file;
+			this.canonicalPath = canonicalPath;
+			this.length = attributes.size();
+			this.lastModified = attributes.lastModifiedTime().toMillis();
+			if (attributes.isDirectory()) {
+				children = new ConcurrentHashMap<String, Entry>();
+			} else {
+				contentType = HttpRequestHandler.contentTypeOf(file.getName());
+			}
+		}
+
+		/**
+		 * Returns the file, as an absolute path under the document root (the
+		 * path reported by the {@link DocumentRootWatcher}).
+		 */
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * Returns the canonical path of the file (links resolved).
+		 */
+		public String getCanonicalPath() {
+			return canonicalPath;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * Returns the content type of a file, <code>null</code> for a folder.
+		 */
+		public String getContentType() {
+			return contentType;
+		}
+
+		public boolean isDirectory() {
+			return children != null;
+		}
+	}
+
+	/**
+	 * The document root, as an absolute path.
+	 */
+	private File root;
+
+	/**
+	 * The canonical path of the document root.
+	 */
+	private String canonicalRoot;
+
+	/**
+	 * The root of the trie, replaced when everything is indexed again, or
+	 * <code>null</code> while the document root holds too many files and
+	 * folders.
+	 */
+	private volatile Entry rootEntry;
+
+	/**
+	 * The largest number of entries indexed.
+	 */
+	private int maxEntries;
+
+	/**
+	 * The number of entries indexed.
+	 */
+	private volatile int size;
+
+	/**
+	 * Constructs the index of a document root, indexing it.
+	 *
+	 * @param documentRoot
+	 *            the document root
+	 * @param maxEntries
+	 *            the largest number of files and folders indexed
+	 * @throws IOException
+	 *             if the document root cannot be read, or holds more than
+	 *             <code>maxEntries</code> files and folders
+	 */
+	public DocumentIndex(String documentRoot, int maxEntries)
+			throws IOException {
+		this.root = new File(documentRoot).getAbsoluteFile();
+		this.canonicalRoot = root.getCanonicalPath();
+		this.maxEntries = maxEntries;
+		long start = System.currentTimeMillis();
+		rootEntry = build();
+		log.info("Indexed " + size + " files and folders of " + root + " in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Resolves the path of an URI.
+	 *
+	 * @param uri
+	 *            the path of the request, as sent by the client (encoded)
+	 * @return the entry of the file or folder, or <code>null</code> if there
+	 *         is none (or the path is malformed or leads out of the document
+	 *         root)
+	 */
+	public Entry resolve(String uri) {
+		return resolve(RequestPaths.segments(uri));
+	}
+
+	/**
+	 * Resolves the decoded segments of a path.
+	 *
+	 * @param segments
+	 *            the segments, as split by {@link RequestPaths#segments}, or
+	 *            <code>null</code>
+	 * @return the entry of the file or folder, or <code>null</code> if there
+	 *         is none
+	 */
+	public Entry resolve(List<String> segments) {
+		Entry entry = rootEntry;
+		if (segments == null || entry == null) {
+			return null;
+		}
+		for (String segment : segments) {
+			if (entry.children == null) {
+				return null;
+			}
+			entry = entry.children.get(RequestPaths.fold(segment));
+			if (entry == null) {
+				return null;
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Returns the number of files and folders indexed.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Tells whether the files are resolved by the index. When the document
+	 * root holds too many files and folders, they are looked up on disk
+	 * instead.
+	 */
+	public boolean isActive() {
+		return rootEntry != null;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * ro.dp.serveme.core.utils.DocumentRootWatcher.Listener#fileChanged(java
+	 * .io.File)
+	 */
+	public synchronized void fileChanged(File file) {
+		if (rootEntry == null) {
+			// looked up on disk until everything is indexed again
+			return;
+		}
+		try {
+			update(file.getAbsoluteFile());
+		} catch (OverflowException e) {
+			overflow(e);
+		} catch (IOException e) {
+			log.warn("Cannot index " + file + ", indexing everything again ("
+					+ e.getMessage() + ")");
+			allChanged();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ro.dp.serveme.core.utils.DocumentRootWatcher.Listener#allChanged()
+	 */
+	public synchronized void allChanged() {
+		try {
+			boolean active = rootEntry != null;
+			rootEntry = build();
+			if (!active) {
+				log.info("Indexed " + size + " files and folders of " + root
+						+ " again");
+			}
+		} catch (OverflowException e) {
+			overflow(e);
+		} catch (IOException e) {
+			log.error("Cannot index the document root " + root + ": "
+					+ e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Indexes a changed file or folder again (with everything under it), or
+	 * removes it if it no longer exists.
+	 */
+	private void update(File file) throws IOException {
+		if (file.equals(root)) {
+			rootEntry = build();
+			return;
+		}
+		String path = file.getPath();
+		if (!path.startsWith(root.getPath() + File.separator)) {
+			return;
+		}
+		File parentFile = file.getParentFile();
+		Entry parent = resolve(parentFile);
+		if (parent == null || parent.children == null) {
+			// the folder is not indexed (yet), indexing it with the file
+			update(parentFile);
+			return;
+		}
+		String name = RequestPaths.fold(file.getName());
+		// the count starts from the entries that are kept
+		int[] count = new int[] { size - count(parent.children.get(name)) };
+		Entry entry = index(file, count, new HashSet<String>());
+		if (entry != null) {
+			parent.children.put(name, entry);
+		} else {
+			parent.children.remove(name);
+		}
+		size = count[0];
+	}
+
+	/**
+	 * Drops the index of a document root that holds too many files and
+	 * folders.
+	 */
+	private void overflow(OverflowException e) {
+		rootEntry = null;
+		size = 0;
+		log.warn(e.getMessage() + ", files are looked up on disk");
+	}
+
+	/**
+	 * Counts the entries of a subtree.
+	 *
+	 * @param entry
+	 *            the root of the subtree, or <code>null</code>
+	 */
+	private static int count(Entry entry) {
+		if (entry == null) {
+			return 0;
+		}
+		int count = 1;
+		if (entry.children != null) {
+			for (Entry child : entry.children.values()) {
+				count += count(child);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Finds the entry of a file under the document root.
+	 */
+	private Entry resolve(File file) {
+		String relative = file.getPath().substring(root.getPath().length());
+		Entry entry = rootEntry;
+		if (entry == null) {
+			return null;
+		}
+		for (String segment : relative.split(Pattern.quote(File.separator))) {
+			if (segment.length() == 0) {
+				continue;
+			}
+			if (entry.children == null) {
+				return null;
+			}
+			entry = entry.children.get(RequestPaths.fold(segment));
+			if (entry == null) {
+				return null;
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Indexes the whole document root.
+	 */
+	private Entry build() throws IOException {
+		int[] count = new int[] { 0 };
+		Entry entry = index(root, count, new HashSet<String>());
+		if (entry == null || !entry.isDirectory()) {
+			throw new IOException("The document root " + root
+					+ " is not a readable folder");
+		}
+		size = count[0];
+		return entry;
+	}
+
+	/**
+	 * Indexes a file, or a folder and everything under it.
+	 *
+	 * @param file
+	 *            the file, as an absolute path under the document root
+	 * @param count
+	 *            the number of entries indexed so far
+	 * @param folders
+	 *            the canonical paths of the folders being indexed, to stop
+	 *            at links that lead back to one of them
+	 * @return the entry, or <code>null</code> if the file does not exist or
+	 *         leads out of the document root
+	 */
+	private Entry index(File file, int[] count, Set<String> folders)
+			throws IOException {
+		String canonicalPath = file.getCanonicalPath();
+		if (!canonicalPath.equals(canonicalRoot)
+				&& !canonicalPath.startsWith(canonicalRoot + File.separator)) {
+			log.debug("Not indexing " + file + ", it leads to "
+					+ canonicalPath);
+			return null;
+		}
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(file.toPath(),
+					BasicFileAttributes.class);
+		} catch (IOException e) {
+			// deleted (or unreadable) meanwhile
+			return null;
+		}
+		if (++count[0] > maxEntries) {
+			throw new OverflowException("The document root holds more than "
+					+ maxEntries + " files and folders");
+		}
+		Entry entry = new Entry(file, canonicalPath, attributes);
+		if (entry.isDirectory() && folders.add(canonicalPath)) {
+			String[] names = file.list();
+			if (names != null) {
+				for (String name : names) {
+					Entry child = index(new File(file, name), count, folders);
+					if (child != null) {
+						entry.children.put(RequestPaths.fold(name), child);
+					}
+				}
+			}
+			folders.remove(canonicalPath);
+		}
+		return entry;
+	}
+}
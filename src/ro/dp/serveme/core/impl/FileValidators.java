@@ -0,0 +1,181 @@
+package ro.dp.serveme.core.impl;
+
+import ro.dp.serveme.core.utils.HttpDates;
+import ro.dp.serveme.core.utils.HttpResponseCodes;
+
+/**
+ * The validators of a file: its entity tag and its modification date.<br>
+ * The entity tag is built from the modification time and the size of the
+ * file (no content hash), so it is cheap to compute. The
+ * <code>ETag</code> and <code>Last-Modified</code> headers and the
+ * "304 Not Modified" response are serialized once, when the validators are
+ * created; {@link HttpRequestHandler} keeps them for as long as the file does
+ * not change.<br>
+ * A compressed variant of a file has its own validators: its entity tag is
+ * the one of the file with the content coding appended.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+class FileValidators {
+
+	/**
+	 * The modification time and the length of the file, as they were when the
+	 * validators were created.
+	 */
+	private long modified;
+	private long length;
+
+	/**
+	 * The modification date, truncated to the second (the precision of the
+	 * <code>Last-Modified</code> header).
+	 */
+	private long lastModified;
+
+	private String entityTag;
+
+	private String lastModifiedDate;
+
+	/**
+	 * The serialized headers sent with the file: <code>ETag</code>,
+	 * <code>Last-Modified</code>, and <code>Accept-Ranges</code> or
+	 * <code>Content-Encoding</code>, and <code>Vary</code>.
+	 */
+	private byte[] header;
+
+	/**
+	 * The serialized "304 Not Modified" response, without the
+	 * <code>Connection</code> header and the empty line that ends the header
+	 * block.
+	 */
+	private byte[] notModified;
+
+	/**
+	 * Creates the validators of a file.
+	 *
+	 * @param modified
+	 *            the modification time of the file
+	 * @param length
+	 *            the length of the file
+	 */
+	FileValidators(long modified, long length) {
+		this(modified, length, null, false);
+	}
+
+	/**
+	 * Creates the validators of a file, or of a compressed variant of it.
+	 *
+	 * @param modified
+	 *            the modification time of the file
+	 * @param length
+	 *            the length of the file
+	 * @param encoding
+	 *            the content coding of the variant, or <code>null</code> for
+	 *            the file itself
+	 * @param vary
+	 *            whether the response depends on the
+	 *            <code>Accept-Encoding</code> header
+	 */
+	FileValidators(long modified, long length, String encoding, boolean vary) {
+		this.modified = modified;
+		this.length = length;
+		this.lastModified = modified / 1000 * 1000;
+		this.entityTag = "\"" + Long.toHexString(modified) + "-"
+				+ Long.toHexString(length)
+				+ (encoding != null ? "-" + encoding : "") + "\"";
+		this.lastModifiedDate = HttpDates.format(lastModified);
+		this.header = ResponseHeaders.bytes("ETag: "
+				+ entityTag
+				+ "\r\nLast-Modified: "
+				+ lastModifiedDate
+				+ (encoding != null ? "\r\nContent-Encoding: " + encoding
+						: "\r\nAccept-Ranges: bytes")
+				+ (vary ? "\r\nVary: Accept-Encoding" : "") + "\r\n");
+		byte[] status = ResponseHeaders
+				.statusLine(HttpResponseCodes.HTTP_NOT_MODIFIED);
+		this.notModified = new byte[status.length + header.length];
+		System.arraycopy(status, 0, notModified, 0, status.length);
+		System.arraycopy(header, 0, notModified, status.length, header.length);
+	}
+
+	/**
+	 * Checks whether the validators still describe a file.
+	 *
+	 * @param modified
+	 *            the current modification time of the file
+	 * @param length
+	 *            the current length of the file
+	 */
+	boolean isCurrent(long modified, long length) {
+		return this.modified == modified && this.length == length;
+	}
+
+	/**
+	 * Returns the length of the file.
+	 */
+	long getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns the serialized <code>ETag</code>, <code>Last-Modified</code>
+	 * and <code>Accept-Ranges</code> headers.
+	 */
+	byte[] header() {
+		return header;
+	}
+
+	/**
+	 * Returns the serialized "304 Not Modified" response, without the
+	 * <code>Connection</code> header.
+	 */
+	byte[] notModified() {
+		return notModified;
+	}
+
+	/**
+	 * Evaluates the conditional headers of a request.<br>
+	 * <code>If-None-Match</code> takes precedence; <code>If-Modified-Since</code>
+	 * is only used when it is absent.
+	 *
+	 * @param request
+	 *            the request
+	 * @return <code>true</code> if the client's copy is current and a
+	 *         "304 Not Modified" response can be sent
+	 */
+	boolean isNotModified(HttpRequest request) {
+		if (request.getHeaderIndex("If-None-Match") != -1) {
+			return request.matchesEntityTag("If-None-Match", entityTag);
+		}
+		String since = request.getHeader("If-Modified-Since");
+		if (since == null) {
+			return false;
+		}
+		// clients usually send back the date they were given
+		if (since.equals(lastModifiedDate)) {
+			return true;
+		}
+		long time = HttpDates.parse(since);
+		return time != -1 && lastModified <= time;
+	}
+
+	/**
+	 * Evaluates the <code>If-Range</code> header of a request.
+	 *
+	 * @param request
+	 *            the request
+	 * @return <code>true</code> if the header is absent or the client's copy
+	 *         is current, i.e. the <code>Range</code> header may be honoured
+	 */
+	boolean isRangeCurrent(HttpRequest request) {
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange == null) {
+			return true;
+		}
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			// strong comparison: weak entity tags never match
+			return ifRange.equals(entityTag);
+		}
+		return ifRange.equals(lastModifiedDate)
+				|| HttpDates.parse(ifRange) == lastModified;
+	}
+}
@@ -0,0 +1,454 @@
+package ro.dp.serveme.core.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK, the header compression of HTTP/2 (RFC 7541).<br>
+ * Header fields are sent as references to a static table of common fields
+ * and to a dynamic table of the fields sent before on the connection, or as
+ * literals (Huffman coded when that is shorter). Each side of a connection
+ * has a {@link Decoder} for the headers it receives and an {@link Encoder}
+ * for the headers it sends; both are stateful, so the header blocks must be
+ * coded in the order they are sent.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+class Hpack {
+
+	/**
+	 * Thrown when a header block cannot be decoded. The state of the
+	 * decoder is then lost, and so is the connection.
+	 */
+	static class CompressionException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		CompressionException(String message) {
+			super(message);
+		}
+	}
+
+	private static Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	/**
+	 * The default size (in octets) of the dynamic tables.
+	 */
+	static final int DEFAULT_TABLE_SIZE = 4096;
+
+	/**
+	 * The overhead (in octets) counted for each entry of a dynamic table.
+	 */
+	private static final int ENTRY_OVERHEAD = 32;
+
+	/**
+	 * The largest integer accepted in a header block.
+	 */
+	private static final int MAX_INTEGER = 1 << 24;
+
+	/**
+	 * The static table, from index 1.
+	 */
+	private static final String[][] STATIC_TABLE = {
+			{ ":authority", "" },
+			{ ":method", "GET" },
+			{ ":method", "POST" },
+			{ ":path", "/" },
+			{ ":path", "/index.html" },
+			{ ":scheme", "http" },
+			{ ":scheme", "https" },
+			{ ":status", "200" },
+			{ ":status", "204" },
+			{ ":status", "206" },
+			{ ":status", "304" },
+			{ ":status", "400" },
+			{ ":status", "404" },
+			{ ":status", "500" },
+			{ "accept-charset", "" },
+			{ "accept-encoding", "gzip, deflate" },
+			{ "accept-language", "" },
+			{ "accept-ranges", "" },
+			{ "accept", "" },
+			{ "access-control-allow-origin", "" },
+			{ "age", "" },
+			{ "allow", "" },
+			{ "authorization", "" },
+			{ "cache-control", "" },
+			{ "content-disposition", "" },
+			{ "content-encoding", "" },
+			{ "content-language", "" },
+			{ "content-length", "" },
+			{ "content-location", "" },
+			{ "content-range", "" },
+			{ "content-type", "" },
+			{ "cookie", "" },
+			{ "date", "" },
+			{ "etag", "" },
+			{ "expect", "" },
+			{ "expires", "" },
+			{ "from", "" },
+			{ "host", "" },
+			{ "if-match", "" },
+			{ "if-modified-since", "" },
+			{ "if-none-match", "" },
+			{ "if-range", "" },
+			{ "if-unmodified-since", "" },
+			{ "last-modified", "" },
+			{ "link", "" },
+			{ "location", "" },
+			{ "max-forwards", "" },
+			{ "proxy-authenticate", "" },
+			{ "proxy-authorization", "" },
+			{ "range", "" },
+			{ "referer", "" },
+			{ "refresh", "" },
+			{ "retry-after", "" },
+			{ "server", "" },
+			{ "set-cookie", "" },
+			{ "strict-transport-security", "" },
+			{ "transfer-encoding", "" },
+			{ "user-agent", "" },
+			{ "vary", "" },
+			{ "via", "" },
+			{ "www-authenticate", "" } };
+
+	/**
+	 * The index of the static entries, by name and value.
+	 */
+	private static Map<String, Integer> STATIC_FIELDS = new HashMap<String, Integer>();
+
+	/**
+	 * The index of the first static entry of each name.
+	 */
+	private static Map<String, Integer> STATIC_NAMES = new HashMap<String, Integer>();
+
+	static {
+		for (int idx = STATIC_TABLE.length - 1; idx >= 0; idx--) {
+			String[] field = STATIC_TABLE[idx];
+			STATIC_NAMES.put(field[0], idx + 1);
+			if (field[1].length() > 0) {
+				STATIC_FIELDS.put(field[0] + '\0' + field[1], idx + 1);
+			}
+		}
+	}
+
+	private Hpack() {
+	}
+
+	/**
+	 * A dynamic table: the most recent entry first.
+	 */
+	private static class Table {
+
+		private Deque<String[]> entries = new ArrayDeque<String[]>();
+
+		/**
+		 * The size of the entries, in octets.
+		 */
+		private int size = 0;
+
+		private int capacity = DEFAULT_TABLE_SIZE;
+
+		/**
+		 * Returns an entry.
+		 *
+		 * @param index
+		 *            the index of the entry, 1 for the most recent one
+		 */
+		String[] get(int index) {
+			Iterator<String[]> it = entries.iterator();
+			String[] entry = null;
+			while (index-- > 0) {
+				entry = it.next();
+			}
+			return entry;
+		}
+
+		int length() {
+			return entries.size();
+		}
+
+		void add(String name, String value) {
+			int entrySize = sizeOf(name, value);
+			evict(capacity - entrySize);
+			if (entrySize <= capacity) {
+				entries.addFirst(new String[] { name, value });
+				size += entrySize;
+			}
+		}
+
+		void setCapacity(int capacity) {
+			this.capacity = capacity;
+			evict(capacity);
+		}
+
+		/**
+		 * Evicts the oldest entries until the table takes at most the given
+		 * size.
+		 */
+		private void evict(int limit) {
+			while (size > Math.max(0, limit) && !entries.isEmpty()) {
+				String[] entry = entries.removeLast();
+				size -= sizeOf(entry[0], entry[1]);
+			}
+		}
+
+		private static int sizeOf(String name, String value) {
+			return name.length() + value.length() + ENTRY_OVERHEAD;
+		}
+	}
+
+	/**
+	 * Decodes the header blocks received on a connection.
+	 */
+	static class Decoder {
+
+		private Table table = new Table();
+
+		private byte[] data;
+
+		private int position;
+
+		private int end;
+
+		/**
+		 * Decodes a header block.
+		 *
+		 * @param block
+		 *            the buffer holding the header block
+		 * @param off
+		 *            the offset of the header block
+		 * @param len
+		 *            the length of the header block
+		 * @param names
+		 *            the list the names of the header fields are added to
+		 * @param values
+		 *            the list the values of the header fields are added to
+		 * @throws CompressionException
+		 */
+		void decode(byte[] block, int off, int len, List<String> names,
+				List<String> values) throws CompressionException {
+			data = block;
+			position = off;
+			end = off + len;
+			boolean first = true;
+			while (position < end) {
+				int b = data[position] & 0xff;
+				if ((b & 0x80) != 0) {
+					String[] field = field(integer(7));
+					names.add(field[0]);
+					values.add(field[1]);
+				} else if ((b & 0xe0) == 0x20) {
+					// table size updates only come first
+					if (!first) {
+						throw new CompressionException("Misplaced table size update");
+					}
+					int capacity = integer(5);
+					if (capacity > DEFAULT_TABLE_SIZE) {
+						throw new CompressionException("Table size " + capacity
+								+ " over the limit");
+					}
+					table.setCapacity(capacity);
+					continue;
+				} else {
+					boolean indexing = (b & 0x40) != 0;
+					int nameIndex = integer(indexing ? 6 : 4);
+					String name = nameIndex == 0 ? string()
+							: field(nameIndex)[0];
+					String value = string();
+					if (indexing) {
+						table.add(name, value);
+					}
+					names.add(name);
+					values.add(value);
+				}
+				first = false;
+			}
+			data = null;
+		}
+
+		private String[] field(int index) throws CompressionException {
+			if (index > 0 && index <= STATIC_TABLE.length) {
+				return STATIC_TABLE[index - 1];
+			}
+			index -= STATIC_TABLE.length;
+			if (index <= 0 || index > table.length()) {
+				throw new CompressionException("Invalid index");
+			}
+			return table.get(index);
+		}
+
+		/**
+		 * Reads an integer with a prefix of the given number of bits.
+		 */
+		private int integer(int prefix) throws CompressionException {
+			int mask = (1 << prefix) - 1;
+			int value = data[position++] & mask;
+			if (value < mask) {
+				return value;
+			}
+			int shift = 0;
+			int b;
+			do {
+				if (position == end) {
+					throw new CompressionException("Truncated integer");
+				}
+				b = data[position++] & 0xff;
+				value += (b & 0x7f) << shift;
+				shift += 7;
+				if (value > MAX_INTEGER || shift > 28) {
+					throw new CompressionException("Integer too large");
+				}
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+
+		private String string() throws CompressionException {
+			if (position == end) {
+				throw new CompressionException("Truncated string");
+			}
+			boolean huffman = (data[position] & 0x80) != 0;
+			int length = integer(7);
+			if (length > end - position) {
+				throw new CompressionException("Truncated string");
+			}
+			String text;
+			if (huffman) {
+				text = new String(Huffman.decode(data, position, length),
+						ISO_8859_1);
+			} else {
+				text = new String(data, position, length, ISO_8859_1);
+			}
+			position += length;
+			return text;
+		}
+	}
+
+	/**
+	 * Encodes the header blocks sent on a connection.<br>
+	 * Fields whose values change from a response to the next (lengths,
+	 * validators) are sent as literals, the others are added to the dynamic
+	 * table so that the next responses send them as a single index.
+	 */
+	static class Encoder {
+
+		/**
+		 * The fields that are not worth indexing.
+		 */
+		private static Map<String, Boolean> VOLATILE = new HashMap<String, Boolean>();
+		static {
+			for (String name : new String[] { "content-length",
+					"content-range", "date", "etag", "last-modified" }) {
+				VOLATILE.put(name, Boolean.TRUE);
+			}
+		}
+
+		private Table table = new Table();
+
+		/**
+		 * The table size to announce in the next header block, or -1.
+		 */
+		private int sizeUpdate = -1;
+
+		/**
+		 * Sets the largest table size the peer accepts
+		 * (<code>SETTINGS_HEADER_TABLE_SIZE</code>).
+		 */
+		void setMaxTableSize(int maxSize) {
+			int capacity = Math.min(DEFAULT_TABLE_SIZE, maxSize);
+			if (capacity != table.capacity) {
+				table.setCapacity(capacity);
+				sizeUpdate = capacity;
+			}
+		}
+
+		/**
+		 * Encodes a header block.
+		 *
+		 * @param names
+		 *            the names of the header fields, in lower case
+		 * @param values
+		 *            the values of the header fields
+		 * @return the header block
+		 */
+		byte[] encode(List<String> names, List<String> values) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+			if (sizeUpdate != -1) {
+				integer(out, 0x20, 5, sizeUpdate);
+				sizeUpdate = -1;
+			}
+			for (int idx = 0; idx < names.size(); idx++) {
+				String name = names.get(idx);
+				String value = values.get(idx);
+				Integer index = STATIC_FIELDS.get(name + '\0' + value);
+				int nameIndex = 0;
+				int position = 1;
+				for (String[] entry : table.entries) {
+					if (index == null && entry[0].equals(name)) {
+						if (entry[1].equals(value)) {
+							index = STATIC_TABLE.length + position;
+						} else if (nameIndex == 0) {
+							nameIndex = STATIC_TABLE.length + position;
+						}
+					}
+					position++;
+				}
+				if (index != null) {
+					integer(out, 0x80, 7, index);
+					continue;
+				}
+				Integer staticName = STATIC_NAMES.get(name);
+				if (staticName != null) {
+					nameIndex = staticName;
+				}
+				boolean indexing = !VOLATILE.containsKey(name);
+				if (indexing) {
+					integer(out, 0x40, 6, nameIndex);
+					table.add(name, value);
+				} else {
+					integer(out, 0x00, 4, nameIndex);
+				}
+				if (nameIndex == 0) {
+					string(out, name);
+				}
+				string(out, value);
+			}
+			return out.toByteArray();
+		}
+
+		private static void integer(ByteArrayOutputStream out, int flags,
+				int prefix, int value) {
+			int mask = (1 << prefix) - 1;
+			if (value < mask) {
+				out.write(flags | value);
+				return;
+			}
+			out.write(flags | mask);
+			value -= mask;
+			while (value >= 0x80) {
+				out.write((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			out.write(value);
+		}
+
+		private static void string(ByteArrayOutputStream out, String text) {
+			byte[] octets = text.getBytes(ISO_8859_1);
+			int huffmanLength = Huffman.encodedLength(octets);
+			if (huffmanLength < octets.length) {
+				integer(out, 0x80, 7, huffmanLength);
+				Huffman.encode(octets, out);
+			} else {
+				integer(out, 0x00, 7, octets.length);
+				out.write(octets, 0, octets.length);
+			}
+		}
+	}
+}
@@ -0,0 +1,1125 @@
+package ro.dp.serveme.core.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import ro.dp.serveme.core.utils.ConnectionRegistry;
+import ro.dp.serveme.core.utils.HttpResponseCodes;
+
+/**
+ * A connection speaking HTTP/2 over cleartext TCP (h2c, RFC 7540).<br>
+ * The connection is reached either with the HTTP/2 connection preface sent
+ * right away (prior knowledge), or with an HTTP/1.1 request asking to
+ * upgrade to <code>h2c</code>, which becomes the first stream. The thread
+ * that served the connection reads the frames; every request is then
+ * served on a stream of its own, run by the threads of the server, so many
+ * requests share the connection at the same time.<br>
+ * A stream is served by the {@link HttpRequestHandler} like any other
+ * request: the handler writes an HTTP/1.1 response on the output of the
+ * stream, which turns the head into a HEADERS frame (compressed with
+ * {@link Hpack}) and the body into DATA frames. The DATA frames are sent
+ * within the flow control windows granted by the client, and the frames of
+ * all the streams are coalesced in the buffer of the connection.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+class Http2Connection {
+
+	private static Logger log = Logger.getLogger(Http2Connection.class);
+
+	private static Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	/**
+	 * The client connection preface, whose first line is parsed as a
+	 * request (<code>PRI * HTTP/2.0</code>).
+	 */
+	private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n"
+			.getBytes(ISO_8859_1);
+
+	/**
+	 * The length of the part of the preface read as a request head.
+	 */
+	private static final int PREFACE_HEAD_LENGTH = 18;
+
+	/**
+	 * The response accepting an upgrade.
+	 */
+	static final byte[] SWITCHING_PROTOCOLS = ResponseHeaders
+			.bytes("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n");
+
+	// the frame types
+	private static final int DATA = 0x0;
+	private static final int HEADERS = 0x1;
+	private static final int PRIORITY = 0x2;
+	private static final int RST_STREAM = 0x3;
+	private static final int SETTINGS = 0x4;
+	private static final int PUSH_PROMISE = 0x5;
+	private static final int PING = 0x6;
+	private static final int GOAWAY = 0x7;
+	private static final int WINDOW_UPDATE = 0x8;
+	private static final int CONTINUATION = 0x9;
+
+	// the frame flags
+	private static final int END_STREAM = 0x1;
+	private static final int ACK = 0x1;
+	private static final int END_HEADERS = 0x4;
+	private static final int PADDED = 0x8;
+	private static final int PRIORITY_FLAG = 0x20;
+
+	// the settings
+	private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	private static final int SETTINGS_ENABLE_PUSH = 0x2;
+	private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+	private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+	// the error codes
+	private static final int NO_ERROR = 0x0;
+	private static final int PROTOCOL_ERROR = 0x1;
+	private static final int INTERNAL_ERROR = 0x2;
+	private static final int FLOW_CONTROL_ERROR = 0x3;
+	private static final int FRAME_SIZE_ERROR = 0x6;
+	private static final int REFUSED_STREAM = 0x7;
+	private static final int COMPRESSION_ERROR = 0x9;
+	private static final int ENHANCE_YOUR_CALM = 0xb;
+
+	private static final int FRAME_HEADER_LENGTH = 9;
+
+	/**
+	 * The size of the frames, both received and sent (the default of the
+	 * protocol, which every peer accepts).
+	 */
+	private static final int FRAME_SIZE = 16384;
+
+	/**
+	 * The initial size of the flow control windows.
+	 */
+	private static final int DEFAULT_WINDOW = 65535;
+
+	private static final int MAX_WINDOW = Integer.MAX_VALUE;
+
+	/**
+	 * The size of the buffer of the connection output, which holds a couple
+	 * of full frames so that they are sent together.
+	 */
+	static final int OUTPUT_BUFFER_SIZE = 2 * (FRAME_SIZE + FRAME_HEADER_LENGTH);
+
+	/**
+	 * The largest header block accepted (over a HEADERS frame and its
+	 * CONTINUATION frames).
+	 */
+	private static final int MAX_HEADER_BLOCK = 4 * FRAME_SIZE;
+
+	/**
+	 * The largest request head accepted, counted as in
+	 * <code>SETTINGS_MAX_HEADER_LIST_SIZE</code>: the same limit as for the
+	 * HTTP/1.x requests.
+	 */
+	private static final int MAX_HEADER_LIST_SIZE = HttpRequestParser.DEFAULT_BUFFER_SIZE;
+
+	/**
+	 * The headers of an HTTP/1.1 response that do not exist in HTTP/2.
+	 */
+	private static Set<String> CONNECTION_HEADERS = new HashSet<String>(
+			Arrays.asList("connection", "keep-alive", "proxy-connection",
+					"transfer-encoding", "upgrade", "http2-settings", "te"));
+
+	/**
+	 * Thrown when the client breaks the protocol; the connection is closed
+	 * with a GOAWAY frame carrying the error code.
+	 */
+	private static class ConnectionError extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		private int code;
+
+		ConnectionError(int code, String message) {
+			super(message);
+			this.code = code;
+		}
+	}
+
+	/**
+	 * A stream: a request and its response.
+	 */
+	private class Stream extends OutputStream implements Runnable {
+
+		private int id;
+
+		/**
+		 * The request, or <code>null</code> if it is malformed.
+		 */
+		private HttpRequest request;
+
+		/**
+		 * The time (in nanoseconds) spent decoding the request headers.
+		 */
+		private long decodeNanos;
+
+		/**
+		 * The flow control window of the response.
+		 */
+		private long window = initialWindow;
+
+		/**
+		 * Whether the client ended its side of the stream.
+		 */
+		private boolean remoteClosed;
+
+		/**
+		 * Whether the stream was reset by either side.
+		 */
+		private boolean reset;
+
+		/**
+		 * The head of the response written by the handler, until it is
+		 * complete.
+		 */
+		private ByteArrayOutputStream head = new ByteArrayOutputStream(256);
+
+		/**
+		 * The number of bytes of the blank line ending the head matched so
+		 * far.
+		 */
+		private int headEnd = 0;
+
+		/**
+		 * The header fields of the response, parsed from its head and not
+		 * sent yet.
+		 */
+		private List<String> names;
+		private List<String> values;
+
+		private boolean headersSent = false;
+
+		/**
+		 * Whether the handler is done with the response.
+		 */
+		private boolean ending = false;
+
+		Stream(int id, HttpRequest request, long decodeNanos) {
+			this.id = id;
+			this.request = request;
+			this.decodeNanos = decodeNanos;
+		}
+
+		public void run() {
+			ResponseOutput out = new ResponseOutput(this, FRAME_SIZE);
+			try {
+				if (request != null) {
+					handler.serveStream(request, out, host, decodeNanos);
+				} else {
+					handler.sendError(out, HttpResponseCodes.HTTP_BAD_REQUEST,
+							false);
+				}
+				ending = true;
+				out.flush();
+			} catch (Exception e) {
+				if (isReset()) {
+					log.debug("Stream " + id + " was reset: " + e.getMessage());
+				} else {
+					log.error(e.getMessage(), e);
+					cancel(INTERNAL_ERROR);
+				}
+			} finally {
+				closed(this);
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		/**
+		 * Takes the bytes of the HTTP/1.1 response written by the handler:
+		 * the head until it is complete, then the body.
+		 */
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (names == null && len > 0) {
+				byte c = b[off++];
+				len--;
+				head.write(c);
+				headEnd = c == (headEnd % 2 == 0 ? '\r' : '\n') ? headEnd + 1
+						: (c == '\r' ? 1 : 0);
+				if (headEnd == 4) {
+					parseHead();
+				}
+			}
+			if (len > 0) {
+				sendHeaders(false);
+				sendData(this, b, off, len, false);
+			}
+		}
+
+		/**
+		 * Sends what the handler wrote so far, and ends the stream once the
+		 * handler is done.
+		 */
+		@Override
+		public void flush() throws IOException {
+			if (names == null) {
+				if (ending) {
+					throw new IOException("Incomplete response head");
+				}
+				return;
+			}
+			if (ending && !headersSent) {
+				sendHeaders(true);
+			} else {
+				sendHeaders(false);
+				if (ending) {
+					sendData(this, null, 0, 0, true);
+				}
+			}
+			flushOutput();
+		}
+
+		/**
+		 * Turns the head of the response into header fields.
+		 */
+		private void parseHead() throws IOException {
+			String[] lines = new String(head.toByteArray(), ISO_8859_1)
+					.split("\r\n");
+			if (lines.length == 0 || lines[0].length() < 12) {
+				throw new IOException("Invalid status line " + lines[0]);
+			}
+			names = new ArrayList<String>();
+			values = new ArrayList<String>();
+			names.add(":status");
+			values.add(lines[0].substring(9, 12));
+			for (int idx = 1; idx < lines.length; idx++) {
+				int colon = lines[idx].indexOf(':');
+				if (colon <= 0) {
+					continue;
+				}
+				String name = lines[idx].substring(0, colon).trim()
+						.toLowerCase(Locale.ROOT);
+				if (!CONNECTION_HEADERS.contains(name)) {
+					names.add(name);
+					values.add(lines[idx].substring(colon + 1).trim());
+				}
+			}
+			head = null;
+		}
+
+		private void sendHeaders(boolean endStream) throws IOException {
+			if (!headersSent) {
+				headersSent = true;
+				Http2Connection.this.sendHeaders(this, names, values,
+						endStream);
+			}
+		}
+
+		/**
+		 * Resets the stream after an error.
+		 */
+		private void cancel(int code) {
+			try {
+				sendReset(this, code);
+				flushOutput();
+			} catch (IOException e) {
+				log.debug(e.getMessage(), e);
+			}
+		}
+
+		private boolean isReset() {
+			synchronized (Http2Connection.this) {
+				return reset || closed;
+			}
+		}
+	}
+
+	private HttpRequestHandler handler;
+
+	private InputStream in;
+
+	/**
+	 * The output of the connection, shared by the streams.
+	 */
+	private ResponseOutput out;
+
+	/**
+	 * The registry entry of the connection, or <code>null</code>.
+	 */
+	private ConnectionRegistry.Entry entry;
+
+	/**
+	 * The registry of the connections, or <code>null</code>.
+	 */
+	private ConnectionRegistry connections;
+
+	/**
+	 * The address of the client, for the access log.
+	 */
+	private String host;
+
+	private int maxConcurrentStreams;
+
+	private Hpack.Decoder decoder = new Hpack.Decoder();
+
+	/**
+	 * The encoder of the response headers, used while holding the lock of
+	 * the connection (the header blocks are decoded in the order they are
+	 * sent).
+	 */
+	private Hpack.Encoder encoder = new Hpack.Encoder();
+
+	private byte[] frameHeader = new byte[FRAME_HEADER_LENGTH];
+
+	private byte[] payload = new byte[FRAME_SIZE];
+
+	// the state below is guarded by the lock of the connection
+
+	/**
+	 * The open streams, by id.
+	 */
+	private Map<Integer, Stream> streams = new HashMap<Integer, Stream>();
+
+	/**
+	 * The highest stream id opened by the client.
+	 */
+	private int lastStreamId = 0;
+
+	/**
+	 * The flow control window of the connection, for the DATA frames sent.
+	 */
+	private long connectionWindow = DEFAULT_WINDOW;
+
+	/**
+	 * The initial window of the streams, set by the client.
+	 */
+	private int initialWindow = DEFAULT_WINDOW;
+
+	/**
+	 * Whether a GOAWAY frame was sent: no new streams are accepted.
+	 */
+	private boolean goingAway = false;
+
+	/**
+	 * Whether the connection is closing: the streams cannot write any more.
+	 */
+	private boolean closed = false;
+
+	/**
+	 * Constructs an HTTP/2 connection.
+	 *
+	 * @param handler
+	 *            the handler serving the streams
+	 * @param in
+	 *            the input of the connection, after the request head that
+	 *            started HTTP/2
+	 * @param out
+	 *            the output of the connection
+	 * @param entry
+	 *            the registry entry of the connection, or <code>null</code>
+	 * @param connections
+	 *            the registry of the connections, or <code>null</code>
+	 * @param host
+	 *            the address of the client
+	 * @param maxConcurrentStreams
+	 *            the number of streams served at the same time
+	 */
+	Http2Connection(HttpRequestHandler handler, InputStream in,
+			ResponseOutput out, ConnectionRegistry.Entry entry,
+			ConnectionRegistry connections, String host,
+			int maxConcurrentStreams) {
+		this.handler = handler;
+		this.in = in;
+		this.out = out;
+		this.entry = entry;
+		this.connections = connections;
+		this.host = host;
+		this.maxConcurrentStreams = maxConcurrentStreams;
+	}
+
+	/**
+	 * Checks whether a request head is the start of the HTTP/2 connection
+	 * preface.
+	 */
+	static boolean isPreface(HttpRequest request) {
+		return request.isMethod("PRI") && request.getUri().equals("*")
+				&& request.getVersion().equals("HTTP/2.0")
+				&& request.getHeaderCount() == 0;
+	}
+
+	/**
+	 * Checks whether a request asks to upgrade the connection to h2c. The
+	 * requests with a body are served over HTTP/1.1, as their body would
+	 * have to be read first.
+	 */
+	static boolean isUpgrade(HttpRequest request) {
+		return request.isHttp11() && request.hasHeaderToken("Upgrade", "h2c")
+				&& request.hasHeaderToken("Connection", "http2-settings")
+				&& !request.hasBody()
+				&& upgradeSettings(request) != null;
+	}
+
+	/**
+	 * Decodes the <code>HTTP2-Settings</code> header of an upgrade request.
+	 *
+	 * @return the payload of the settings, or <code>null</code> if the header
+	 *         is missing or invalid
+	 */
+	private static byte[] upgradeSettings(HttpRequest request) {
+		String settings = request.getHeader("HTTP2-Settings");
+		if (settings == null) {
+			return null;
+		}
+		try {
+			byte[] payload = Base64.getUrlDecoder().decode(settings.trim());
+			return payload.length % 6 == 0 ? payload : null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Serves the connection until the client closes it, it stays idle for
+	 * the socket timeout, or the server stops.
+	 *
+	 * @param upgraded
+	 *            the request that upgraded the connection to h2c (served
+	 *            as stream 1), or <code>null</code> if the client started
+	 *            with the connection preface
+	 */
+	void serve(HttpRequest upgraded) {
+		int code = NO_ERROR;
+		boolean broken = false;
+		try {
+			sendSettings();
+			if (upgraded != null) {
+				byte[] settings = upgradeSettings(upgraded);
+				applySettings(settings, 0, settings.length);
+				lastStreamId = 1;
+				Stream first = new Stream(1, copy(upgraded), 0);
+				first.remoteClosed = true;
+				open(first);
+			}
+			flushOutput();
+			readPreface(upgraded != null ? 0 : PREFACE_HEAD_LENGTH);
+			if (readFrame() != SETTINGS) {
+				throw new ConnectionError(PROTOCOL_ERROR,
+						"The preface does not end with SETTINGS");
+			}
+			updateState();
+			// after a GOAWAY the streams still running need the window
+			// updates of the client
+			while (readFrame() != GOAWAY || activeStreams() > 0) {
+				updateState();
+			}
+		} catch (ConnectionError e) {
+			log.debug("HTTP/2 error from " + host + ": " + e.getMessage());
+			code = e.code;
+		} catch (SocketTimeoutException e) {
+			log.debug("Closing idle HTTP/2 connection from " + host);
+		} catch (Hpack.CompressionException e) {
+			log.debug("HTTP/2 compression error from " + host + ": "
+					+ e.getMessage());
+			code = COMPRESSION_ERROR;
+		} catch (IOException e) {
+			// closed by the client, or by the registry
+			log.debug("HTTP/2 connection from " + host + " closed: "
+					+ e.getMessage());
+			broken = true;
+		} finally {
+			if (!broken) {
+				try {
+					goAway(code);
+					flushOutput();
+				} catch (IOException e) {
+					log.debug(e.getMessage(), e);
+				}
+			}
+			awaitStreams(broken);
+		}
+	}
+
+	/**
+	 * Copies the request that upgraded the connection into a request of its
+	 * own, without the headers of the upgrade.
+	 */
+	private static HttpRequest copy(HttpRequest upgraded) {
+		List<String> names = new ArrayList<String>();
+		List<String> values = new ArrayList<String>();
+		for (int idx = 0; idx < upgraded.getHeaderCount(); idx++) {
+			String name = upgraded.getHeaderName(idx);
+			if (!CONNECTION_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+				names.add(name);
+				values.add(upgraded.getHeaderValue(idx));
+			}
+		}
+		HttpRequest request = new HttpRequest();
+		request.set(upgraded.getMethod(), upgraded.getUri(), "HTTP/2.0",
+				names, values);
+		return request;
+	}
+
+	private void readPreface(int offset) throws IOException {
+		byte[] preface = new byte[PREFACE.length - offset];
+		readFully(preface, 0, preface.length, true);
+		for (int idx = 0; idx < preface.length; idx++) {
+			if (preface[idx] != PREFACE[offset + idx]) {
+				throw new ConnectionError(PROTOCOL_ERROR, "Invalid preface");
+			}
+		}
+	}
+
+	/**
+	 * Reads and handles a frame.
+	 *
+	 * @return the type of the frame
+	 * @throws IOException
+	 */
+	private int readFrame() throws IOException {
+		readFully(frameHeader, 0, FRAME_HEADER_LENGTH, true);
+		int length = ((frameHeader[0] & 0xff) << 16)
+				| ((frameHeader[1] & 0xff) << 8) | (frameHeader[2] & 0xff);
+		int type = frameHeader[3] & 0xff;
+		int flags = frameHeader[4] & 0xff;
+		int streamId = readInt(frameHeader, 5) & 0x7fffffff;
+		if (length > FRAME_SIZE) {
+			throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of " + length
+					+ " bytes");
+		}
+		readFully(payload, 0, length, false);
+		switch (type) {
+		case DATA:
+			onData(streamId, flags, length);
+			break;
+		case HEADERS:
+			onHeaders(streamId, flags, length);
+			break;
+		case PRIORITY:
+			if (length != 5) {
+				throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid PRIORITY");
+			}
+			break;
+		case RST_STREAM:
+			if (length != 4 || streamId == 0) {
+				throw new ConnectionError(PROTOCOL_ERROR, "Invalid RST_STREAM");
+			}
+			onReset(streamId);
+			break;
+		case SETTINGS:
+			if (streamId != 0) {
+				throw new ConnectionError(PROTOCOL_ERROR, "Invalid SETTINGS");
+			}
+			if ((flags & ACK) == 0) {
+				applySettings(payload, 0, length);
+				writeFrame(SETTINGS, ACK, 0, null, 0, 0);
+			} else if (length != 0) {
+				throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid SETTINGS");
+			}
+			break;
+		case PING:
+			if (length != 8 || streamId != 0) {
+				throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid PING");
+			}
+			if ((flags & ACK) == 0) {
+				writeFrame(PING, ACK, 0, payload, 0, 8);
+			}
+			break;
+		case GOAWAY:
+			log.debug("HTTP/2 connection from " + host + " going away");
+			break;
+		case WINDOW_UPDATE:
+			if (length != 4) {
+				throw new ConnectionError(FRAME_SIZE_ERROR,
+						"Invalid WINDOW_UPDATE");
+			}
+			onWindowUpdate(streamId, readInt(payload, 0) & 0x7fffffff);
+			break;
+		case PUSH_PROMISE:
+		case CONTINUATION:
+			throw new ConnectionError(PROTOCOL_ERROR, "Unexpected frame "
+					+ type);
+		default:
+			// unknown frames are ignored
+		}
+		if (in.available() == 0) {
+			flushOutput();
+		}
+		return type;
+	}
+
+	/**
+	 * Reads bytes of a frame. The socket timeout only ends the connection
+	 * between two frames, and only when it serves no streams.
+	 *
+	 * @param start
+	 *            whether the bytes start a frame
+	 */
+	private void readFully(byte[] buffer, int off, int len, boolean start)
+			throws IOException {
+		int read = 0;
+		while (read < len) {
+			int count;
+			try {
+				count = in.read(buffer, off + read, len - read);
+			} catch (SocketTimeoutException e) {
+				if (start && read == 0 && activeStreams() == 0) {
+					throw e;
+				}
+				continue;
+			}
+			if (count < 0) {
+				throw new EOFException();
+			}
+			read += count;
+		}
+	}
+
+	private void onData(int streamId, int flags, int length) throws IOException {
+		if (streamId == 0 || streamId > lastStreamId) {
+			throw new ConnectionError(PROTOCOL_ERROR, "DATA on stream "
+					+ streamId);
+		}
+		// the bodies are not read, their flow control credit is given back
+		// right away
+		if (length > 0) {
+			byte[] increment = new byte[4];
+			writeInt(increment, 0, length);
+			writeFrame(WINDOW_UPDATE, 0, 0, increment, 0, 4);
+		}
+		if ((flags & END_STREAM) != 0) {
+			synchronized (this) {
+				Stream stream = streams.get(streamId);
+				if (stream != null) {
+					stream.remoteClosed = true;
+				}
+			}
+		}
+	}
+
+	private void onHeaders(int streamId, int flags, int length)
+			throws IOException {
+		int off = 0;
+		int padding = 0;
+		if ((flags & PADDED) != 0) {
+			if (length < 1) {
+				throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid padding");
+			}
+			padding = payload[0] & 0xff;
+			off = 1;
+		}
+		if ((flags & PRIORITY_FLAG) != 0) {
+			off += 5;
+		}
+		if (off + padding > length) {
+			throw new ConnectionError(PROTOCOL_ERROR, "Invalid padding");
+		}
+		ByteArrayOutputStream block = new ByteArrayOutputStream(length);
+		block.write(payload, off, length - off - padding);
+		// the header block continues in CONTINUATION frames
+		while ((flags & END_HEADERS) == 0) {
+			readFully(frameHeader, 0, FRAME_HEADER_LENGTH, false);
+			int continued = ((frameHeader[0] & 0xff) << 16)
+					| ((frameHeader[1] & 0xff) << 8) | (frameHeader[2] & 0xff);
+			flags = frameHeader[4] & 0xff;
+			if ((frameHeader[3] & 0xff) != CONTINUATION
+					|| (readInt(frameHeader, 5) & 0x7fffffff) != streamId) {
+				throw new ConnectionError(PROTOCOL_ERROR,
+						"Expected CONTINUATION");
+			}
+			if (continued > FRAME_SIZE
+					|| block.size() + continued > MAX_HEADER_BLOCK) {
+				throw new ConnectionError(ENHANCE_YOUR_CALM,
+						"Header block too large");
+			}
+			readFully(payload, 0, continued, false);
+			block.write(payload, 0, continued);
+		}
+		long started = System.nanoTime();
+		List<String> names = new ArrayList<String>();
+		List<String> values = new ArrayList<String>();
+		byte[] bytes = block.toByteArray();
+		decoder.decode(bytes, 0, bytes.length, names, values);
+		if (streamId <= lastStreamId) {
+			// trailers (the bodies are not read anyway)
+			if (streamId == 0 || (streamId & 1) == 0) {
+				throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream "
+						+ streamId);
+			}
+			return;
+		}
+		if ((streamId & 1) == 0) {
+			throw new ConnectionError(PROTOCOL_ERROR, "Even stream id "
+					+ streamId);
+		}
+		lastStreamId = streamId;
+		Stream stream = new Stream(streamId, request(names, values),
+				System.nanoTime() - started);
+		stream.remoteClosed = (flags & END_STREAM) != 0;
+		synchronized (this) {
+			if (goingAway || streams.size() >= maxConcurrentStreams) {
+				sendReset(stream, REFUSED_STREAM);
+				return;
+			}
+		}
+		open(stream);
+	}
+
+	/**
+	 * Builds the request of a stream from its header fields.
+	 *
+	 * @return the request, or <code>null</code> if it is malformed or too
+	 *         large
+	 */
+	private static HttpRequest request(List<String> names, List<String> values) {
+		String method = null;
+		String path = null;
+		String authority = null;
+		List<String> headerNames = new ArrayList<String>();
+		List<String> headerValues = new ArrayList<String>();
+		int size = 0;
+		for (int idx = 0; idx < names.size(); idx++) {
+			String name = names.get(idx);
+			String value = values.get(idx);
+			size += name.length() + value.length() + 32;
+			if (name.equals(":method")) {
+				method = value;
+			} else if (name.equals(":path")) {
+				path = value;
+			} else if (name.equals(":authority")) {
+				authority = value;
+			} else if (!name.startsWith(":")) {
+				headerNames.add(name);
+				headerValues.add(value);
+			}
+		}
+		if (method == null || path == null || path.length() == 0
+				|| size > MAX_HEADER_LIST_SIZE) {
+			return null;
+		}
+		if (authority != null && !headerNames.contains("host")) {
+			headerNames.add(0, "host");
+			headerValues.add(0, authority);
+		}
+		HttpRequest request = new HttpRequest();
+		request.set(method, path, "HTTP/2.0", headerNames, headerValues);
+		return request;
+	}
+
+	/**
+	 * Registers a stream and hands it to the threads of the server.
+	 */
+	private void open(Stream stream) throws IOException {
+		synchronized (this) {
+			streams.put(stream.id, stream);
+			if (entry != null) {
+				entry.setState(ConnectionRegistry.State.PROCESSING);
+			}
+		}
+		if (!handler.dispatchStream(stream)) {
+			synchronized (this) {
+				streams.remove(stream.id);
+			}
+			sendReset(stream, REFUSED_STREAM);
+		}
+	}
+
+	/**
+	 * Called when a stream is done with its response.
+	 */
+	private void closed(Stream stream) {
+		try {
+			synchronized (this) {
+				streams.remove(stream.id);
+				notifyAll();
+				if (!stream.remoteClosed && !stream.reset && !closed) {
+					// the request body is not wanted
+					sendReset(stream, NO_ERROR);
+				}
+			}
+			flushOutput();
+		} catch (IOException e) {
+			log.debug(e.getMessage(), e);
+		}
+		updateState();
+	}
+
+	private void onReset(int streamId) {
+		synchronized (this) {
+			Stream stream = streams.get(streamId);
+			if (stream != null) {
+				stream.reset = true;
+				notifyAll();
+			}
+		}
+	}
+
+	private void onWindowUpdate(int streamId, int increment)
+			throws IOException {
+		synchronized (this) {
+			if (streamId == 0) {
+				if (increment == 0) {
+					throw new ConnectionError(PROTOCOL_ERROR,
+							"Empty window update");
+				}
+				connectionWindow += increment;
+				if (connectionWindow > MAX_WINDOW) {
+					throw new ConnectionError(FLOW_CONTROL_ERROR,
+							"Window overflow");
+				}
+			} else {
+				Stream stream = streams.get(streamId);
+				if (stream == null) {
+					return;
+				}
+				if (increment == 0 || stream.window + increment > MAX_WINDOW) {
+					stream.reset = true;
+					sendReset(stream, increment == 0 ? PROTOCOL_ERROR
+							: FLOW_CONTROL_ERROR);
+				}
+				stream.window += increment;
+			}
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Applies the settings of the client.
+	 */
+	private void applySettings(byte[] settings, int off, int length)
+			throws IOException {
+		if (length % 6 != 0) {
+			throw new ConnectionError(FRAME_SIZE_ERROR, "Invalid SETTINGS");
+		}
+		synchronized (this) {
+			for (int pos = off; pos < off + length; pos += 6) {
+				int id = ((settings[pos] & 0xff) << 8)
+						| (settings[pos + 1] & 0xff);
+				long value = readInt(settings, pos + 2) & 0xffffffffL;
+				switch (id) {
+				case SETTINGS_HEADER_TABLE_SIZE:
+					encoder.setMaxTableSize((int) Math.min(value,
+							Integer.MAX_VALUE));
+					break;
+				case SETTINGS_ENABLE_PUSH:
+					if (value > 1) {
+						throw new ConnectionError(PROTOCOL_ERROR,
+								"Invalid ENABLE_PUSH");
+					}
+					break;
+				case SETTINGS_INITIAL_WINDOW_SIZE:
+					if (value > MAX_WINDOW) {
+						throw new ConnectionError(FLOW_CONTROL_ERROR,
+								"Invalid INITIAL_WINDOW_SIZE");
+					}
+					// the open streams take the difference
+					long delta = value - initialWindow;
+					for (Stream stream : streams.values()) {
+						stream.window += delta;
+					}
+					initialWindow = (int) value;
+					notifyAll();
+					break;
+				case SETTINGS_MAX_FRAME_SIZE:
+					// the frames sent keep the default size
+					if (value < FRAME_SIZE || value > 0xffffff) {
+						throw new ConnectionError(PROTOCOL_ERROR,
+								"Invalid MAX_FRAME_SIZE");
+					}
+					break;
+				default:
+					// the other settings do not change what is sent
+				}
+			}
+		}
+	}
+
+	private void sendSettings() throws IOException {
+		byte[] settings = new byte[12];
+		settings[1] = SETTINGS_MAX_CONCURRENT_STREAMS;
+		writeInt(settings, 2, maxConcurrentStreams);
+		settings[7] = SETTINGS_MAX_HEADER_LIST_SIZE;
+		writeInt(settings, 8, MAX_HEADER_LIST_SIZE);
+		writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+	}
+
+	/**
+	 * Sends the head of a response, in a HEADERS frame followed by as many
+	 * CONTINUATION frames as needed.
+	 */
+	private synchronized void sendHeaders(Stream stream, List<String> names,
+			List<String> values, boolean endStream) throws IOException {
+		if (stream.reset || closed) {
+			throw new IOException("Stream " + stream.id + " was reset");
+		}
+		byte[] block = encoder.encode(names, values);
+		int off = 0;
+		int type = HEADERS;
+		do {
+			int length = Math.min(FRAME_SIZE, block.length - off);
+			int flags = off + length == block.length ? END_HEADERS : 0;
+			if (type == HEADERS && endStream) {
+				flags |= END_STREAM;
+			}
+			writeFrame(type, flags, stream.id, block, off, length);
+			off += length;
+			type = CONTINUATION;
+		} while (off < block.length);
+	}
+
+	/**
+	 * Sends body bytes of a response, waiting for the flow control windows
+	 * to open as needed.
+	 *
+	 * @param endStream
+	 *            whether the bytes end the response
+	 */
+	private synchronized void sendData(Stream stream, byte[] b, int off,
+			int len, boolean endStream) throws IOException {
+		do {
+			while (!closed && !stream.reset && len > 0
+					&& (connectionWindow <= 0 || stream.window <= 0)) {
+				// the client needs what is buffered to grant more
+				out.flush();
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+			if (closed || stream.reset) {
+				throw new IOException("Stream " + stream.id + " was reset");
+			}
+			int length = (int) Math.min(Math.min(len, FRAME_SIZE), Math.min(
+					connectionWindow, stream.window));
+			connectionWindow -= length;
+			stream.window -= length;
+			writeFrame(DATA, endStream && length == len ? END_STREAM : 0,
+					stream.id, b, off, length);
+			off += length;
+			len -= length;
+		} while (len > 0);
+	}
+
+	private synchronized void sendReset(Stream stream, int code)
+			throws IOException {
+		stream.reset = true;
+		byte[] error = new byte[4];
+		writeInt(error, 0, code);
+		writeFrame(RST_STREAM, 0, stream.id, error, 0, 4);
+	}
+
+	/**
+	 * Sends a GOAWAY frame (once): the streams opened so far are still
+	 * served, no other stream is accepted.
+	 */
+	private synchronized void goAway(int code) throws IOException {
+		if (goingAway) {
+			return;
+		}
+		goingAway = true;
+		byte[] frame = new byte[8];
+		writeInt(frame, 0, lastStreamId);
+		writeInt(frame, 4, code);
+		writeFrame(GOAWAY, 0, 0, frame, 0, 8);
+		if (code != NO_ERROR) {
+			closed = true;
+			notifyAll();
+		}
+	}
+
+	private synchronized void writeFrame(int type, int flags, int streamId,
+			byte[] b, int off, int len) throws IOException {
+		byte[] header = new byte[FRAME_HEADER_LENGTH];
+		header[0] = (byte) (len >>> 16);
+		header[1] = (byte) (len >>> 8);
+		header[2] = (byte) len;
+		header[3] = (byte) type;
+		header[4] = (byte) flags;
+		writeInt(header, 5, streamId);
+		out.write(header);
+		if (len > 0) {
+			out.write(b, off, len);
+		}
+	}
+
+	private synchronized void flushOutput() throws IOException {
+		out.flush();
+	}
+
+	private synchronized int activeStreams() {
+		return streams.size();
+	}
+
+	/**
+	 * Records the state of the connection in the registry: idle when it
+	 * serves no streams. When the server stops, the client is told to go
+	 * away first.
+	 */
+	private synchronized void updateState() {
+		if (entry == null || !streams.isEmpty()) {
+			return;
+		}
+		if (connections != null && connections.isDraining()) {
+			try {
+				goAway(NO_ERROR);
+				flushOutput();
+			} catch (IOException e) {
+				log.debug(e.getMessage(), e);
+			}
+		}
+		entry.setState(ConnectionRegistry.State.IDLE);
+	}
+
+	/**
+	 * Waits for the streams still running to finish.
+	 *
+	 * @param broken
+	 *            whether the connection is broken, in which case the streams
+	 *            fail at their next write
+	 */
+	private synchronized void awaitStreams(boolean broken) {
+		if (broken) {
+			closed = true;
+			notifyAll();
+		}
+		while (!streams.isEmpty()) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				closed = true;
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		closed = true;
+		notifyAll();
+	}
+
+	private static int readInt(byte[] b, int off) {
+		return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16)
+				| ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+	}
+
+	private static void writeInt(byte[] b, int off, int value) {
+		b[off] = (byte) (value >>> 24);
+		b[off + 1] = (byte) (value >>> 16);
+		b[off + 2] = (byte) (value >>> 8);
+		b[off + 3] = (byte) value;
+	}
+}
@@ -0,0 +1,510 @@
+package ro.dp.serveme.core.impl;
+
+import java.util.List;
+
+import ro.dp.serveme.core.Request;
+
+/**
+ * A parsed HTTP request head.<br>
+ * The request does not copy anything: it holds the offsets of the method,
+ * URI, version and headers inside the buffer of the
+ * {@link HttpRequestParser} that parsed it, and compares them byte by byte.
+ * Strings are only created when they are asked for. A request is reused by
+ * its parser, so it is only valid until the parser reads the next request.<br>
+ * The requests of the HTTP/2 streams are laid out in a buffer of their own
+ * (see {@link #set}).
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+public class HttpRequest implements Request {
+
+	/**
+	 * The maximum number of headers kept per request. Further headers are
+	 * ignored.
+	 */
+	static final int MAX_HEADERS = 64;
+
+	/**
+	 * The buffer holding the request head.
+	 */
+	byte[] buffer;
+
+	int methodStart, methodEnd;
+	int uriStart, uriEnd;
+	int versionStart, versionEnd;
+
+	int headerCount = 0;
+	int[] nameStart = new int[MAX_HEADERS];
+	int[] nameEnd = new int[MAX_HEADERS];
+	int[] valueStart = new int[MAX_HEADERS];
+	int[] valueEnd = new int[MAX_HEADERS];
+
+	/**
+	 * The URI, created on demand.
+	 */
+	private String uri = null;
+
+	/**
+	 * The decoded segments of the path, split on demand.
+	 */
+	private List<String> segments = null;
+	private boolean split = false;
+
+	/**
+	 * Clears the request before a new one is parsed into it.
+	 */
+	void reset(byte[] buffer) {
+		this.buffer = buffer;
+		headerCount = 0;
+		uri = null;
+		segments = null;
+		split = false;
+	}
+
+	/**
+	 * Fills the request from the header fields of an HTTP/2 stream. The
+	 * fields are laid out in a buffer of their own, the way a request line
+	 * and headers would be, so that the request is answered the same way
+	 * whatever protocol it came with.
+	 *
+	 * @param method
+	 *            the method
+	 * @param uri
+	 *            the request URI
+	 * @param version
+	 *            the protocol version (<code>HTTP/2.0</code>)
+	 * @param names
+	 *            the names of the headers
+	 * @param values
+	 *            the values of the headers
+	 */
+	void set(String method, String uri, String version, List<String> names,
+			List<String> values) {
+		int count = Math.min(names.size(), MAX_HEADERS);
+		int length = method.length() + uri.length() + version.length() + 2;
+		for (int idx = 0; idx < count; idx++) {
+			length += names.get(idx).length() + values.get(idx).length();
+		}
+		reset(new byte[length]);
+		int pos = 0;
+		methodStart = pos;
+		pos = copy(method, pos);
+		methodEnd = pos;
+		uriStart = ++pos;
+		pos = copy(uri, pos);
+		uriEnd = pos;
+		versionStart = ++pos;
+		pos = copy(version, pos);
+		versionEnd = pos;
+		for (int idx = 0; idx < count; idx++) {
+			nameStart[idx] = pos;
+			pos = copy(names.get(idx), pos);
+			nameEnd[idx] = pos;
+			valueStart[idx] = pos;
+			pos = copy(values.get(idx), pos);
+			valueEnd[idx] = pos;
+		}
+		headerCount = count;
+	}
+
+	/**
+	 * Copies an ISO-8859-1 string into the buffer.
+	 *
+	 * @return the position after the string
+	 */
+	private int copy(String text, int pos) {
+		for (int idx = 0; idx < text.length(); idx++) {
+			buffer[pos++] = (byte) text.charAt(idx);
+		}
+		return pos;
+	}
+
+	/**
+	 * Moves all the offsets of the request (when the parser compacts its
+	 * buffer).
+	 */
+	void shift(int delta) {
+		methodStart -= delta;
+		methodEnd -= delta;
+		uriStart -= delta;
+		uriEnd -= delta;
+		versionStart -= delta;
+		versionEnd -= delta;
+		for (int idx = 0; idx < headerCount; idx++) {
+			nameStart[idx] -= delta;
+			nameEnd[idx] -= delta;
+			valueStart[idx] -= delta;
+			valueEnd[idx] -= delta;
+		}
+	}
+
+	/**
+	 * Checks the request method.
+	 *
+	 * @param method
+	 *            the method, in upper case (e.g. <code>GET</code>)
+	 */
+	public boolean isMethod(String method) {
+		return equals(methodStart, methodEnd, method, false);
+	}
+
+	/**
+	 * Returns the request method.
+	 */
+	public String getMethod() {
+		return string(methodStart, methodEnd);
+	}
+
+	/**
+	 * Returns the request URI, as sent by the client.
+	 */
+	public String getUri() {
+		if (uri == null) {
+			uri = string(uriStart, uriEnd);
+		}
+		return uri;
+	}
+
+	/**
+	 * Returns the path of the request URI (without the query string).
+	 */
+	public String getPath() {
+		String uri = getUri();
+		int query = uri.indexOf('?');
+		return query == -1 ? uri : uri.substring(0, query);
+	}
+
+	/**
+	 * Returns the decoded segments of the path, split once per request (see
+	 * {@link RequestPaths#segments(String)}).
+	 *
+	 * @return the segments, or <code>null</code> if the path is malformed
+	 *         or leads out of the document root
+	 */
+	List<String> getSegments() {
+		if (!split) {
+			segments = RequestPaths.segments(getPath());
+			split = true;
+		}
+		return segments;
+	}
+
+	/**
+	 * Returns the query string of the request URI, or <code>null</code> if
+	 * there is none.
+	 */
+	public String getQuery() {
+		String uri = getUri();
+		int query = uri.indexOf('?');
+		return query == -1 ? null : uri.substring(query + 1);
+	}
+
+	/**
+	 * Returns the protocol version (e.g. <code>HTTP/1.1</code>).
+	 */
+	public String getVersion() {
+		return string(versionStart, versionEnd);
+	}
+
+	/**
+	 * Checks whether the request was sent with HTTP/1.1 (or a later 1.x
+	 * version).
+	 */
+	public boolean isHttp11() {
+		return versionEnd - versionStart == 8
+				&& equals(versionStart, versionStart + 7, "HTTP/1.", false)
+				&& buffer[versionStart + 7] >= '1'
+				&& buffer[versionStart + 7] <= '9';
+	}
+
+	/**
+	 * Checks whether the client asked for the connection to stay open: by
+	 * default for HTTP/1.1, with <code>Connection: keep-alive</code> for
+	 * HTTP/1.0.
+	 */
+	public boolean isKeepAlive() {
+		if (isHttp11()) {
+			return !hasHeaderToken("Connection", "close");
+		}
+		return hasHeaderToken("Connection", "keep-alive");
+	}
+
+	/**
+	 * Checks whether the request announces a body.
+	 */
+	public boolean hasBody() {
+		return getHeaderIndex("Transfer-Encoding") != -1
+				|| getContentLength() > 0;
+	}
+
+	/**
+	 * Returns the value of the <code>Content-Length</code> header, or -1 if
+	 * the header is missing or invalid.
+	 */
+	public long getContentLength() {
+		int idx = getHeaderIndex("Content-Length");
+		if (idx == -1 || valueStart[idx] == valueEnd[idx]) {
+			return -1;
+		}
+		long length = 0;
+		for (int pos = valueStart[idx]; pos < valueEnd[idx]; pos++) {
+			byte b = buffer[pos];
+			if (b < '0' || b > '9' || length > Long.MAX_VALUE / 10) {
+				return -1;
+			}
+			length = length * 10 + (b - '0');
+		}
+		return length;
+	}
+
+	/**
+	 * Returns the number of headers.
+	 */
+	public int getHeaderCount() {
+		return headerCount;
+	}
+
+	/**
+	 * Returns the name of a header.
+	 *
+	 * @param idx
+	 *            the index of the header
+	 */
+	public String getHeaderName(int idx) {
+		return string(nameStart[idx], nameEnd[idx]);
+	}
+
+	/**
+	 * Returns the value of a header.
+	 *
+	 * @param idx
+	 *            the index of the header
+	 */
+	public String getHeaderValue(int idx) {
+		return string(valueStart[idx], valueEnd[idx]);
+	}
+
+	/**
+	 * Returns the index of the first header with the specified name, or -1 if
+	 * there is no such header.
+	 *
+	 * @param name
+	 *            the header name (case insensitive)
+	 */
+	public int getHeaderIndex(String name) {
+		for (int idx = 0; idx < headerCount; idx++) {
+			if (equals(nameStart[idx], nameEnd[idx], name, true)) {
+				return idx;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the value of the first header with the specified name.
+	 *
+	 * @param name
+	 *            the header name (case insensitive)
+	 * @return the value, or <code>null</code> if there is no such header
+	 */
+	public String getHeader(String name) {
+		int idx = getHeaderIndex(name);
+		return idx == -1 ? null : getHeaderValue(idx);
+	}
+
+	/**
+	 * Checks whether a header contains a token, e.g. <code>close</code> in
+	 * <code>Connection: close</code>.
+	 *
+	 * @param name
+	 *            the header name (case insensitive)
+	 * @param token
+	 *            the token, in lower case (matched case insensitively)
+	 */
+	public boolean hasHeaderToken(String name, String token) {
+		for (int idx = 0; idx < headerCount; idx++) {
+			if (equals(nameStart[idx], nameEnd[idx], name, true)
+					&& containsToken(valueStart[idx], valueEnd[idx], token)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether the client accepts a content coding, i.e. whether the
+	 * <code>Accept-Encoding</code> header lists it (or <code>*</code>) with a
+	 * quality other than 0.
+	 *
+	 * @param coding
+	 *            the content coding, in lower case (e.g. <code>gzip</code>)
+	 */
+	public boolean acceptsEncoding(String coding) {
+		boolean accepted = false;
+		for (int idx = 0; idx < headerCount; idx++) {
+			if (!equals(nameStart[idx], nameEnd[idx], "Accept-Encoding", true)) {
+				continue;
+			}
+			int pos = valueStart[idx];
+			int end = valueEnd[idx];
+			while (pos < end) {
+				while (pos < end
+						&& (buffer[pos] == ',' || buffer[pos] == ' ' || buffer[pos] == '\t')) {
+					pos++;
+				}
+				int tokenStart = pos;
+				while (pos < end && buffer[pos] != ',' && buffer[pos] != ';') {
+					pos++;
+				}
+				int tokenEnd = pos;
+				while (tokenEnd > tokenStart
+						&& (buffer[tokenEnd - 1] == ' ' || buffer[tokenEnd - 1] == '\t')) {
+					tokenEnd--;
+				}
+				int paramsStart = pos;
+				while (pos < end && buffer[pos] != ',') {
+					pos++;
+				}
+				boolean refused = isZeroQuality(paramsStart, pos);
+				if (equals(tokenStart, tokenEnd, coding, true)) {
+					// an explicit entry wins over "*"
+					return !refused;
+				}
+				if (equals(tokenStart, tokenEnd, "*", false)) {
+					accepted = !refused;
+				}
+			}
+		}
+		return accepted;
+	}
+
+	/**
+	 * Checks whether the parameters in [start, end) (e.g.
+	 * <code>;q=0.0</code>) set the quality to 0.
+	 */
+	private boolean isZeroQuality(int start, int end) {
+		for (int pos = start; pos < end - 1; pos++) {
+			if ((buffer[pos] == 'q' || buffer[pos] == 'Q')
+					&& buffer[pos + 1] == '=') {
+				pos += 2;
+				while (pos < end && (buffer[pos] == '0' || buffer[pos] == '.')) {
+					pos++;
+				}
+				return pos == end || buffer[pos] == ' ' || buffer[pos] == ';'
+						|| buffer[pos] == '\t';
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether a header lists an entity tag, e.g. in
+	 * <code>If-None-Match: "1a2b-3c", W/"4d-5e"</code>. The weak comparison
+	 * is used (the <code>W/</code> prefix is ignored) and <code>*</code>
+	 * matches any entity tag.
+	 *
+	 * @param name
+	 *            the header name (case insensitive)
+	 * @param entityTag
+	 *            the entity tag, with its quotes
+	 */
+	public boolean matchesEntityTag(String name, String entityTag) {
+		for (int idx = 0; idx < headerCount; idx++) {
+			if (!equals(nameStart[idx], nameEnd[idx], name, true)) {
+				continue;
+			}
+			int pos = valueStart[idx];
+			int end = valueEnd[idx];
+			while (pos < end) {
+				while (pos < end
+						&& (buffer[pos] == ',' || buffer[pos] == ' ' || buffer[pos] == '\t')) {
+					pos++;
+				}
+				if (end - pos >= 2 && buffer[pos] == 'W' && buffer[pos + 1] == '/') {
+					pos += 2;
+				}
+				int tagStart = pos;
+				while (pos < end && buffer[pos] != ',') {
+					pos++;
+				}
+				int tagEnd = pos;
+				while (tagEnd > tagStart
+						&& (buffer[tagEnd - 1] == ' ' || buffer[tagEnd - 1] == '\t')) {
+					tagEnd--;
+				}
+				if (equals(tagStart, tagEnd, "*", false)
+						|| equals(tagStart, tagEnd, entityTag, false)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether the comma separated list in [start, end) contains a
+	 * token.
+	 */
+	private boolean containsToken(int start, int end, String token) {
+		int pos = start;
+		while (pos < end) {
+			// skipping separators and white space
+			while (pos < end
+					&& (buffer[pos] == ',' || buffer[pos] == ' ' || buffer[pos] == '\t')) {
+				pos++;
+			}
+			int tokenStart = pos;
+			while (pos < end && buffer[pos] != ',') {
+				pos++;
+			}
+			int tokenEnd = pos;
+			// parameters (";q=0.5") are not part of the token
+			for (int semi = tokenStart; semi < tokenEnd; semi++) {
+				if (buffer[semi] == ';') {
+					tokenEnd = semi;
+					break;
+				}
+			}
+			while (tokenEnd > tokenStart
+					&& (buffer[tokenEnd - 1] == ' ' || buffer[tokenEnd - 1] == '\t')) {
+				tokenEnd--;
+			}
+			if (equals(tokenStart, tokenEnd, token, true)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Compares the bytes in [start, end) with an ASCII string.
+	 */
+	private boolean equals(int start, int end, String text, boolean ignoreCase) {
+		if (end - start != text.length()) {
+			return false;
+		}
+		for (int idx = 0; idx < text.length(); idx++) {
+			int b = buffer[start + idx];
+			int c = text.charAt(idx);
+			if (b != c
+					&& (!ignoreCase || Character.toLowerCase(b) != Character
+							.toLowerCase(c))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Creates a string from the bytes in [start, end), decoded as ISO-8859-1.
+	 */
+	private String string(int start, int end) {
+		return new String(buffer, start, end - start,
+				ResponseOutput.HEADER_CHARSET);
+	}
+
+	@Override
+	public String toString() {
+		return getMethod() + " " + getUri() + " " + getVersion();
+	}
+}
@@ -1,29 +1,54 @@
 package ro.dp.serveme.core.impl;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
+import java.io.SequenceInputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.log4j.Logger;
 
+import ro.dp.serveme.core.Endpoint;
+import ro.dp.serveme.core.Filter;
 import ro.dp.serveme.core.Handler;
+import ro.dp.serveme.core.Request;
+import ro.dp.serveme.core.Response;
+import ro.dp.serveme.core.Server;
+import ro.dp.serveme.core.utils.AccessLog;
+import ro.dp.serveme.core.utils.ConnectionRegistry;
 import ro.dp.serveme.core.utils.HttpResponseCodes;
+import ro.dp.serveme.core.utils.ServerMetrics;
 
 /**
  * Concrete implementation of a request handler. <br>
- * This handler is responsible for serving the incoming requests.
+ * This handler is responsible for serving the incoming requests. Every
+ * request is parsed once and routed to the {@link Endpoint} registered on
+ * its path, through the chain of {@link Filter}s. The handler itself is the
+ * endpoint of the static files, registered on the <code>/</code> prefix; the
+ * status page is registered on its own path.
  * 
  * @author daniel.platon
  * 
  */
-public class HttpRequestHandler implements Handler {
+public class HttpRequestHandler implements Handler, Endpoint {
 
 	private static Logger log = Logger.getLogger(HttpRequestHandler.class);
 
@@ -47,22 +72,224 @@ public class HttpRequestHandler implements Handler {
 	}
 
 	/**
-	 * The document root. This parameter is configurable.
+	 * The content types that are worth compressing. Images and PDF documents
+	 * are already compressed.
+	 */
+	private static Set<String> COMPRESSIBLE_TYPES = new HashSet<String>(
+			Arrays.asList("text/html", "text/xml", "text/plain", "text/css"));
+
+	/**
+	 * The boundary between the parts of the multipart/byteranges responses.
+	 */
+	private static String MULTIPART_BOUNDARY = "SERVEME_"
+			+ Long.toHexString(new Random().nextLong());
+
+	private static byte[] MULTIPART_TYPE = ResponseHeaders
+			.bytes("Content-Type: multipart/byteranges; boundary="
+					+ MULTIPART_BOUNDARY + "\r\n");
+
+	private static byte[] MULTIPART_END = ResponseHeaders.bytes("\r\n--"
+			+ MULTIPART_BOUNDARY + "--\r\n");
+
+	/**
+	 * The document root (as an absolute path). This parameter is
+	 * configurable.
 	 */
 	private String documentRoot;
 
+	/**
+	 * The cache of static responses, or <code>null</code> if caching is
+	 * disabled.
+	 */
+	private ResponseCache cache = null;
+
+	/**
+	 * The index of the document root, or <code>null</code> if the requested
+	 * files are looked up on disk.
+	 */
+	private DocumentIndex index = null;
+
+	/**
+	 * The registry of memory-mapped files, or <code>null</code> if large
+	 * files are not served from mappings.
+	 */
+	private MappedFileRegistry mappedFiles = null;
+
+	/**
+	 * The directory listings.
+	 */
+	private DirectoryListings listings = new DirectoryListings(
+			DEFAULT_LISTING_PAGE_SIZE);
+
+	/**
+	 * The default number of entries per page of a directory listing.
+	 */
+	public static int DEFAULT_LISTING_PAGE_SIZE = 1000;
+
+	/**
+	 * The size of the buffer of the streamed response bodies.
+	 */
+	private int responseBufferSize = DEFAULT_RESPONSE_BUFFER_SIZE;
+
+	/**
+	 * The default size of the buffer of the streamed response bodies.
+	 */
+	public static int DEFAULT_RESPONSE_BUFFER_SIZE = 8192;
+
+	/**
+	 * The cache of the gzip variants of the files, or <code>null</code> if
+	 * responses are not compressed.
+	 */
+	private ResponseCache compressedCache = null;
+
+	/**
+	 * The length (in bytes) under which files are not compressed. Defaults to
+	 * 1 KB.
+	 */
+	private int compressionMinLength = 1024;
+
+	/**
+	 * The validators of the files served lately, by path. They are checked
+	 * against the modification time and the size of the file on every
+	 * request, and recreated when the file changed.
+	 */
+	private Map<String, FileValidators> validators = new ConcurrentHashMap<String, FileValidators>();
+
+	/**
+	 * The number of validators kept before the map is cleared.
+	 */
+	private static int MAX_VALIDATORS = 4096;
+
+	/**
+	 * The metrics where the responses and the request timings are recorded.
+	 */
+	private ServerMetrics metrics = new ServerMetrics();
+
+	/**
+	 * The access log, or <code>null</code> if requests are not logged.
+	 */
+	private AccessLog accessLog = null;
+
+	/**
+	 * The registry of the open connections, or <code>null</code> if their
+	 * state is not tracked.
+	 */
+	private ConnectionRegistry connections = null;
+
+	/**
+	 * The server whose threads serve the HTTP/2 streams, or <code>null</code>
+	 * if every stream gets a thread of its own.
+	 */
+	private Server server = null;
+
+	/**
+	 * Whether the clients may switch to HTTP/2 (h2c), with the connection
+	 * preface or with an upgrade. Enabled by default.
+	 */
+	private boolean http2Enabled = true;
+
+	/**
+	 * The number of streams served at the same time over an HTTP/2
+	 * connection. Defaults to 100 streams.
+	 */
+	private int maxConcurrentStreams = 100;
+
+	/**
+	 * The path of the status page, or <code>null</code> if the status page is
+	 * disabled. Defaults to <code>/server-status</code>.
+	 */
+	private String statusPath = "/server-status";
+
+	/**
+	 * The routes and the filters of the requests.
+	 */
+	private Router router = new Router();
+
+	/**
+	 * The endpoint of the status page: the metrics of the server as JSON, or
+	 * in the Prometheus text format if the query string contains
+	 * <code>format=prometheus</code>.
+	 */
+	private Endpoint statusPage = new Endpoint() {
+		public void handle(Request request, Response response)
+				throws Exception {
+			if (!request.getMethod().equals("GET")) {
+				response.sendError(HttpResponseCodes.HTTP_NOT_IMPLEMENTED);
+				return;
+			}
+			String query = request.getQuery();
+			boolean prometheus = query != null
+					&& Arrays.asList(query.split("&")).contains(
+							"format=prometheus");
+			response.setContentType(prometheus ? "text/plain; version=0.0.4"
+					: "application/json");
+			response.send((prometheus ? metrics.toPrometheus() : metrics
+					.toJson()).getBytes("UTF-8"));
+		}
+	};
+
+	/**
+	 * The serialized <code>Connection</code> headers (and the end of the
+	 * header block) appended to the responses.
+	 */
+	private byte[] keepAliveHeader;
+	private byte[] closeHeader;
+
+	/**
+	 * The error pages, loaded once when the handler is created.
+	 */
+	private Map<HttpResponseCodes, PreparedResponse> errorPages = new EnumMap<HttpResponseCodes, PreparedResponse>(
+			HttpResponseCodes.class);
+
+	/**
+	 * The amount of time (in milliseconds) that a persistent connection may
+	 * stay idle between requests. Defaults to 15 seconds.
+	 */
+	private int keepAliveTimeout = 15000;
+
+	/**
+	 * The maximum number of requests served over a persistent connection.
+	 * Defaults to 100 requests.
+	 */
+	private int maxKeepAliveRequests = 100;
+
+	/**
+	 * The size of the buffer in front of the socket output stream.
+	 */
+	private static int OUTPUT_BUFFER_SIZE = 8192;
+
+	/**
+	 * The request parsers, one per worker thread.
+	 */
+	private static ThreadLocal<HttpRequestParser> PARSERS = new ThreadLocal<HttpRequestParser>() {
+		@Override
+		protected HttpRequestParser initialValue() {
+			return new HttpRequestParser();
+		}
+	};
+
 	/**
 	 * The location of the error pages
 	 */
 	private static String ERROR_PAGES_LOCATION = "errpages" + File.separator;
 
+	/**
+	 * The segments of the default page of the document root.
+	 */
+	private static List<String> INDEX_PAGE = Collections
+			.singletonList("index.html");
+
 	/**
 	 * Constructs the request handler using the specified document root
 	 * 
 	 * @param root
 	 */
 	public HttpRequestHandler(String root) {
-		this.documentRoot = root;
+		this.documentRoot = new File(root).getAbsolutePath();
+		initConnectionHeaders();
+		loadErrorPages();
+		router.setRoute("/", true, this);
+		router.setRoute(statusPath, false, statusPage);
 	}
 
 	/*
@@ -71,105 +298,900 @@ public class HttpRequestHandler implements Handler {
 	 * @see ro.dp.serveme.core.Handler#handle(java.net.Socket)
 	 */
 	public void handle(Socket connection) throws Exception {
-		handleGet(connection);
+		handleConnection(connection);
+	}
+
+	/**
+	 * Sets the amount of time (in milliseconds) that a persistent connection
+	 * may stay idle between two requests before it is closed.
+	 * 
+	 * @param keepAliveTimeout
+	 *            the idle timeout, in milliseconds
+	 */
+	public void setKeepAliveTimeout(int keepAliveTimeout) {
+		this.keepAliveTimeout = keepAliveTimeout;
+		initConnectionHeaders();
+	}
+
+	/**
+	 * Sets the cache used for the static responses.
+	 * 
+	 * @param cache
+	 *            the {@link ResponseCache}, or <code>null</code> to disable
+	 *            caching
+	 */
+	public void setResponseCache(ResponseCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Sets the index of the document root, used to resolve the requested
+	 * files without touching the disk.
+	 * 
+	 * @param index
+	 *            the {@link DocumentIndex}, or <code>null</code> to resolve
+	 *            the files on disk
+	 */
+	public void setDocumentIndex(DocumentIndex index) {
+		this.index = index;
 	}
 
 	/**
-	 * This method does the actual handling of the request.
+	 * Sets the maximum number of requests served over a single persistent
+	 * connection. A value of 1 disables persistent connections.
+	 * 
+	 * @param maxKeepAliveRequests
+	 *            the maximum number of requests per connection
+	 */
+	public void setMaxKeepAliveRequests(int maxKeepAliveRequests) {
+		this.maxKeepAliveRequests = Math.max(1, maxKeepAliveRequests);
+	}
+
+	/**
+	 * Sets the registry used to serve large files from memory mappings.
+	 * 
+	 * @param mappedFiles
+	 *            the {@link MappedFileRegistry}, or <code>null</code> to
+	 *            disable the memory-mapped serving mode
+	 */
+	public void setMappedFileRegistry(MappedFileRegistry mappedFiles) {
+		this.mappedFiles = mappedFiles;
+	}
+
+	/**
+	 * Sets the cache of the directory listings.
+	 * 
+	 * @param listings
+	 *            the {@link DirectoryListings}
+	 */
+	public void setDirectoryListings(DirectoryListings listings) {
+		this.listings = listings;
+	}
+
+	/**
+	 * Sets the size of the buffer of the streamed response bodies. A body
+	 * that fits in the buffer is sent with its length, a longer one in
+	 * chunks of the size of the buffer.
+	 * 
+	 * @param responseBufferSize
+	 *            the size of the buffer, in bytes
+	 */
+	public void setResponseBufferSize(int responseBufferSize) {
+		this.responseBufferSize = Math.max(1, responseBufferSize);
+	}
+
+	/**
+	 * Enables the compression of the text files, whose gzip variants are
+	 * kept in a cache of their own.
+	 * 
+	 * @param compressedCache
+	 *            the {@link ResponseCache} of the compressed variants, or
+	 *            <code>null</code> to disable compression
+	 */
+	public void setCompressedCache(ResponseCache compressedCache) {
+		this.compressedCache = compressedCache;
+	}
+
+	/**
+	 * Sets the length under which files are sent uncompressed.
+	 * 
+	 * @param compressionMinLength
+	 *            the length, in bytes
+	 */
+	public void setCompressionMinLength(int compressionMinLength) {
+		this.compressionMinLength = compressionMinLength;
+	}
+
+	/**
+	 * Sets the metrics where the responses and the request timings are
+	 * recorded.
+	 * 
+	 * @param metrics
+	 *            the {@link ServerMetrics} of the server
+	 */
+	public void setMetrics(ServerMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets the access log where the requests are recorded.
+	 * 
+	 * @param accessLog
+	 *            the {@link AccessLog}, or <code>null</code> to disable the
+	 *            access log
+	 */
+	public void setAccessLog(AccessLog accessLog) {
+		this.accessLog = accessLog;
+	}
+
+	/**
+	 * Sets the registry where the state of the connections is recorded.
+	 * 
+	 * @param connections
+	 *            the {@link ConnectionRegistry} of the server, or
+	 *            <code>null</code>
+	 */
+	public void setConnections(ConnectionRegistry connections) {
+		this.connections = connections;
+	}
+
+	/**
+	 * Sets the server whose threads serve the HTTP/2 streams.
+	 * 
+	 * @param server
+	 *            the {@link Server}, or <code>null</code> to serve every
+	 *            stream on a thread of its own
+	 */
+	public void setServer(Server server) {
+		this.server = server;
+	}
+
+	/**
+	 * Enables or disables HTTP/2 over cleartext connections (h2c).
+	 * 
+	 * @param http2Enabled
+	 *            <code>true</code> to let the clients switch to HTTP/2
+	 */
+	public void setHttp2Enabled(boolean http2Enabled) {
+		this.http2Enabled = http2Enabled;
+	}
+
+	/**
+	 * Sets the number of streams served at the same time over an HTTP/2
+	 * connection; the client is told to open no more.
+	 * 
+	 * @param maxConcurrentStreams
+	 *            the number of streams
+	 */
+	public void setMaxConcurrentStreams(int maxConcurrentStreams) {
+		this.maxConcurrentStreams = Math.max(1, maxConcurrentStreams);
+	}
+
+	/**
+	 * Sets the path of the status page, which renders the metrics.
+	 * 
+	 * @param statusPath
+	 *            the path (e.g. <code>/server-status</code>), or
+	 *            <code>null</code> or an empty string to disable the page
+	 */
+	public void setStatusPath(String statusPath) {
+		if (this.statusPath != null) {
+			router.setRoute(this.statusPath, false, null);
+		}
+		this.statusPath = statusPath == null || statusPath.length() == 0 ? null
+				: statusPath;
+		if (this.statusPath != null) {
+			router.setRoute(this.statusPath, false, statusPage);
+		}
+	}
+
+	/**
+	 * Registers the endpoint of a path. A route on the exact path of a
+	 * request wins over the prefix routes.
+	 * 
+	 * @param path
+	 *            the path (e.g. <code>/api/version</code>)
+	 * @param endpoint
+	 *            the {@link Endpoint}, or <code>null</code> to remove the
+	 *            route
+	 */
+	public void addRoute(String path, Endpoint endpoint) {
+		router.setRoute(path, false, endpoint);
+	}
+
+	/**
+	 * Registers the endpoint of a path and of everything under it. The
+	 * longest prefix of the path of a request wins; the static files are
+	 * served from the <code>/</code> prefix.
+	 * 
+	 * @param prefix
+	 *            the path prefix (e.g. <code>/api</code>)
+	 * @param endpoint
+	 *            the {@link Endpoint}, or <code>null</code> to remove the
+	 *            route
+	 */
+	public void addPrefixRoute(String prefix, Endpoint endpoint) {
+		router.setRoute(prefix, true, endpoint);
+	}
+
+	/**
+	 * Appends a filter to the chain run on every request, in the order the
+	 * filters are added.
+	 * 
+	 * @param filter
+	 *            the {@link Filter}
+	 */
+	public void addFilter(Filter filter) {
+		router.addFilter(filter);
+	}
+
+	/**
+	 * Serves the requests sent over a connection.<br>
+	 * Requests are answered in order for as long as the connection is
+	 * persistent. Pipelined requests that are already buffered are answered
+	 * without flushing in between. When nothing is buffered, a connection
+	 * obtained from a {@link SelectorConnectorImpl} is handed back to its
+	 * connector (to wait for the next request without holding a thread);
+	 * any other connection waits for the next request for at most
+	 * {@link #keepAliveTimeout} milliseconds.<br>
+	 * A connection that starts with the HTTP/2 preface, or asks to upgrade to
+	 * h2c, is served by an {@link Http2Connection} from then on, and holds
+	 * its thread until it is closed.
 	 * 
 	 * @param connection
 	 *            The incoming connection
 	 * @throws IOException
 	 */
-	private void handleGet(Socket connection) throws Exception {
-		InputStream in = null;
-		PrintStream out = null;
+	private void handleConnection(Socket connection) throws Exception {
+		ResponseOutput out = null;
+		boolean keepAlive = false;
+		HttpRequestParser parser = PARSERS.get();
+		ConnectionRegistry.Entry entry = null;
+		// the request being served, and the time it was received, until it
+		// is logged
+		HttpRequest current = null;
+		long time = 0;
+		boolean unlogged = false;
+		String host = accessLog != null ? connection.getInetAddress()
+				.getHostAddress() : null;
 		try {
-			log.debug("Handling request from "
+			if (log.isDebugEnabled()) {
+				log.debug("Handling request from "
+						+ connection.getRemoteSocketAddress());
+			}
+			ChannelSocket parkable = connection instanceof ChannelSocket ? (ChannelSocket) connection
+					: null;
+			int served = parkable != null ? parkable.getRequestCount() : 0;
+			connection.setSoTimeout(keepAliveTimeout);
+			out = new ResponseOutput(connection, OUTPUT_BUFFER_SIZE);
+			HttpResponse response = new HttpResponse(this, out,
+					responseBufferSize);
+			entry = connections != null ? connections.get(connection
+					.getChannel()) : null;
+			out.setActivity(entry);
+			InputStream in = connection.getInputStream();
+			if (entry != null) {
+				in = new MonitoredInputStream(in, entry);
+			}
+			parser.reset(in);
+			do {
+				if (entry != null && served > 0) {
+					entry.setState(ConnectionRegistry.State.IDLE);
+				}
+				HttpRequest request = parser.next();
+				if (request == null) {
+					keepAlive = false;
+					break;
+				}
+				if (entry != null) {
+					entry.setState(ConnectionRegistry.State.PROCESSING);
+				}
+				served++;
+				if (http2Enabled && switchesToHttp2(request, served)) {
+					serveHttp2(connection, request, parser, in, out, entry);
+					keepAlive = false;
+					break;
+				}
+				long started = System.nanoTime();
+				long written = out.getWriteNanos();
+				current = request;
+				time = accessLog != null ? System.currentTimeMillis() : 0;
+				unlogged = true;
+				out.beginResponse();
+				// the body of a request is not read, so the connection cannot
+				// be reused after it; nor is it reused while the server stops
+				keepAlive = served < maxKeepAliveRequests
+						&& !request.hasBody() && request.isKeepAlive()
+						&& (connections == null || !connections.isDraining());
+				response.reset(keepAlive, request.isHttp11());
+				route(request, response);
+				keepAlive = response.isKeepAlive();
+				unlogged = false;
+				logAccess(host, request, time, out);
+				boolean idle = !parser.hasBufferedData()
+						&& in.available() == 0;
+				if (idle) {
+					out.flush();
+				}
+				// the time spent writing is measured by the output, the rest
+				// of the time went into finding the response
+				long writeNanos = out.getWriteNanos() - written;
+				metrics.requestTimed(parser.getParseNanos(), System.nanoTime()
+						- started - writeNanos, writeNanos);
+				if (idle && keepAlive && parkable != null) {
+					parkable.setRequestCount(served);
+					return;
+				}
+			} while (keepAlive);
+		} catch (SocketTimeoutException e) {
+			log.debug("Closing idle connection from "
 					+ connection.getRemoteSocketAddress());
-			in = connection.getInputStream();
-			out = new PrintStream(connection.getOutputStream());
-
-			BufferedReader reader = new BufferedReader(
-					new InputStreamReader(in));
-			String line = reader.readLine();
-			if (line == null) {
-				return;
+			keepAlive = false;
+		} catch (HttpRequestParser.BadRequestException e) {
+			log.debug("Bad request from "
+					+ connection.getRemoteSocketAddress() + ": "
+					+ e.getMessage());
+			keepAlive = false;
+			current = null;
+			time = accessLog != null ? System.currentTimeMillis() : 0;
+			unlogged = true;
+			out.beginResponse();
+			sendBadRequest(out);
+		} catch (Exception e) {
+			keepAlive = false;
+			if (entry != null && entry.isReaped()) {
+				// closed by the registry, as idle, too slow or stalled
+				log.debug("Connection from "
+						+ connection.getRemoteSocketAddress()
+						+ " was closed while in use: " + e.getMessage());
+			} else {
+				log.error(e.getMessage(), e);
+				// a 500 cannot follow a response head already sent
+				if (out != null && out.getStatus() == null) {
+					try {
+						sendInternalError(out, false);
+					} catch (IOException ioe) {
+						log.debug(ioe.getMessage(), ioe);
+					}
+				}
 			}
-			// we're not responding to requests that have a method other than
-			// GET
-			if (!line.startsWith("GET ")) {
-				sendNotImplemented(out);
-				return;
+		} finally {
+			parser.reset(null);
+			if (unlogged) {
+				// a request that failed, or whose response was cut short
+				logAccess(host, current, time, out);
+			}
+			try {
+				if (!keepAlive) {
+					if (out != null) {
+						out.flush();
+					}
+					connection.close();
+				}
+			} finally {
+				if (out != null) {
+					metrics.bytesSent(out.getBytesWritten());
+				}
 			}
+		}
+	}
+
+	/**
+	 * Routes a request to its endpoint, and answers it with a 404 if no
+	 * endpoint sent a response.
+	 * 
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response, reset for the request
+	 * @throws Exception
+	 */
+	private void route(HttpRequest request, HttpResponse response)
+			throws Exception {
+		router.dispatch(request, response);
+		response.finish();
+		if (!response.isCommitted()) {
+			if (log.isDebugEnabled()) {
+				log.debug("No route to " + request.getPath());
+			}
+			sendNotFound(response.getOutput(), response.isKeepAlive());
+		}
+	}
+
+	/**
+	 * Checks whether a request switches its connection to HTTP/2: the
+	 * connection preface (as the first request only), or an upgrade to h2c
+	 * (unless the server stops).
+	 * 
+	 * @param request
+	 *            the request
+	 * @param served
+	 *            the number of requests read from the connection, this one
+	 *            included
+	 */
+	private boolean switchesToHttp2(HttpRequest request, int served) {
+		if (served == 1 && Http2Connection.isPreface(request)) {
+			return true;
+		}
+		return Http2Connection.isUpgrade(request)
+				&& (connections == null || !connections.isDraining());
+	}
+
+	/**
+	 * Switches a connection to HTTP/2 and serves it until it is closed. The
+	 * bytes the parser read past the request head are the first frames.
+	 * 
+	 * @param connection
+	 *            the connection
+	 * @param request
+	 *            the connection preface, or the request asking for the
+	 *            upgrade (answered on the first stream)
+	 * @param parser
+	 *            the parser of the connection
+	 * @param in
+	 *            the input of the connection
+	 * @param out
+	 *            the HTTP/1.x output of the connection
+	 * @param entry
+	 *            the registry entry of the connection, or <code>null</code>
+	 * @throws IOException
+	 */
+	private void serveHttp2(Socket connection, HttpRequest request,
+			HttpRequestParser parser, InputStream in, ResponseOutput out,
+			ConnectionRegistry.Entry entry) throws IOException {
+		boolean upgrade = !Http2Connection.isPreface(request);
+		if (upgrade) {
+			out.write(Http2Connection.SWITCHING_PROTOCOLS);
+			out.flush();
+		}
+		ResponseOutput frames = new ResponseOutput(connection,
+				Http2Connection.OUTPUT_BUFFER_SIZE);
+		frames.setActivity(entry);
+		InputStream input = new BufferedInputStream(new SequenceInputStream(
+				new ByteArrayInputStream(parser.takeBuffered()), in));
+		try {
+			new Http2Connection(this, input, frames, entry, connections,
+					connection.getInetAddress().getHostAddress(),
+					maxConcurrentStreams).serve(upgrade ? request : null);
+		} finally {
+			metrics.bytesSent(frames.getBytesWritten());
+		}
+	}
+
+	/**
+	 * Hands an HTTP/2 stream to the threads of the server.
+	 * 
+	 * @param stream
+	 *            the stream
+	 * @return <code>true</code> if the stream was accepted,
+	 *         <code>false</code> if the server has no capacity left for it
+	 */
+	boolean dispatchStream(Runnable stream) {
+		if (server != null) {
+			return server.dispatch(stream);
+		}
+		new Thread(stream).start();
+		return true;
+	}
 
-			String uri = line.substring(line.indexOf(' ') + 1,
-					line.indexOf("HTTP") - 1);
+	/**
+	 * Serves a request received on an HTTP/2 stream. The response is written
+	 * as for an HTTP/1.x request, on the output of the stream, which turns it
+	 * into frames; a body of unknown length is ended by the end of the
+	 * stream.
+	 * 
+	 * @param request
+	 *            the request
+	 * @param out
+	 *            the output of the stream
+	 * @param host
+	 *            the address of the client
+	 * @param decodeNanos
+	 *            the time (in nanoseconds) spent decoding the request headers
+	 * @throws Exception
+	 */
+	void serveStream(HttpRequest request, ResponseOutput out, String host,
+			long decodeNanos) throws Exception {
+		long started = System.nanoTime();
+		long time = accessLog != null ? System.currentTimeMillis() : 0;
+		HttpResponse response = new HttpResponse(this, out, responseBufferSize);
+		response.reset(false, false);
+		try {
+			route(request, response);
+		} finally {
+			// also a request that failed, or whose response was cut short
+			logAccess(host, request, time, out);
+		}
+		long writeNanos = out.getWriteNanos();
+		metrics.requestTimed(decodeNanos, System.nanoTime() - started
+				- writeNanos, writeNanos);
+	}
 
-			String filename = "";
-			filename = uri.replace("/", File.separator);
-			// if the filename is just a \ then we are at the document root 
-			// so we return the default page
-			if (filename.equals(File.separator)) {
-				filename="index.html";
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see ro.dp.serveme.core.Endpoint#handle(ro.dp.serveme.core.Request,
+	 * ro.dp.serveme.core.Response)
+	 */
+	public void handle(Request request, Response response) throws Exception {
+		// the static files are written straight on the connection, so they
+		// need the request and the response of this handler
+		HttpResponse httpResponse = (HttpResponse) response;
+		handleGet((HttpRequest) request, httpResponse);
+		if (!httpResponse.isCommitted()) {
+			httpResponse.commit();
+		}
+	}
+
+	/**
+	 * Records a request in the access log, with the status and the body
+	 * length of its response as far as it was sent. A request that got no
+	 * response at all is not logged.
+	 * 
+	 * @param host
+	 *            the address of the client
+	 * @param request
+	 *            the request, or <code>null</code> if it could not be parsed
+	 * @param time
+	 *            the time the request was received, in milliseconds
+	 * @param out
+	 *            the output of the connection
+	 */
+	private void logAccess(String host, HttpRequest request, long time,
+			ResponseOutput out) {
+		if (accessLog == null || out == null || out.getStatus() == null) {
+			return;
+		}
+		accessLog.log(host, time,
+				request != null ? request.toString() : "-", out.getStatus()
+						.getCode(), out.getBodyLength(),
+				request != null ? request.getHeader("Referer") : null,
+				request != null ? request.getHeader("User-Agent") : null);
+	}
+
+	/**
+	 * This method does the actual handling of a request for a static file.
+	 * 
+	 * @param request
+	 *            the parsed request head
+	 * @param response
+	 *            the response, written on the connection (or streamed)
+	 * @throws IOException
+	 */
+	private void handleGet(HttpRequest request, HttpResponse response)
+			throws Exception {
+		ResponseOutput out = response.getOutput();
+		boolean keepAlive = response.isKeepAlive();
+		// we're not responding to requests that have a method other than
+		// GET
+		if (!request.isMethod("GET")) {
+			sendNotImplemented(out, keepAlive);
+			return;
+		}
+
+		// the document root itself is served as its default page
+		List<String> segments = request.getPath().equals("/") ? INDEX_PAGE
+				: request.getSegments();
+		DocumentIndex.Entry indexed = null;
+		File theFile;
+		if (index != null && index.isActive()) {
+			indexed = index.resolve(segments);
+			theFile = indexed != null ? indexed.getFile() : null;
+		} else {
+			theFile = fileOf(segments);
+		}
+		if (theFile == null) {
+			if (log.isDebugEnabled()) {
+				log.debug("Not found: " + request.getPath());
 			}
-			File theFile = new File(documentRoot + File.separator + filename);
-			if (!theFile.exists()) {
-				log.warn("Not found: " + theFile.getAbsolutePath());
-				sendNotFound(out);
+			sendNotFound(out, keepAlive);
+			return;
+		}
+		// ranges are served from the uncompressed file
+		if (compressedCache != null && request.acceptsEncoding("gzip")
+				&& request.getHeaderIndex("Range") == -1
+				&& isCompressible(theFile.getName())
+				&& (indexed == null || indexed.getLength() >= compressionMinLength)
+				&& sendCompressed(request, out, theFile, keepAlive)) {
+			return;
+		}
+		if (cache != null) {
+			PreparedResponse entry = cache.get(theFile.getPath());
+			if (entry != null) {
+				if (!sendConditional(request, out, theFile, entry,
+						entry.getValidators(), keepAlive)) {
+					sendCached(out, entry, keepAlive);
+				}
 				return;
 			}
+		}
+		if (indexed == null && !theFile.exists()) {
+			if (log.isDebugEnabled()) {
+				log.debug("Not found: " + theFile.getAbsolutePath());
+			}
+			sendNotFound(out, keepAlive);
+			return;
+		}
 
-			if (theFile.isDirectory()) {
-				sendDirectoryListing(out, theFile);
-			} else {
-				sendOk(out, theFile);
+		if (indexed != null ? indexed.isDirectory() : theFile.isDirectory()) {
+			listings.write(theFile, request.getQuery(), response);
+			return;
+		}
+		FileValidators validators = indexed != null ? validatorsFor(theFile,
+				indexed.getLastModified(), indexed.getLength())
+				: validatorsFor(theFile, theFile.lastModified(), theFile
+						.length());
+		if (!sendConditional(request, out, theFile, null, validators,
+				keepAlive)) {
+			sendOk(out, theFile, validators, keepAlive);
+		}
+	}
+
+	/**
+	 * Answers the conditional and the range headers of a request for a file:
+	 * sends "304 Not Modified" if the client's copy is current, or the
+	 * requested ranges of the file.
+	 * 
+	 * @param request
+	 *            the request
+	 * @param out
+	 *            the {@link ResponseOutput} of the connection
+	 * @param file
+	 *            the requested file
+	 * @param cached
+	 *            the cached response for the file, or <code>null</code>
+	 * @param validators
+	 *            the validators of the file
+	 * @param keepAlive
+	 *            whether the connection stays open after the response
+	 * @return <code>true</code> if a response was sent, <code>false</code> if
+	 *         the whole file must be sent
+	 * @throws IOException
+	 */
+	private boolean sendConditional(HttpRequest request, ResponseOutput out,
+			File file, PreparedResponse cached, FileValidators validators,
+			boolean keepAlive) throws IOException {
+		if (validators.isNotModified(request)) {
+			sendNotModified(out, validators, keepAlive);
+			return true;
+		}
+		String range = request.getHeader("Range");
+		if (range == null || !validators.isRangeCurrent(request)) {
+			return false;
+		}
+		List<ByteRange> ranges = ByteRange.parse(range, validators.getLength());
+		if (ranges == null) {
+			return false;
+		}
+		sendRanges(out, file, cached != null ? cached.body() : null,
+				validators, ranges, keepAlive);
+		return true;
+	}
+
+	/**
+	 * Sends ranges of a file: a "206 Partial Content" response with a single
+	 * part or a multipart/byteranges body, or "416 Requested Range Not
+	 * Satisfiable" if there are no ranges. The ranges are read at their
+	 * position in the file (or sliced from the cached content), so only the
+	 * requested bytes are read.
+	 * 
+	 * @param out
+	 *            the {@link ResponseOutput} of the connection
+	 * @param file
+	 *            the requested file
+	 * @param body
+	 *            the content of the file if it is cached, or
+	 *            <code>null</code>
+	 * @param validators
+	 *            the validators of the file
+	 * @param ranges
+	 *            the satisfiable ranges
+	 * @param keepAlive
+	 *            whether the connection stays open after the response
+	 * @throws IOException
+	 */
+	private void sendRanges(ResponseOutput out, File file, ByteBuffer body,
+			FileValidators validators, List<ByteRange> ranges,
+			boolean keepAlive) throws IOException {
+		long length = validators.getLength();
+		if (ranges.isEmpty()) {
+			ResponseHeaders.write(out,
+					HttpResponseCodes.HTTP_RANGE_NOT_SATISFIABLE, "text/html", 0);
+			ResponseHeaders.writeContentRange(out, null, length);
+			out.write(endOfHeader(keepAlive));
+			responseSent(out, HttpResponseCodes.HTTP_RANGE_NOT_SATISFIABLE, 0);
+			return;
+		}
+		String contentType = contentTypeOf(file.getName());
+		byte[][] partHeaders = null;
+		long bodyLength;
+		if (ranges.size() == 1) {
+			ByteRange range = ranges.get(0);
+			bodyLength = range.length();
+			ResponseHeaders.write(out, HttpResponseCodes.HTTP_PARTIAL_CONTENT,
+					contentType, bodyLength);
+			ResponseHeaders.writeContentRange(out, range, length);
+		} else {
+			partHeaders = new byte[ranges.size()][];
+			long contentLength = MULTIPART_END.length;
+			for (int idx = 0; idx < partHeaders.length; idx++) {
+				ByteRange range = ranges.get(idx);
+				partHeaders[idx] = ResponseHeaders.bytes("\r\n--"
+						+ MULTIPART_BOUNDARY + "\r\nContent-Type:" + contentType
+						+ "; Charset=UTF-8\r\nContent-Range: bytes " + range
+						+ "/" + length + "\r\n\r\n");
+				contentLength += partHeaders[idx].length + range.length();
 			}
-		} catch (Exception e) {
-			log.error(e.getMessage(), e);
-			if (out != null) {
-				sendInternalError(out);
+			out.write(ResponseHeaders
+					.statusLine(HttpResponseCodes.HTTP_PARTIAL_CONTENT));
+			out.write(MULTIPART_TYPE);
+			ResponseHeaders.writeContentLength(out, contentLength);
+			bodyLength = contentLength;
+		}
+		out.write(validators.header());
+		out.write(endOfHeader(keepAlive));
+		out.headWritten(HttpResponseCodes.HTTP_PARTIAL_CONTENT, 0);
+
+		FileInputStream fis = body == null ? new FileInputStream(file) : null;
+		try {
+			for (int idx = 0; idx < ranges.size(); idx++) {
+				ByteRange range = ranges.get(idx);
+				if (partHeaders != null) {
+					out.write(partHeaders[idx]);
+				}
+				if (body != null) {
+					ByteBuffer slice = body.duplicate();
+					slice.position(slice.position() + (int) range.getStart());
+					slice.limit(slice.position() + (int) range.length());
+					out.write(slice);
+				} else {
+					out.transferFrom(fis.getChannel(), range.getStart(),
+							range.length());
+				}
+			}
+			if (partHeaders != null) {
+				out.write(MULTIPART_END);
 			}
+			responseSent(out, HttpResponseCodes.HTTP_PARTIAL_CONTENT,
+					bodyLength);
 		} finally {
+			if (fis != null) {
+				fis.close();
+			}
+		}
+	}
 
-			if (out != null) {
-				out.flush();
-				out.close();
+	/**
+	 * Returns the validators of a file, creating them if the file is new or
+	 * changed since they were created.
+	 */
+	private FileValidators validatorsFor(File file, long modified, long length) {
+		String path = file.getPath();
+		FileValidators fileValidators = validators.get(path);
+		if (fileValidators == null
+				|| !fileValidators.isCurrent(modified, length)) {
+			if (validators.size() >= MAX_VALIDATORS) {
+				validators.clear();
 			}
+			fileValidators = new FileValidators(modified, length, null,
+					compressedCache != null && isCompressible(file.getName()));
+			validators.put(path, fileValidators);
 		}
+		return fileValidators;
 	}
 
 	/**
-	 * Sends the directory listing for a folder
+	 * Sends the gzip variant of a file, loading it into the cache of the
+	 * compressed variants if needed. Files without a variant are remembered
+	 * by the cache, so they are not examined again until they change.
 	 * 
+	 * @param request
+	 *            the request
 	 * @param out
-	 *            the {@link PrintStream} associated with the response output
-	 *            stream
-	 * @param folder
-	 *            the {@link File} object represeting the directory to list
-	 */
-	private void sendDirectoryListing(PrintStream out, File folder) {
-		StringBuilder listing = new StringBuilder(
-				"<html><head><title>Directory listing for ").append(
-				folder.getName()).append("</title></head><body>");
-		listing.append("<a href=\"..\"").append("\">..</a><br/>");
-		for (String fileName : folder.list()) {
-
-			File file = new File(folder, fileName);
-
-			if (file.isDirectory()) {
-				listing.append("<a href=\"").append(fileName).append("/\"")
-						.append(">").append(fileName).append("</a>");
-			} else {
-				listing.append("<a href=\"").append(fileName).append("\"")
-						.append(">").append(fileName).append("</a>");
+	 *            the {@link ResponseOutput} of the connection
+	 * @param file
+	 *            the requested file
+	 * @param keepAlive
+	 *            whether the connection stays open after the response
+	 * @return <code>true</code> if a response was sent, <code>false</code> if
+	 *         the file must be sent uncompressed
+	 * @throws IOException
+	 */
+	private boolean sendCompressed(HttpRequest request, ResponseOutput out,
+			File file, boolean keepAlive) throws IOException {
+		String path = file.getPath();
+		PreparedResponse variant = compressedCache.get(path);
+		if (variant == null) {
+			if (compressedCache.isSkipped(path)) {
+				return false;
+			}
+			long generation = compressedCache.getGeneration();
+			variant = loadCompressed(file);
+			if (variant == null) {
+				compressedCache.skip(path, generation);
+				return false;
 			}
-			listing.append("<br/>");
+			compressedCache.put(path, variant, generation);
 		}
-		listing.append("</body></html>");
-		printHeader(out, HttpResponseCodes.HTTP_OK, "text/html",
-				listing.length());
-		out.print(listing.toString());
+		if (variant.getValidators().isNotModified(request)) {
+			sendNotModified(out, variant.getValidators(), keepAlive);
+		} else {
+			sendCached(out, variant, keepAlive);
+		}
+		return true;
+	}
+
+	/**
+	 * Loads the gzip variant of a file: its precompressed sibling (e.g.
+	 * <code>style.css.gz</code>) if it is up to date, otherwise the file
+	 * compressed on the fly.
+	 * 
+	 * @return the variant, or <code>null</code> if the file is missing, too
+	 *         small to be worth compressing or too large for the cache
+	 * @throws IOException
+	 */
+	private PreparedResponse loadCompressed(File file) throws IOException {
+		if (!file.isFile()) {
+			return null;
+		}
+		long modified = file.lastModified();
+		long length = file.length();
+		if (length < compressionMinLength) {
+			return null;
+		}
+		File sibling = new File(file.getPath() + ".gz");
+		byte[] body;
+		if (sibling.isFile() && sibling.lastModified() >= modified) {
+			if (!compressedCache.accepts(sibling.length())) {
+				return null;
+			}
+			body = readFile(sibling);
+		} else {
+			if (!compressedCache.accepts(length)) {
+				return null;
+			}
+			body = gzip(readFile(file));
+		}
+		FileValidators validators = new FileValidators(modified, length,
+				"gzip", true);
+		byte[] header = ResponseHeaders.serialize(HttpResponseCodes.HTTP_OK,
+				contentTypeOf(file.getName()), body.length);
+		byte[] validatorHeader = validators.header();
+		ByteBuffer data = ByteBuffer.allocateDirect(header.length
+				+ validatorHeader.length + body.length);
+		data.put(header).put(validatorHeader).put(body).flip();
+		return new PreparedResponse(data, header.length
+				+ validatorHeader.length, validators);
+	}
+
+	private static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(
+				data.length / 4 + 64);
+		GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+		try {
+			gzip.write(data);
+		} finally {
+			gzip.close();
+		}
+		return compressed.toByteArray();
+	}
+
+	/**
+	 * Sends the "304 Not Modified" response, which has no body.
+	 * 
+	 * @param out
+	 *            the {@link ResponseOutput} of the connection
+	 * @param validators
+	 *            the validators of the requested file
+	 * @param keepAlive
+	 *            whether the connection stays open after the response
+	 * @throws IOException
+	 */
+	private void sendNotModified(ResponseOutput out,
+			FileValidators validators, boolean keepAlive) throws IOException {
+		out.write(validators.notModified());
+		out.write(endOfHeader(keepAlive));
+		responseSent(out, HttpResponseCodes.HTTP_NOT_MODIFIED, 0);
 	}
 
 	/**
@@ -177,16 +1199,15 @@ public class HttpRequestHandler implements Handler {
 	 * response code is sent if the request has another method than "GET"
 	 * 
 	 * @param out
-	 *            the {@link PrintStream} associated with the response output
-	 *            stream
+	 *            the {@link ResponseOutput} of the connection
+	 * @param keepAlive
+	 *            whether the connection stays open after the response
 	 * @throws IOException
 	 */
-	private void sendNotImplemented(PrintStream out) throws IOException {
-		File errFile = new File(ERROR_PAGES_LOCATION
-				+ HttpResponseCodes.HTTP_NOT_IMPLEMENTED.getResponseFileName());
-		printHeader(out, HttpResponseCodes.HTTP_NOT_IMPLEMENTED, "text/html",
-				errFile.length());
-		sendStream(out, errFile);
+	private void sendNotImplemented(ResponseOutput out, boolean keepAlive)
+			throws IOException {
+		sendCached(out, errorPages.get(HttpResponseCodes.HTTP_NOT_IMPLEMENTED),
+				keepAlive);
 	}
 
 	/**
@@ -194,101 +1215,417 @@ public class HttpRequestHandler implements Handler {
 	 * response code is sent if the request has another method than "GET"
 	 * 
 	 * @param out
-	 *            the {@link PrintStream} associated with the response output
-	 *            stream
+	 *            the {@link ResponseOutput} of the connection
+	 * @param keepAlive
+	 *            whether the connection stays open after the response
 	 * @throws IOException
 	 */
-	private void sendInternalError(PrintStream out) throws IOException {
-		File errFile = new File(ERROR_PAGES_LOCATION,
-				HttpResponseCodes.HTTP_SERVER_ERROR.getResponseFileName());
-		printHeader(out, HttpResponseCodes.HTTP_SERVER_ERROR, "text/html",
-				errFile.length());
-		sendStream(out, errFile);
+	private void sendInternalError(ResponseOutput out, boolean keepAlive)
+			throws IOException {
+		sendCached(out, errorPages.get(HttpResponseCodes.HTTP_SERVER_ERROR),
+				keepAlive);
+	}
+
+	/**
+	 * Sends the "400 Bad Request" response to the output stream. This
+	 * response code is sent if the request head cannot be parsed; the
+	 * connection is closed afterwards.
+	 * 
+	 * @param out
+	 *            the {@link ResponseOutput} of the connection
+	 */
+	private void sendBadRequest(ResponseOutput out) {
+		try {
+			sendCached(out, errorPages.get(HttpResponseCodes.HTTP_BAD_REQUEST),
+					false);
+		} catch (IOException e) {
+			log.debug(e.getMessage(), e);
+		}
 	}
 
 	/**
 	 * Sends the "404 Not Found" response to the output stream
 	 * 
 	 * @param out
-	 *            the {@link PrintStream} associated with the response output
-	 *            stream
+	 *            the {@link ResponseOutput} of the connection
+	 * @param keepAlive
+	 *            whether the connection stays open after the response
 	 * @throws IOException
 	 */
-	private void sendNotFound(PrintStream out) throws IOException {
-		File errFile = new File(ERROR_PAGES_LOCATION + "404.html");
-		printHeader(out, HttpResponseCodes.HTTP_NOT_FOUND, "text/html",
-				errFile.length());
-		sendStream(out, errFile);
+	private void sendNotFound(ResponseOutput out, boolean keepAlive)
+			throws IOException {
+		sendCached(out, errorPages.get(HttpResponseCodes.HTTP_NOT_FOUND),
+				keepAlive);
 	}
 
 	/**
-	 * Sends the response header to the socket's output stream.
+	 * Sends the error page of a response code, or the description of the
+	 * code if it has no error page.
 	 * 
 	 * @param out
-	 *            the {@link PrintStream} associated with the response output
-	 *            stream
-	 * @param responseCode
-	 *            a {@link HttpResponseCodes} object representing the response
-	 *            code
+	 *            the {@link ResponseOutput} of the connection
+	 * @param status
+	 *            the response code
+	 * @param keepAlive
+	 *            whether the connection stays open after the response
+	 * @throws IOException
+	 */
+	void sendError(ResponseOutput out, HttpResponseCodes status,
+			boolean keepAlive) throws IOException {
+		PreparedResponse page = errorPages.get(status);
+		if (page != null) {
+			sendCached(out, page, keepAlive);
+		} else {
+			send(out, status, "text/html", null, ResponseHeaders
+					.bytes(status.toString()), keepAlive);
+		}
+	}
+
+	/**
+	 * Sends a response built by an {@link Endpoint}.
+	 * 
+	 * @param out
+	 *            the {@link ResponseOutput} of the connection
+	 * @param status
+	 *            the response code
 	 * @param contentType
 	 *            the content type of the response
+	 * @param headers
+	 *            the serialized headers added by the endpoint, or
+	 *            <code>null</code>
+	 * @param body
+	 *            the response body
+	 * @param keepAlive
+	 *            whether the connection stays open after the response
+	 * @throws IOException
 	 */
-	private void printHeader(PrintStream out, HttpResponseCodes responseCode,
-			String contentType, long contentLength) {
-		StringBuilder response = new StringBuilder("HTTP/1.1 ");
-		response.append(responseCode).append("\r\n");
-		response.append("Content-Type:").append(contentType)
-				.append("; Charset=UTF-8\r\n");
-		response.append("Content-Length: ").append(contentLength)
-				.append("\r\n");
-		response.append("\r\n");
-		out.print(response.toString());
+	void send(ResponseOutput out, HttpResponseCodes status,
+			String contentType, CharSequence headers, byte[] body,
+			boolean keepAlive) throws IOException {
+		writeHead(out, status, contentType, headers, body.length, false,
+				keepAlive);
+		out.write(body);
+		responseSent(out, status, body.length);
+	}
 
+	/**
+	 * Writes the head of a response built by an {@link Endpoint}.
+	 * 
+	 * @param out
+	 *            the {@link ResponseOutput} of the connection
+	 * @param status
+	 *            the response code
+	 * @param contentType
+	 *            the content type of the response
+	 * @param headers
+	 *            the serialized headers added by the endpoint, or
+	 *            <code>null</code>
+	 * @param contentLength
+	 *            the length of the body, or -1 if the body is chunked or
+	 *            delimited by the end of the connection
+	 * @param chunked
+	 *            whether the body is sent with chunked transfer encoding
+	 * @param keepAlive
+	 *            whether the connection stays open after the response
+	 * @throws IOException
+	 */
+	void writeHead(ResponseOutput out, HttpResponseCodes status,
+			String contentType, CharSequence headers, long contentLength,
+			boolean chunked, boolean keepAlive) throws IOException {
+		out.write(ResponseHeaders.statusLine(status));
+		out.write(ResponseHeaders.contentTypeLine(contentType));
+		if (contentLength >= 0) {
+			ResponseHeaders.writeContentLength(out, contentLength);
+		} else if (chunked) {
+			out.write(ResponseHeaders.TRANSFER_ENCODING_CHUNKED);
+		}
+		if (headers != null && headers.length() > 0) {
+			out.print(headers.toString());
+		}
+		out.write(endOfHeader(keepAlive));
+	}
+
+	/**
+	 * Loads the error pages into prepared responses. A missing page is
+	 * replaced by the description of its response code.
+	 */
+	private void loadErrorPages() {
+		HttpResponseCodes[] codes = { HttpResponseCodes.HTTP_BAD_REQUEST,
+				HttpResponseCodes.HTTP_NOT_FOUND,
+				HttpResponseCodes.HTTP_SERVER_ERROR,
+				HttpResponseCodes.HTTP_NOT_IMPLEMENTED,
+				HttpResponseCodes.HTTP_SERVICE_UNAVAILABLE };
+		for (HttpResponseCodes code : codes) {
+			byte[] body = errorPage(code);
+			errorPages.put(code, new PreparedResponse(code, ResponseHeaders
+					.serialize(code, "text/html", body.length), body));
+		}
+	}
+
+	/**
+	 * Reads the error page of a response code.
+	 * 
+	 * @param code
+	 *            the response code
+	 * @return the page, or the description of the code if the page cannot
+	 *         be read
+	 */
+	static byte[] errorPage(HttpResponseCodes code) {
+		try {
+			return readFile(new File(ERROR_PAGES_LOCATION, code
+					.getResponseFileName()));
+		} catch (IOException e) {
+			log.warn("Cannot read the error page for " + code + ": "
+					+ e.getMessage());
+			return ResponseHeaders.bytes(code.toString());
+		}
+	}
+
+	/**
+	 * Reads a whole file.
+	 */
+	static byte[] readFile(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			byte[] buffer = new byte[2048];
+			int c;
+			while ((c = in.read(buffer)) != -1) {
+				content.write(buffer, 0, c);
+			}
+			return content.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns the <code>Connection</code> header, followed by the empty line
+	 * that ends the header block.
+	 */
+	private String connectionHeader(boolean keepAlive) {
+		if (keepAlive) {
+			return "Connection: keep-alive\r\nKeep-Alive: timeout="
+					+ (keepAliveTimeout / 1000) + "\r\n\r\n";
+		}
+		return "Connection: close\r\n\r\n";
+	}
+
+	/**
+	 * Returns the serialized <code>Connection</code> header appended to the
+	 * responses, followed by the empty line that ends the header block.
+	 * 
+	 * @param keepAlive
+	 *            whether the connection stays open after the response
+	 */
+	byte[] endOfHeader(boolean keepAlive) {
+		return keepAlive ? keepAliveHeader : closeHeader;
+	}
+
+	/**
+	 * Serializes the <code>Connection</code> headers appended to the
+	 * responses.
+	 */
+	private void initConnectionHeaders() {
+		keepAliveHeader = ResponseHeaders.bytes(connectionHeader(true));
+		closeHeader = ResponseHeaders.bytes(connectionHeader(false));
+	}
+
+	/**
+	 * Sends a prepared response (a cached file or an error page) with a
+	 * single gathering write: the header is copied into the output buffer,
+	 * which goes out with a pooled view of the body, so nothing is
+	 * allocated.
+	 * 
+	 * @param out
+	 *            the {@link ResponseOutput} of the connection
+	 * @param entry
+	 *            the prepared response
+	 * @param keepAlive
+	 *            whether the connection stays open after the response
+	 * @throws IOException
+	 */
+	private void sendCached(ResponseOutput out, PreparedResponse entry,
+			boolean keepAlive) throws IOException {
+		out.write(entry.header());
+		out.write(endOfHeader(keepAlive));
+		out.headWritten(entry.getStatus(), 0);
+		ByteBuffer body = entry.acquireBody();
+		try {
+			out.write(body);
+		} finally {
+			entry.releaseBody(body);
+		}
+		responseSent(out, entry.getStatus(), entry.bodyLength());
+	}
+
+	/**
+	 * Records a response in the metrics, and on the output for the access
+	 * log.
+	 */
+	void responseSent(ResponseOutput out, HttpResponseCodes status,
+			long bodyLength) {
+		metrics.responseSent(status);
+		out.setResponse(status, bodyLength);
+	}
+
+	/**
+	 * Loads a file into a cache entry.
+	 * 
+	 * @return the entry, or <code>null</code> if the file changed while it
+	 *         was read
+	 * @throws IOException
+	 */
+	private PreparedResponse loadEntry(File file, String contentType,
+			FileValidators validators) throws IOException {
+		long length = validators.getLength();
+		byte[] header = ResponseHeaders.serialize(HttpResponseCodes.HTTP_OK,
+				contentType, length);
+		byte[] validatorHeader = validators.header();
+		ByteBuffer data = ByteBuffer.allocateDirect(header.length
+				+ validatorHeader.length + (int) length);
+		data.put(header).put(validatorHeader);
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			FileChannel channel = fis.getChannel();
+			while (data.hasRemaining()) {
+				if (channel.read(data) < 0) {
+					return null;
+				}
+			}
+			if (channel.size() != length) {
+				return null;
+			}
+		} finally {
+			fis.close();
+		}
+		data.flip();
+		return new PreparedResponse(data, header.length
+				+ validatorHeader.length, validators);
+	}
+
+	/**
+	 * Maps the decoded segments of a path to a file under the document root,
+	 * when the document root is not indexed.
+	 * 
+	 * @return the file, or <code>null</code> if the path is malformed or
+	 *         leads out of the document root
+	 */
+	private File fileOf(List<String> segments) {
+		if (segments == null) {
+			return null;
+		}
+		File file = new File(documentRoot);
+		for (String segment : segments) {
+			file = new File(file, segment);
+		}
+		return file;
 	}
 
 	/**
 	 * Sends the requested html file along with the response header
 	 * 
 	 * @param out
-	 *            the {@link PrintStream} associated with the response output
-	 *            stream
+	 *            the {@link ResponseOutput} of the connection
 	 * @param responseFile
 	 *            the requested html file
+	 * @param validators
+	 *            the validators of the file, sent along with it
+	 * @param keepAlive
+	 *            whether the connection stays open after the response
+	 * @throws IOException
+	 */
+	private void sendOk(ResponseOutput out, File responseFile,
+			FileValidators validators, boolean keepAlive)
+			throws IOException {
+		String contentType = contentTypeOf(responseFile.getName());
+		long length = validators.getLength();
+		if (cache != null && cache.accepts(length)) {
+			long generation = cache.getGeneration();
+			PreparedResponse entry = loadEntry(responseFile, contentType,
+					validators);
+			if (entry != null) {
+				cache.put(responseFile.getPath(), entry, generation);
+				sendCached(out, entry, keepAlive);
+				return;
+			}
+		}
+		ResponseHeaders.write(out, HttpResponseCodes.HTTP_OK, contentType,
+				length);
+		out.write(validators.header());
+		out.write(endOfHeader(keepAlive));
+		out.headWritten(HttpResponseCodes.HTTP_OK, 0);
+		if (mappedFiles != null && mappedFiles.accepts(length)) {
+			sendMapped(out, responseFile, length);
+		} else {
+			sendStream(out, responseFile, length);
+		}
+		responseSent(out, HttpResponseCodes.HTTP_OK, length);
+	}
+
+	/**
+	 * Returns the content type of a file, from its extension.
+	 */
+	static String contentTypeOf(String fileName) {
+		int dot = fileName.lastIndexOf('.');
+		String contentType = MIME_TYPES.get(dot == -1 ? "" : fileName
+				.substring(dot));
+		return contentType != null ? contentType : "text/plain";
+	}
+
+	/**
+	 * Checks whether a file is worth compressing, from its extension. Files
+	 * with unknown extensions are not compressed.
+	 */
+	private static boolean isCompressible(String fileName) {
+		int dot = fileName.lastIndexOf('.');
+		return dot != -1
+				&& COMPRESSIBLE_TYPES.contains(MIME_TYPES.get(fileName
+						.substring(dot)));
+	}
+
+	/**
+	 * Sends a response file from its shared memory mapping.
+	 * 
+	 * @param out
+	 *            the {@link ResponseOutput} to which the file is sent
+	 * @param responseFile
+	 *            the response file
+	 * @param length
+	 *            the number of bytes to send, as announced in the header
 	 * @throws IOException
+	 *             if something goes wrong
 	 */
-	private void sendOk(PrintStream out, File responseFile) throws IOException {
-		String fileExtension = responseFile.getName().substring(
-				responseFile.getName().lastIndexOf('.'),
-				responseFile.getName().length());
-		printHeader(
-				out,
-				HttpResponseCodes.HTTP_OK,
-				MIME_TYPES.get(fileExtension) != null ? MIME_TYPES
-						.get(fileExtension) : "text/plain",
-				responseFile.length());
-		sendStream(out, responseFile);
+	private void sendMapped(ResponseOutput out, File responseFile, long length)
+			throws IOException {
+		MappedFileRegistry.Mapping mapping = mappedFiles.acquire(responseFile,
+				length);
+		try {
+			out.write(mapping.buffers());
+		} finally {
+			mappedFiles.release(mapping);
+		}
 	}
 
 	/**
-	 * Sends a response file to the output stream.
+	 * Sends a response file to the output stream.<br>
+	 * The file is transferred with {@link FileChannel#transferTo} when the
+	 * connection has a channel, so its content does not go through the heap.
 	 * 
 	 * @param out
-	 *            the {@link PrintStream} to which the file is sent
+	 *            the {@link ResponseOutput} to which the file is sent
 	 * @param responseFile
 	 *            the response file
+	 * @param length
+	 *            the number of bytes to send, as announced in the header
 	 * @throws IOException
 	 *             if something goes wrong
 	 */
-	private void sendStream(PrintStream out, File responseFile)
+	void sendStream(ResponseOutput out, File responseFile, long length)
 			throws IOException {
-		FileInputStream fis = null;
+		FileInputStream fis = new FileInputStream(responseFile);
 		try {
-			fis = new FileInputStream(responseFile);
-			byte[] buffer = new byte[2048];
-			int c;
-			while ((c = fis.read(buffer)) != -1) {
-				out.write(buffer, 0, c);
-			}
+			out.transferFrom(fis.getChannel(), 0, length);
 		} finally {
 			fis.close();
 		}
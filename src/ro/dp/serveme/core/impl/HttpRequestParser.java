@@ -0,0 +1,343 @@
+package ro.dp.serveme.core.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A reusable, byte level parser of HTTP request heads.<br>
+ * The parser reads the connection into its own buffer and runs a state
+ * machine over the bytes, recording the offsets of the request line and of
+ * the headers in an {@link HttpRequest}. Nothing is decoded or copied, so a
+ * request costs no allocation. A head split across several reads is resumed
+ * where the previous read stopped; bytes read past the end of a head
+ * (pipelined requests) are kept for the next call to {@link #next()}.<br>
+ * A parser is not thread safe. {@link HttpRequestHandler} keeps one per
+ * worker thread and binds it to a connection for as long as it serves it.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+public class HttpRequestParser {
+
+	/**
+	 * Thrown when a request head is malformed or too large.
+	 */
+	public static class BadRequestException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public BadRequestException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * The default size of the buffer, which is also the maximum size of a
+	 * request head.
+	 */
+	public static int DEFAULT_BUFFER_SIZE = 8192;
+
+	// the states of the parser
+	private static final int REQUEST_START = 0;
+	private static final int METHOD = 1;
+	private static final int URI = 2;
+	private static final int VERSION = 3;
+	private static final int REQUEST_LINE_LF = 4;
+	private static final int HEADER_START = 5;
+	private static final int HEADER_NAME = 6;
+	private static final int VALUE_START = 7;
+	private static final int VALUE = 8;
+	private static final int HEADER_LF = 9;
+	private static final int SKIP_LINE = 10;
+	private static final int END_LF = 11;
+	private static final int DONE = 12;
+
+	private byte[] buffer;
+
+	/**
+	 * The start of the request being parsed.
+	 */
+	private int start = 0;
+
+	/**
+	 * The next byte to parse.
+	 */
+	private int position = 0;
+
+	/**
+	 * The end of the bytes read into the buffer.
+	 */
+	private int limit = 0;
+
+	private int state = REQUEST_START;
+
+	/**
+	 * The time (in nanoseconds) spent parsing the current request, not
+	 * counting the time spent waiting for its bytes.
+	 */
+	private long parseNanos = 0;
+
+	private HttpRequest request = new HttpRequest();
+
+	/**
+	 * The stream the parser reads from.
+	 */
+	private InputStream in;
+
+	/**
+	 * Constructs a parser with the default buffer size.
+	 */
+	public HttpRequestParser() {
+		this(DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Constructs a parser.
+	 *
+	 * @param bufferSize
+	 *            the size of the buffer, i.e. the maximum size of a request
+	 *            head
+	 */
+	public HttpRequestParser(int bufferSize) {
+		buffer = new byte[bufferSize];
+		request.reset(buffer);
+	}
+
+	/**
+	 * Binds the parser to a new connection, discarding any buffered bytes.
+	 *
+	 * @param in
+	 *            the input stream of the connection
+	 */
+	public void reset(InputStream in) {
+		this.in = in;
+		start = 0;
+		position = 0;
+		limit = 0;
+		state = REQUEST_START;
+		request.reset(buffer);
+	}
+
+	/**
+	 * Checks whether the parser holds bytes of a request that was not
+	 * returned yet (e.g. pipelined requests).
+	 */
+	public boolean hasBufferedData() {
+		return limit > position
+				|| (state != REQUEST_START && state != DONE);
+	}
+
+	/**
+	 * Removes the bytes read past the last request head, when the connection
+	 * switches to another protocol.
+	 *
+	 * @return the bytes, possibly none
+	 */
+	byte[] takeBuffered() {
+		byte[] rest = new byte[limit - position];
+		System.arraycopy(buffer, position, rest, 0, rest.length);
+		limit = position;
+		return rest;
+	}
+
+	/**
+	 * Returns the time (in nanoseconds) spent parsing the last request
+	 * returned by {@link #next()}, not counting the time spent waiting for
+	 * its bytes.
+	 */
+	public long getParseNanos() {
+		return parseNanos;
+	}
+
+	/**
+	 * Reads and parses the next request head, blocking until it is complete.
+	 *
+	 * @return the request, or <code>null</code> if the connection was closed
+	 *         before a new request started
+	 * @throws BadRequestException
+	 *             if the request head is malformed or too large
+	 * @throws IOException
+	 *             if reading from the connection fails
+	 */
+	public HttpRequest next() throws IOException {
+		if (state == DONE) {
+			// the previous request is discarded
+			start = position;
+			state = REQUEST_START;
+			request.reset(buffer);
+		}
+		parseNanos = 0;
+		while (!timedParse()) {
+			if (limit == buffer.length) {
+				compact();
+			}
+			int count = in.read(buffer, limit, buffer.length - limit);
+			if (count < 0) {
+				if (state == REQUEST_START) {
+					return null;
+				}
+				throw new BadRequestException("Incomplete request head");
+			}
+			limit += count;
+		}
+		return request;
+	}
+
+	private boolean timedParse() throws BadRequestException {
+		long start = System.nanoTime();
+		try {
+			return parse();
+		} finally {
+			parseNanos += System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * Moves the request being parsed to the beginning of the buffer.
+	 */
+	private void compact() throws BadRequestException {
+		if (start == 0) {
+			throw new BadRequestException("Request head too large");
+		}
+		System.arraycopy(buffer, start, buffer, 0, limit - start);
+		request.shift(start);
+		position -= start;
+		limit -= start;
+		start = 0;
+	}
+
+	/**
+	 * Runs the state machine over the bytes read so far.
+	 *
+	 * @return <code>true</code> if a complete request head was parsed
+	 * @throws BadRequestException
+	 */
+	boolean parse() throws BadRequestException {
+		HttpRequest r = request;
+		byte[] buf = buffer;
+		int pos = position;
+		int s = state;
+		try {
+			while (pos < limit) {
+				byte b = buf[pos];
+				switch (s) {
+				case REQUEST_START:
+					if (b == '\r' || b == '\n') {
+						// empty lines before a request are ignored
+						start = pos + 1;
+						break;
+					}
+					start = pos;
+					r.methodStart = pos;
+					s = METHOD;
+					break;
+				case METHOD:
+					if (b == ' ') {
+						r.methodEnd = pos;
+						r.uriStart = pos + 1;
+						s = URI;
+					} else if (b < 'A' || b > 'Z') {
+						throw new BadRequestException("Invalid method");
+					}
+					break;
+				case URI:
+					if (b == ' ') {
+						if (pos == r.uriStart) {
+							throw new BadRequestException("Empty URI");
+						}
+						r.uriEnd = pos;
+						r.versionStart = pos + 1;
+						s = VERSION;
+					} else if (b == '\r' || b == '\n') {
+						throw new BadRequestException("Missing HTTP version");
+					}
+					break;
+				case VERSION:
+					if (b == '\r' || b == '\n') {
+						r.versionEnd = pos;
+						if (pos - r.versionStart < 8
+								|| buf[r.versionStart] != 'H') {
+							throw new BadRequestException("Invalid version");
+						}
+						s = b == '\r' ? REQUEST_LINE_LF : HEADER_START;
+					}
+					break;
+				case REQUEST_LINE_LF:
+				case HEADER_LF:
+					if (b != '\n') {
+						throw new BadRequestException("Invalid line end");
+					}
+					s = HEADER_START;
+					break;
+				case HEADER_START:
+					if (b == '\r') {
+						s = END_LF;
+					} else if (b == '\n') {
+						s = DONE;
+						position = pos + 1;
+						return true;
+					} else if (b == ' ' || b == '\t'
+							|| r.headerCount == HttpRequest.MAX_HEADERS) {
+						// folded lines and extra headers are ignored
+						s = SKIP_LINE;
+					} else {
+						r.nameStart[r.headerCount] = pos;
+						s = HEADER_NAME;
+					}
+					break;
+				case HEADER_NAME:
+					if (b == ':') {
+						r.nameEnd[r.headerCount] = pos;
+						s = VALUE_START;
+					} else if (b == '\r' || b == '\n') {
+						throw new BadRequestException("Invalid header");
+					}
+					break;
+				case VALUE_START:
+					if (b == ' ' || b == '\t') {
+						break;
+					}
+					r.valueStart[r.headerCount] = pos;
+					if (b == '\r' || b == '\n') {
+						// an empty value
+						r.valueEnd[r.headerCount] = pos;
+						r.headerCount++;
+						s = b == '\r' ? HEADER_LF : HEADER_START;
+					} else {
+						s = VALUE;
+					}
+					break;
+				case VALUE:
+					if (b == '\r' || b == '\n') {
+						int end = pos;
+						int valueStart = r.valueStart[r.headerCount];
+						while (end > valueStart
+								&& (buf[end - 1] == ' ' || buf[end - 1] == '\t')) {
+							end--;
+						}
+						r.valueEnd[r.headerCount] = end;
+						r.headerCount++;
+						s = b == '\r' ? HEADER_LF : HEADER_START;
+					}
+					break;
+				case SKIP_LINE:
+					if (b == '\n') {
+						s = HEADER_START;
+					}
+					break;
+				case END_LF:
+					if (b != '\n') {
+						throw new BadRequestException("Invalid head end");
+					}
+					s = DONE;
+					position = pos + 1;
+					return true;
+				}
+				pos++;
+			}
+			position = pos;
+			return false;
+		} finally {
+			state = s;
+		}
+	}
+}
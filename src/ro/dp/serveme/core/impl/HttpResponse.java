@@ -0,0 +1,392 @@
+package ro.dp.serveme.core.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import ro.dp.serveme.core.Response;
+import ro.dp.serveme.core.utils.HttpResponseCodes;
+
+/**
+ * The response to a request routed by the {@link HttpRequestHandler}.<br>
+ * A response is created once per connection and reset before every
+ * request. It is written by the handler that created it, on the
+ * {@link ResponseOutput} of the connection.<br>
+ * A streamed body goes through a buffer of a fixed size. A body that fits
+ * in the buffer is sent with a <code>Content-Length</code> when it is
+ * closed; a longer one (or one that is flushed) starts going out as soon
+ * as the buffer fills up, with chunked transfer encoding, or delimited by
+ * the end of the connection for HTTP/1.0 clients. The memory taken by a
+ * response does not depend on its length.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+class HttpResponse implements Response {
+
+	private HttpRequestHandler handler;
+
+	private ResponseOutput out;
+
+	/**
+	 * The buffer of the streamed bodies, created on demand.
+	 */
+	private byte[] buffer;
+
+	private int bufferSize;
+
+	/**
+	 * Whether the connection stays open after the response.
+	 */
+	private boolean keepAlive;
+
+	/**
+	 * Whether the client accepts a chunked body (HTTP/1.1).
+	 */
+	private boolean chunkable;
+
+	private HttpResponseCodes status;
+
+	private String contentType;
+
+	/**
+	 * The length of the body, or -1 if it is not known in advance.
+	 */
+	private long contentLength;
+
+	/**
+	 * The headers added to the response, serialized.
+	 */
+	private StringBuilder headers = new StringBuilder();
+
+	/**
+	 * Whether the response head was written.
+	 */
+	private boolean committed;
+
+	/**
+	 * The streamed body, or <code>null</code> if the body is not streamed.
+	 */
+	private Body body;
+
+	/**
+	 * The body of a response, streamed through the buffer.
+	 */
+	private class Body extends OutputStream {
+
+		private int count = 0;
+
+		/**
+		 * The number of bytes of the body written on the connection.
+		 */
+		private long written = 0;
+
+		private boolean chunked = false;
+
+		private boolean closed = false;
+
+		@Override
+		public void write(int b) throws IOException {
+			checkOpen();
+			if (count == buffer.length) {
+				drain();
+			}
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			checkOpen();
+			if (len > buffer.length - count) {
+				drain();
+				if (len >= buffer.length) {
+					// too large to be buffered, written as a chunk of its own
+					emit(b, off, len);
+					return;
+				}
+			}
+			System.arraycopy(b, off, buffer, count, len);
+			count += len;
+		}
+
+		/**
+		 * Sends what is buffered and flushes the connection, once the
+		 * response is committed. Until then the body is kept in the buffer,
+		 * so that the writers that flush their stream when they are closed
+		 * do not turn a short body into a chunked one.
+		 */
+		@Override
+		public void flush() throws IOException {
+			checkOpen();
+			if (committed) {
+				drain();
+				out.flush();
+			}
+		}
+
+		/**
+		 * Sends the response head (if it was not sent yet) and what is
+		 * buffered, and flushes the connection.
+		 */
+		void force() throws IOException {
+			checkOpen();
+			drain();
+			out.flush();
+		}
+
+		/**
+		 * Ends the body. A body that was never drained is sent in one piece,
+		 * with its length.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (!committed) {
+				if (contentLength >= 0 && contentLength != count) {
+					throw new IOException("The body has " + count
+							+ " bytes instead of " + contentLength);
+				}
+				contentLength = count;
+				commitHead();
+				emit(buffer, 0, count);
+				count = 0;
+			} else {
+				drain();
+				if (chunked) {
+					out.write(ResponseHeaders.LAST_CHUNK);
+				} else if (contentLength >= 0 && written != contentLength) {
+					// the client cannot tell where the response ends
+					keepAlive = false;
+					throw new IOException("The body has " + written
+							+ " bytes instead of " + contentLength);
+				}
+			}
+			handler.responseSent(out, status, written);
+		}
+
+		private void checkOpen() throws IOException {
+			if (closed) {
+				throw new IOException("The body was already sent");
+			}
+		}
+
+		/**
+		 * Writes the buffered bytes, sending the response head first.
+		 */
+		private void drain() throws IOException {
+			if (!committed) {
+				commitHead();
+			}
+			emit(buffer, 0, count);
+			count = 0;
+		}
+
+		private void commitHead() throws IOException {
+			committed = true;
+			if (contentLength < 0) {
+				chunked = chunkable;
+				if (!chunked) {
+					keepAlive = false;
+				}
+			}
+			handler.writeHead(out, status, contentType, headers,
+					contentLength, chunked, keepAlive);
+		}
+
+		private void emit(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return;
+			}
+			if (contentLength >= 0 && written + len > contentLength) {
+				keepAlive = false;
+				throw new IOException("The body is longer than "
+						+ contentLength + " bytes");
+			}
+			if (chunked) {
+				ResponseHeaders.writeChunkSize(out, len);
+				out.write(b, off, len);
+				out.write(ResponseHeaders.CRLF);
+			} else {
+				out.write(b, off, len);
+			}
+			written += len;
+		}
+	}
+
+	/**
+	 * Constructs the response of a connection.
+	 *
+	 * @param handler
+	 *            the handler that writes the response
+	 * @param out
+	 *            the {@link ResponseOutput} of the connection
+	 * @param bufferSize
+	 *            the size of the buffer of the streamed bodies
+	 */
+	HttpResponse(HttpRequestHandler handler, ResponseOutput out, int bufferSize) {
+		this.handler = handler;
+		this.out = out;
+		this.bufferSize = Math.max(1, bufferSize);
+	}
+
+	/**
+	 * Clears the response before the next request is routed.
+	 *
+	 * @param keepAlive
+	 *            whether the connection may stay open after the response
+	 * @param chunkable
+	 *            whether the client accepts a chunked body
+	 */
+	void reset(boolean keepAlive, boolean chunkable) {
+		this.keepAlive = keepAlive;
+		this.chunkable = chunkable;
+		status = HttpResponseCodes.HTTP_OK;
+		contentType = "text/html";
+		contentLength = -1;
+		headers.setLength(0);
+		committed = false;
+		body = null;
+	}
+
+	ResponseOutput getOutput() {
+		return out;
+	}
+
+	/**
+	 * Tells whether the connection stays open after the response. A body
+	 * delimited by the end of the connection closes it.
+	 */
+	boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * Marks the response as sent, when the handler wrote it on the output
+	 * itself.
+	 */
+	void commit() {
+		checkNotCommitted();
+		committed = true;
+	}
+
+	/**
+	 * Ends the streamed body, if the endpoint did not close it.
+	 *
+	 * @throws IOException
+	 */
+	void finish() throws IOException {
+		if (body != null) {
+			body.close();
+		}
+	}
+
+	private void checkNotCommitted() {
+		if (committed || body != null) {
+			throw new IllegalStateException("The response was already sent");
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * ro.dp.serveme.core.Response#setStatus(ro.dp.serveme.core.utils.HttpResponseCodes
+	 * )
+	 */
+	public void setStatus(HttpResponseCodes status) {
+		this.status = status;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ro.dp.serveme.core.Response#setContentType(java.lang.String)
+	 */
+	public void setContentType(String contentType) {
+		this.contentType = contentType;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ro.dp.serveme.core.Response#setContentLength(long)
+	 */
+	public void setContentLength(long contentLength) {
+		if (committed) {
+			throw new IllegalStateException("The response was already sent");
+		}
+		this.contentLength = contentLength;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ro.dp.serveme.core.Response#setHeader(java.lang.String,
+	 * java.lang.String)
+	 */
+	public void setHeader(String name, String value) {
+		if (name.indexOf('\r') != -1 || name.indexOf('\n') != -1
+				|| value.indexOf('\r') != -1 || value.indexOf('\n') != -1) {
+			throw new IllegalArgumentException("Line break in header " + name);
+		}
+		headers.append(name).append(": ").append(value).append("\r\n");
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ro.dp.serveme.core.Response#getOutputStream()
+	 */
+	public OutputStream getOutputStream() {
+		if (body == null) {
+			checkNotCommitted();
+			if (buffer == null) {
+				buffer = new byte[bufferSize];
+			}
+			body = new Body();
+		}
+		return body;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ro.dp.serveme.core.Response#flush()
+	 */
+	public void flush() throws IOException {
+		getOutputStream();
+		body.force();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ro.dp.serveme.core.Response#send(byte[])
+	 */
+	public void send(byte[] body) throws IOException {
+		commit();
+		handler.send(out, status, contentType, headers, body, keepAlive);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * ro.dp.serveme.core.Response#sendError(ro.dp.serveme.core.utils.HttpResponseCodes
+	 * )
+	 */
+	public void sendError(HttpResponseCodes status) throws IOException {
+		commit();
+		handler.sendError(out, status, keepAlive);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ro.dp.serveme.core.Response#isCommitted()
+	 */
+	public boolean isCommitted() {
+		return committed;
+	}
+}
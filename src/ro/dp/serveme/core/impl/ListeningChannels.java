@@ -0,0 +1,109 @@
+package ro.dp.serveme.core.impl;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Opens the listening channels of the connectors.<br>
+ * Several channels can be bound to the same address with
+ * <code>SO_REUSEPORT</code>, so that every acceptor thread has a socket of
+ * its own and the kernel spreads the incoming connections over them, instead
+ * of all the acceptors contending on a single <code>accept()</code>. The
+ * option exists since Java 9 and only on some platforms (Linux, the BSDs);
+ * elsewhere the acceptors share one channel.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+class ListeningChannels {
+
+	private static Logger log = Logger.getLogger(ListeningChannels.class);
+
+	/**
+	 * The default length of the queue of pending connections.
+	 */
+	static int DEFAULT_BACKLOG = 1024;
+
+	/**
+	 * The <code>SO_REUSEPORT</code> option, or <code>null</code> if it is not
+	 * supported.
+	 */
+	private static SocketOption<Boolean> REUSE_PORT = reusePortOption();
+
+	/**
+	 * Checks whether several channels can listen on the same address.
+	 */
+	static boolean isReusePortSupported() {
+		return REUSE_PORT != null;
+	}
+
+	/**
+	 * Opens a listening channel.
+	 *
+	 * @param host
+	 *            the host the channel is bound to
+	 * @param port
+	 *            the port the channel is bound to
+	 * @param backlog
+	 *            the length of the queue of pending connections, 0 for the
+	 *            default of the JDK
+	 * @param reusePort
+	 *            whether other channels may listen on the same address (only
+	 *            if {@link #isReusePortSupported()})
+	 * @return the bound channel, in blocking mode
+	 * @throws IOException
+	 */
+	static ServerSocketChannel open(String host, int port, int backlog,
+			boolean reusePort) throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		try {
+			if (reusePort && REUSE_PORT != null) {
+				channel.setOption(REUSE_PORT, Boolean.TRUE);
+			}
+			channel.bind(new InetSocketAddress(InetAddress.getByName(host),
+					port), backlog);
+			return channel;
+		} catch (BindException e) {
+			channel.close();
+			// naming the address, as there may be several
+			BindException named = new BindException(host + ":" + port + " ("
+					+ e.getMessage() + ")");
+			named.initCause(e);
+			throw named;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Looks up <code>StandardSocketOptions.SO_REUSEPORT</code>, which does
+	 * not exist before Java 9, and checks that the platform supports it.
+	 */
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> reusePortOption() {
+		try {
+			SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class
+					.getField("SO_REUSEPORT").get(null);
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			try {
+				if (channel.supportedOptions().contains(option)) {
+					return option;
+				}
+			} finally {
+				channel.close();
+			}
+		} catch (NoSuchFieldException e) {
+			// before Java 9
+		} catch (Exception e) {
+			log.debug("Cannot check SO_REUSEPORT: " + e.getMessage(), e);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,295 @@
+package ro.dp.serveme.core.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.apache.log4j.Logger;
+
+import ro.dp.serveme.core.utils.DocumentRootWatcher;
+
+/**
+ * A registry of memory-mapped files, shared by all the connections.<br>
+ * Large files are mapped once and every download of the same file reads
+ * from the same mapping (and from the OS page cache behind it). Mappings are
+ * reference counted: a mapping that is invalidated (because the file
+ * changed) or evicted (because the registry is over its budget) is dropped
+ * from the registry right away, but unmapped only when its last user
+ * releases it. Files larger than 1 GB are mapped in several regions.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+public class MappedFileRegistry implements DocumentRootWatcher.Listener {
+
+	private static Logger log = Logger.getLogger(MappedFileRegistry.class);
+
+	/**
+	 * The size of a mapped region.
+	 */
+	private static long REGION_SIZE = 1L << 30;
+
+	/**
+	 * The JDK's unsupported <code>Unsafe.invokeCleaner</code>, used to unmap
+	 * the mappings, or <code>null</code> if it is not available.
+	 */
+	private static Object UNSAFE;
+	private static Method INVOKE_CLEANER;
+	static {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			UNSAFE = theUnsafe.get(null);
+			INVOKE_CLEANER = unsafeClass.getMethod("invokeCleaner",
+					ByteBuffer.class);
+		} catch (Exception e) {
+			INVOKE_CLEANER = null;
+		}
+	}
+
+	/**
+	 * A mapped file.
+	 */
+	static class Mapping {
+
+		private String path;
+
+		private long length;
+
+		private MappedByteBuffer[] regions;
+
+		/**
+		 * The number of connections using this mapping.
+		 */
+		private int refCount = 0;
+
+		/**
+		 * Set when the mapping was dropped from the registry.
+		 */
+		private boolean released = false;
+
+		Mapping(String path, long length, MappedByteBuffer[] regions) {
+			this.path = path;
+			this.length = length;
+			this.regions = regions;
+		}
+
+		/**
+		 * Returns new views of the mapped regions, ready to be written.
+		 */
+		ByteBuffer[] buffers() {
+			ByteBuffer[] buffers = new ByteBuffer[regions.length];
+			for (int idx = 0; idx < regions.length; idx++) {
+				buffers[idx] = regions[idx].duplicate();
+			}
+			return buffers;
+		}
+	}
+
+	/**
+	 * The active mappings, in access order.
+	 */
+	private LinkedHashMap<String, Mapping> mappings = new LinkedHashMap<String, Mapping>(
+			16, 0.75f, true);
+
+	/**
+	 * The minimum size of a file served from a mapping.
+	 */
+	private long threshold;
+
+	/**
+	 * The maximum number of bytes mapped by the registry (mappings still in
+	 * use may temporarily exceed it).
+	 */
+	private long capacity;
+
+	/**
+	 * The number of bytes mapped by the registry.
+	 */
+	private long size = 0;
+
+	/**
+	 * Constructs a registry.
+	 *
+	 * @param threshold
+	 *            the minimum size of a file served from a mapping
+	 * @param capacity
+	 *            the maximum number of bytes kept mapped
+	 */
+	public MappedFileRegistry(long threshold, long capacity) {
+		this.threshold = threshold;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Checks whether a file of the specified size is served from a mapping.
+	 * The files larger than the whole budget of the registry are not.
+	 */
+	boolean accepts(long length) {
+		return length >= threshold && length <= capacity;
+	}
+
+	/**
+	 * Returns the mapping of a file, mapping it if needed. The mapping must
+	 * be released with {@link #release(Mapping)} when the caller is done
+	 * with it.
+	 *
+	 * @param file
+	 *            the file
+	 * @param length
+	 *            the expected length of the file
+	 * @return the mapping
+	 * @throws IOException
+	 *             if the file cannot be mapped
+	 */
+	synchronized Mapping acquire(File file, long length) throws IOException {
+		String path = file.getPath();
+		Mapping mapping = mappings.get(path);
+		if (mapping != null && mapping.length != length) {
+			drop(mapping);
+			mapping = null;
+		}
+		if (mapping == null) {
+			mapping = new Mapping(path, length, map(file, length));
+			mappings.put(path, mapping);
+			size += length;
+			// in use before the eviction, so that it is not evicted itself
+			mapping.refCount++;
+			evict();
+		} else {
+			mapping.refCount++;
+		}
+		return mapping;
+	}
+
+	/**
+	 * Releases a mapping obtained with {@link #acquire(File, long)}.
+	 *
+	 * @param mapping
+	 *            the mapping
+	 */
+	synchronized void release(Mapping mapping) {
+		mapping.refCount--;
+		if (mapping.released && mapping.refCount == 0) {
+			unmap(mapping);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * ro.dp.serveme.core.utils.DocumentRootWatcher.Listener#fileChanged(java
+	 * .io.File)
+	 */
+	public synchronized void fileChanged(File file) {
+		String path = file.getPath();
+		String children = path + File.separator;
+		Iterator<Mapping> it = mappings.values().iterator();
+		while (it.hasNext()) {
+			Mapping mapping = it.next();
+			if (mapping.path.equals(path) || mapping.path.startsWith(children)) {
+				it.remove();
+				released(mapping);
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ro.dp.serveme.core.utils.DocumentRootWatcher.Listener#allChanged()
+	 */
+	public synchronized void allChanged() {
+		Iterator<Mapping> it = mappings.values().iterator();
+		while (it.hasNext()) {
+			Mapping mapping = it.next();
+			it.remove();
+			released(mapping);
+		}
+	}
+
+	/**
+	 * Evicts the least recently used mappings that are not in use until the
+	 * registry is within its budget.
+	 */
+	private void evict() {
+		Iterator<Mapping> it = mappings.values().iterator();
+		while (size > capacity && it.hasNext()) {
+			Mapping mapping = it.next();
+			if (mapping.refCount == 0) {
+				it.remove();
+				released(mapping);
+			}
+		}
+	}
+
+	private void drop(Mapping mapping) {
+		mappings.remove(mapping.path);
+		released(mapping);
+	}
+
+	/**
+	 * Marks a mapping as no longer registered and unmaps it if it is not in
+	 * use.
+	 */
+	private void released(Mapping mapping) {
+		mapping.released = true;
+		size -= mapping.length;
+		if (mapping.refCount == 0) {
+			unmap(mapping);
+		}
+	}
+
+	private static MappedByteBuffer[] map(File file, long length)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() < length) {
+				throw new IOException("File truncated: " + file);
+			}
+			int count = (int) ((length + REGION_SIZE - 1) / REGION_SIZE);
+			MappedByteBuffer[] regions = new MappedByteBuffer[Math.max(1,
+					count)];
+			for (int idx = 0; idx < regions.length; idx++) {
+				long position = idx * REGION_SIZE;
+				regions[idx] = channel.map(FileChannel.MapMode.READ_ONLY,
+						position, Math.min(REGION_SIZE, length - position));
+			}
+			return regions;
+		} finally {
+			// the mapping stays valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * Unmaps a mapping that nobody uses anymore. Java has no public API for
+	 * this, so {@link #INVOKE_CLEANER} is used when it is available; otherwise
+	 * the mapping goes away when it is garbage collected. Unmapping a mapping
+	 * twice does nothing.
+	 */
+	private static void unmap(Mapping mapping) {
+		if (mapping.regions == null) {
+			return;
+		}
+		if (INVOKE_CLEANER != null) {
+			for (MappedByteBuffer region : mapping.regions) {
+				try {
+					INVOKE_CLEANER.invoke(UNSAFE, region);
+				} catch (Exception e) {
+					log.debug("Cannot unmap " + mapping.path, e);
+				}
+			}
+		}
+		mapping.regions = null;
+	}
+}
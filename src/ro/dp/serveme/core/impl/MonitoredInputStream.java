@@ -0,0 +1,52 @@
+package ro.dp.serveme.core.impl;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import ro.dp.serveme.core.utils.ConnectionRegistry;
+
+/**
+ * The input side of a connection, used by {@link HttpRequestHandler} to read
+ * the requests.<br>
+ * Every read that returns bytes is recorded in the registry entry of the
+ * connection, so that an idle connection that starts sending a request is
+ * held to the deadline of the request head.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+class MonitoredInputStream extends FilterInputStream {
+
+	private ConnectionRegistry.Entry activity;
+
+	/**
+	 * Constructs the input of a connection.
+	 *
+	 * @param in
+	 *            the socket's input stream
+	 * @param activity
+	 *            the registry entry of the connection
+	 */
+	MonitoredInputStream(InputStream in, ConnectionRegistry.Entry activity) {
+		super(in);
+		this.activity = activity;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = in.read();
+		if (b >= 0) {
+			activity.received();
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int count = in.read(b, off, len);
+		if (count > 0) {
+			activity.received();
+		}
+		return count;
+	}
+}
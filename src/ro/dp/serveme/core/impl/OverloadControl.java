@@ -0,0 +1,269 @@
+package ro.dp.serveme.core.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import ro.dp.serveme.core.utils.HttpResponseCodes;
+
+/**
+ * The overload control of a {@link ServerImpl}.<br>
+ * It keeps track of the jobs in flight (queued or running) and of the time
+ * they spend in the queue, and uses them to:
+ * <ul>
+ * <li>resize the core of the thread pool: the pool grows when jobs wait too
+ * long in the queue or the threads are busy, and shrinks when they are idle
+ * (the maximum pool size stays fixed: the threads over the core are only
+ * started once the queue is full, to absorb bursts);</li>
+ * <li>tell the connectors to stop accepting connections when the number of
+ * jobs in flight reaches the high-water mark (and to resume below the
+ * low-water mark);</li>
+ * <li>answer the connections that cannot be dispatched anyway with a
+ * precomputed "503 Service Unavailable" response carrying a
+ * <code>Retry-After</code> header.</li>
+ * </ul>
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+class OverloadControl implements Runnable {
+
+	private static Logger log = Logger.getLogger(OverloadControl.class);
+
+	/**
+	 * The interval (in milliseconds) at which the pool is tuned.
+	 */
+	private static int TUNE_INTERVAL = 500;
+
+	/**
+	 * The queue wait (in nanoseconds) above which the pool grows.
+	 */
+	private static long TARGET_QUEUE_WAIT = 20 * 1000 * 1000L;
+
+	/**
+	 * The number of seconds sent in the <code>Retry-After</code> header.
+	 */
+	private static int RETRY_AFTER = 5;
+
+	/**
+	 * The "503 Service Unavailable" response, serialized once.
+	 */
+	private static byte[] SERVICE_UNAVAILABLE = serviceUnavailable();
+
+	/**
+	 * The executor being controlled.
+	 */
+	private ExecutorService executor;
+
+	/**
+	 * The bounds of the core pool size.
+	 */
+	private int minThreads;
+	private int maxThreads;
+
+	/**
+	 * The number of jobs in flight above which the server is overloaded.
+	 */
+	private int highWaterMark;
+
+	/**
+	 * The number of jobs in flight under which an overloaded server accepts
+	 * connections again.
+	 */
+	private int lowWaterMark;
+
+	private AtomicInteger inFlight = new AtomicInteger();
+
+	/**
+	 * Total queue wait and number of jobs started since the last tuning.
+	 */
+	private AtomicLong queueWait = new AtomicLong();
+	private AtomicInteger started = new AtomicInteger();
+
+	private AtomicLong rejected = new AtomicLong();
+
+	private volatile boolean overloaded = false;
+
+	private volatile boolean running = false;
+
+	/**
+	 * Constructs the overload control of an executor.
+	 *
+	 * @param executor
+	 *            the executor of the server
+	 * @param minThreads
+	 *            the smallest core pool size
+	 * @param maxThreads
+	 *            the largest core pool size
+	 * @param highWaterMark
+	 *            the number of jobs in flight at which the server is
+	 *            overloaded
+	 */
+	OverloadControl(ExecutorService executor, int minThreads, int maxThreads,
+			int highWaterMark) {
+		this.executor = executor;
+		this.minThreads = minThreads;
+		this.maxThreads = maxThreads;
+		setHighWaterMark(highWaterMark);
+	}
+
+	/**
+	 * Sets the high-water mark; the low-water mark is set to three quarters
+	 * of it.
+	 */
+	void setHighWaterMark(int highWaterMark) {
+		this.highWaterMark = Math.max(1, highWaterMark);
+		this.lowWaterMark = this.highWaterMark * 3 / 4;
+	}
+
+	/**
+	 * Starts tuning the thread pool (if the executor is one).
+	 */
+	void start() {
+		if (!(executor instanceof ThreadPoolExecutor)) {
+			return;
+		}
+		running = true;
+		Thread thread = new Thread(this, "ServeMe-pool-tuner");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	void stop() {
+		running = false;
+	}
+
+	/**
+	 * Wraps a job so that its queue wait and completion are accounted for.
+	 * If the wrapped job cannot be submitted, {@link #rejected()} must be
+	 * called.
+	 */
+	Runnable track(final Runnable job) {
+		inFlight.incrementAndGet();
+		final long queued = System.nanoTime();
+		return new Runnable() {
+			public void run() {
+				queueWait.addAndGet(System.nanoTime() - queued);
+				started.incrementAndGet();
+				try {
+					job.run();
+				} finally {
+					inFlight.decrementAndGet();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Accounts for a tracked job that was rejected by the executor.
+	 */
+	void rejected() {
+		inFlight.decrementAndGet();
+		long count = rejected.incrementAndGet();
+		if (count == 1 || count % 1000 == 0) {
+			log.warn("Rejected " + count + " connections so far");
+		}
+	}
+
+	/**
+	 * Tells whether the number of jobs in flight reached the high-water mark
+	 * (and did not go back under the low-water mark since).
+	 */
+	boolean isOverloaded() {
+		int jobs = inFlight.get();
+		if (overloaded) {
+			if (jobs < lowWaterMark) {
+				overloaded = false;
+				log.info("Load back to normal, accepting connections");
+			}
+		} else if (jobs >= highWaterMark) {
+			overloaded = true;
+			log.warn("High-water mark reached (" + jobs
+					+ " jobs in flight), pausing accepts");
+		}
+		return overloaded;
+	}
+
+	/**
+	 * Answers a connection with the precomputed "503 Service Unavailable"
+	 * response and closes it.
+	 */
+	void reject(Socket connection) {
+		try {
+			OutputStream out = connection.getOutputStream();
+			out.write(SERVICE_UNAVAILABLE);
+			out.flush();
+			connection.shutdownOutput();
+		} catch (IOException e) {
+			log.debug(e.getMessage(), e);
+		} finally {
+			try {
+				connection.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+
+	public void run() {
+		ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+		while (running && !pool.isShutdown()) {
+			try {
+				Thread.sleep(TUNE_INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+			tune(pool);
+		}
+	}
+
+	/**
+	 * Resizes the core of the pool from the average queue wait and the
+	 * utilization of the threads since the last call.
+	 */
+	private void tune(ThreadPoolExecutor pool) {
+		int count = started.getAndSet(0);
+		long wait = queueWait.getAndSet(0);
+		long averageWait = count > 0 ? wait / count : 0;
+		int core = pool.getCorePoolSize();
+		int active = pool.getActiveCount();
+		int queued = pool.getQueue().size();
+		double utilization = (double) active / Math.max(1, pool.getPoolSize());
+		if ((averageWait > TARGET_QUEUE_WAIT || (queued > 0 && utilization >= 0.9))
+				&& core < maxThreads) {
+			int size = Math.min(maxThreads, core + Math.max(1, core / 4));
+			pool.setCorePoolSize(size);
+			log.debug("Growing the pool to " + size + " threads (queue wait "
+					+ averageWait / 1000 + "us, utilization " + utilization
+					+ ")");
+		} else if (averageWait < TARGET_QUEUE_WAIT / 4 && queued == 0
+				&& utilization < 0.5 && core > minThreads) {
+			int size = Math.max(minThreads, core - Math.max(1, core / 8));
+			pool.setCorePoolSize(size);
+			log.debug("Shrinking the pool to " + size + " threads");
+		}
+	}
+
+	/**
+	 * Serializes the "503 Service Unavailable" response, using the page in
+	 * the error pages folder as body.
+	 */
+	private static byte[] serviceUnavailable() {
+		HttpResponseCodes code = HttpResponseCodes.HTTP_SERVICE_UNAVAILABLE;
+		byte[] body = HttpRequestHandler.errorPage(code);
+		byte[] head = ResponseHeaders.serialize(code, "text/html", body.length);
+		byte[] tail = ResponseHeaders.bytes("Retry-After: " + RETRY_AFTER
+				+ "\r\nConnection: close\r\n\r\n");
+		byte[] response = new byte[head.length + tail.length + body.length];
+		System.arraycopy(head, 0, response, 0, head.length);
+		System.arraycopy(tail, 0, response, head.length, tail.length);
+		System.arraycopy(body, 0, response, head.length + tail.length,
+				body.length);
+		return response;
+	}
+}
@@ -0,0 +1,171 @@
+package ro.dp.serveme.core.impl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ro.dp.serveme.core.utils.HttpResponseCodes;
+
+/**
+ * A response serialized ahead of time.<br>
+ * The response header (everything but the <code>Connection</code> header and
+ * the empty line that ends the header block) and the body are held in a
+ * single read-only direct {@link ByteBuffer}, so the response can be sent with
+ * one gathering write. Prepared responses are shared between threads; each
+ * send works on its own view of the body, taken from a small pool of views so
+ * that sending a prepared response allocates nothing.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+class PreparedResponse {
+
+	/**
+	 * The serialized header and body. This buffer is never read directly; the
+	 * {@link #header()} and {@link #body()} views are used instead.
+	 */
+	private ByteBuffer data;
+
+	/**
+	 * The serialized header, copied into the output buffer of the connection
+	 * ahead of the body.
+	 */
+	private byte[] header;
+
+	/**
+	 * The length of the serialized header.
+	 */
+	private int headerLength;
+
+	/**
+	 * The number of body views kept for reuse.
+	 */
+	private static final int POOLED_VIEWS = 8;
+
+	/**
+	 * The body views released by the sends done with them, or
+	 * <code>null</code> slots.
+	 */
+	private AtomicReferenceArray<ByteBuffer> views = new AtomicReferenceArray<ByteBuffer>(
+			POOLED_VIEWS);
+
+	/**
+	 * The status of the response.
+	 */
+	private HttpResponseCodes status;
+
+	/**
+	 * The validators of the file the response was loaded from, or
+	 * <code>null</code>.
+	 */
+	private FileValidators validators = null;
+
+	/**
+	 * Constructs a prepared "200 OK" response for a file.
+	 *
+	 * @param data
+	 *            the serialized header followed by the body, flipped
+	 * @param headerLength
+	 *            the length of the header
+	 * @param validators
+	 *            the validators of the file
+	 */
+	PreparedResponse(ByteBuffer data, int headerLength,
+			FileValidators validators) {
+		this.data = data.asReadOnlyBuffer();
+		this.header = new byte[headerLength];
+		this.data.duplicate().get(header);
+		this.headerLength = headerLength;
+		this.status = HttpResponseCodes.HTTP_OK;
+		this.validators = validators;
+	}
+
+	/**
+	 * Constructs a prepared response from a serialized header and a body.
+	 *
+	 * @param status
+	 *            the status of the response
+	 * @param header
+	 *            the serialized header
+	 * @param body
+	 *            the body
+	 */
+	PreparedResponse(HttpResponseCodes status, byte[] header, byte[] body) {
+		ByteBuffer data = ByteBuffer.allocateDirect(header.length + body.length);
+		data.put(header).put(body).flip();
+		this.data = data.asReadOnlyBuffer();
+		this.header = header.clone();
+		this.headerLength = header.length;
+		this.status = status;
+	}
+
+	/**
+	 * Returns the status of the response.
+	 */
+	HttpResponseCodes getStatus() {
+		return status;
+	}
+
+	/**
+	 * Returns the validators of the file the response was loaded from, or
+	 * <code>null</code> if it was not loaded from a file.
+	 */
+	FileValidators getValidators() {
+		return validators;
+	}
+
+	/**
+	 * Returns the serialized header. The array is shared and must not be
+	 * modified.
+	 */
+	byte[] header() {
+		return header;
+	}
+
+	/**
+	 * Returns a new view of the body.
+	 */
+	ByteBuffer body() {
+		ByteBuffer body = data.duplicate();
+		body.position(headerLength);
+		return body;
+	}
+
+	/**
+	 * Returns a view of the body for a send, reusing a released one if there
+	 * is any. The view is handed back with {@link #releaseBody(ByteBuffer)}.
+	 */
+	ByteBuffer acquireBody() {
+		for (int idx = 0; idx < POOLED_VIEWS; idx++) {
+			ByteBuffer view = views.get(idx);
+			if (view != null && views.compareAndSet(idx, view, null)) {
+				view.limit(view.capacity()).position(headerLength);
+				return view;
+			}
+		}
+		return body();
+	}
+
+	/**
+	 * Hands back a view returned by {@link #acquireBody()}, once it was sent.
+	 */
+	void releaseBody(ByteBuffer view) {
+		for (int idx = 0; idx < POOLED_VIEWS; idx++) {
+			if (views.get(idx) == null && views.compareAndSet(idx, null, view)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the length of the body.
+	 */
+	int bodyLength() {
+		return data.capacity() - headerLength;
+	}
+
+	/**
+	 * Returns the size of the response (header and body).
+	 */
+	int size() {
+		return data.capacity();
+	}
+}
@@ -0,0 +1,121 @@
+package ro.dp.serveme.core.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Decoding and normalization of the request paths.<br>
+ * A path is split once per request into its decoded segments, with the
+ * <code>.</code> and <code>..</code> segments resolved, and both the routes
+ * of the {@link Router} and the files of the {@link DocumentIndex} are
+ * looked up with these segments. The way a path is encoded therefore cannot
+ * lead a request around a route (or a filter) or out of the document root.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+class RequestPaths {
+
+	private static Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * Whether file names are compared ignoring case, as on Windows.
+	 */
+	private static boolean CASE_INSENSITIVE = new File("a").equals(new File(
+			"A"));
+
+	private RequestPaths() {
+	}
+
+	/**
+	 * Splits the path of an URI into its decoded segments, resolving the
+	 * <code>.</code> and <code>..</code> segments.
+	 *
+	 * @param uri
+	 *            the path of the request, as sent by the client (encoded)
+	 * @return the segments, or <code>null</code> if the path is malformed
+	 *         or leads out of the document root
+	 */
+	static List<String> segments(String uri) {
+		List<String> segments = new ArrayList<String>();
+		int start = 0;
+		while (start <= uri.length()) {
+			int end = uri.indexOf('/', start);
+			if (end == -1) {
+				end = uri.length();
+			}
+			String segment = decode(uri, start, end);
+			if (segment == null) {
+				return null;
+			}
+			if (segment.equals("..")) {
+				if (segments.isEmpty()) {
+					return null;
+				}
+				segments.remove(segments.size() - 1);
+			} else if (segment.length() > 0 && !segment.equals(".")) {
+				segments.add(segment);
+			}
+			start = end + 1;
+		}
+		return segments;
+	}
+
+	/**
+	 * Percent-decodes a path segment (as UTF-8).
+	 *
+	 * @return the segment, or <code>null</code> if it is malformed or holds
+	 *         a separator or a control character once decoded
+	 */
+	private static String decode(String uri, int start, int end) {
+		boolean encoded = false;
+		for (int idx = start; idx < end && !encoded; idx++) {
+			char c = uri.charAt(idx);
+			encoded = c == '%' || c >= 0x80;
+		}
+		if (!encoded) {
+			return checked(uri.substring(start, end));
+		}
+		// the head is decoded as ISO-8859-1, one char per byte
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(end - start);
+		for (int idx = start; idx < end; idx++) {
+			char c = uri.charAt(idx);
+			if (c != '%') {
+				bytes.write(c);
+				continue;
+			}
+			if (idx + 2 >= end) {
+				return null;
+			}
+			int high = Character.digit(uri.charAt(idx + 1), 16);
+			int low = Character.digit(uri.charAt(idx + 2), 16);
+			if (high == -1 || low == -1) {
+				return null;
+			}
+			bytes.write((high << 4) | low);
+			idx += 2;
+		}
+		return checked(new String(bytes.toByteArray(), UTF_8));
+	}
+
+	private static String checked(String segment) {
+		for (int idx = 0; idx < segment.length(); idx++) {
+			char c = segment.charAt(idx);
+			if (c < 0x20 || c == 0x7f || c == '/' || c == '\\') {
+				return null;
+			}
+		}
+		return segment;
+	}
+
+	/**
+	 * Returns the key a segment is compared by: the segment itself, or the
+	 * segment in lower case where file names are compared ignoring case.
+	 */
+	static String fold(String segment) {
+		return CASE_INSENSITIVE ? segment.toLowerCase(Locale.ROOT) : segment;
+	}
+}
@@ -0,0 +1,264 @@
+package ro.dp.serveme.core.impl;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ro.dp.serveme.core.utils.DocumentRootWatcher;
+
+/**
+ * An in-memory cache of static responses.<br>
+ * Each entry is a {@link PreparedResponse}, holding the serialized response
+ * header and the body in a single direct {@link ByteBuffer}, so a hit is
+ * served with one gathering write and no filesystem access. The cache is
+ * bounded by a total byte budget and evicts the entries not used lately
+ * first (an approximation of LRU: a clock hand sweeps the entries, sparing
+ * once those used since its last pass); files larger than the maximum entry
+ * size are never cached. Entries are invalidated by the
+ * {@link DocumentRootWatcher} notifications.<br>
+ * The cache also remembers the files that have no response to cache (e.g.
+ * files too small to be worth compressing), so they are not loaded again
+ * until they change.<br>
+ * Lookups take no lock: a hit only sets the reference bit of its entry, if
+ * it is not set already. Additions and invalidations are serialized.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+public class ResponseCache implements DocumentRootWatcher.Listener {
+
+	/**
+	 * A cached response and its reference bit.
+	 */
+	private static class Slot {
+
+		private final PreparedResponse response;
+
+		/**
+		 * Whether the entry was used since the clock hand last passed it.
+		 */
+		private volatile boolean referenced = true;
+
+		Slot(PreparedResponse response) {
+			this.response = response;
+		}
+	}
+
+	/**
+	 * The cached entries.
+	 */
+	private ConcurrentHashMap<String, Slot> entries = new ConcurrentHashMap<String, Slot>();
+
+	/**
+	 * The maximum number of files remembered as having no response to cache.
+	 * The set is cleared when it is full.
+	 */
+	private static int MAX_SKIPPED = 10000;
+
+	/**
+	 * The files that have no response to cache.
+	 */
+	private ConcurrentHashMap<String, Boolean> skipped = new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 * The clock hand: the position of the eviction sweep over the entries.
+	 */
+	private Iterator<Map.Entry<String, Slot>> hand = null;
+
+	/**
+	 * The maximum number of bytes held by the cache.
+	 */
+	private long capacity;
+
+	/**
+	 * The maximum size of a single entry.
+	 */
+	private long maxEntrySize;
+
+	/**
+	 * The number of bytes currently held by the cache.
+	 */
+	private long size = 0;
+
+	/**
+	 * Incremented on every invalidation, so that entries loaded while a
+	 * change was being notified are not stored.
+	 */
+	private volatile long generation = 0;
+
+	/**
+	 * Constructs a cache.
+	 *
+	 * @param capacity
+	 *            the maximum number of bytes held by the cache
+	 * @param maxEntrySize
+	 *            the maximum size (header and body) of a single entry
+	 */
+	public ResponseCache(long capacity, long maxEntrySize) {
+		this.capacity = capacity;
+		this.maxEntrySize = Math.min(maxEntrySize, capacity);
+	}
+
+	/**
+	 * Returns the cached response for a file.
+	 *
+	 * @param path
+	 *            the path of the file
+	 * @return the cached entry, or <code>null</code> if there is none
+	 */
+	PreparedResponse get(String path) {
+		Slot slot = entries.get(path);
+		if (slot == null) {
+			return null;
+		}
+		// written only when it changes, so that the hits on a popular entry
+		// do not keep writing to the same cache line
+		if (!slot.referenced) {
+			slot.referenced = true;
+		}
+		return slot.response;
+	}
+
+	/**
+	 * Checks whether a file was found to have no response to cache, since it
+	 * last changed.
+	 */
+	boolean isSkipped(String path) {
+		return skipped.containsKey(path);
+	}
+
+	/**
+	 * Remembers that a file has no response to cache. Nothing is remembered
+	 * if the document root changed since <code>loadGeneration</code>.
+	 * 
+	 * @param path
+	 *            the path of the file
+	 * @param loadGeneration
+	 *            the generation read before the file was examined
+	 */
+	synchronized void skip(String path, long loadGeneration) {
+		if (loadGeneration != generation) {
+			return;
+		}
+		if (skipped.size() >= MAX_SKIPPED) {
+			skipped.clear();
+		}
+		skipped.put(path, Boolean.TRUE);
+	}
+
+	/**
+	 * Checks whether a response of the specified size can be cached.
+	 */
+	boolean accepts(long responseSize) {
+		return responseSize <= maxEntrySize;
+	}
+
+	/**
+	 * Returns the current generation. Callers read it before loading a file
+	 * and pass it to {@link #put(String, PreparedResponse, long)}.
+	 */
+	long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Adds a response to the cache, evicting the entries not used lately if
+	 * the budget is exceeded. The entry is discarded if the document root
+	 * changed since <code>loadGeneration</code>.
+	 *
+	 * @param path
+	 *            the path of the file
+	 * @param entry
+	 *            the response
+	 * @param loadGeneration
+	 *            the generation read before the file was loaded
+	 */
+	synchronized void put(String path, PreparedResponse entry,
+			long loadGeneration) {
+		if (loadGeneration != generation || !accepts(entry.size())) {
+			return;
+		}
+		Slot old = entries.put(path, new Slot(entry));
+		if (old != null) {
+			size -= old.response.size();
+		}
+		size += entry.size();
+		evict();
+	}
+
+	/**
+	 * Sweeps the clock hand over the entries, clearing the reference bits and
+	 * evicting the entries whose bit is clear, until the cache fits its
+	 * budget. An entry is spared at most once per call, so a sweep ends even
+	 * if every entry keeps being hit.
+	 */
+	private void evict() {
+		int spared = entries.size();
+		while (size > capacity && !entries.isEmpty()) {
+			if (hand == null || !hand.hasNext()) {
+				hand = entries.entrySet().iterator();
+				if (!hand.hasNext()) {
+					break;
+				}
+			}
+			Map.Entry<String, Slot> entry = hand.next();
+			Slot slot = entry.getValue();
+			if (slot.referenced && spared-- > 0) {
+				slot.referenced = false;
+				continue;
+			}
+			if (entries.remove(entry.getKey(), slot)) {
+				size -= slot.response.size();
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * ro.dp.serveme.core.utils.DocumentRootWatcher.Listener#fileChanged(java
+	 * .io.File)
+	 */
+	public synchronized void fileChanged(File file) {
+		generation++;
+		String path = file.getPath();
+		String children = path + File.separator;
+		// a precompressed sibling (foo.css.gz) changes the variant of its
+		// original (foo.css)
+		String original = path.endsWith(".gz") ? path.substring(0, path
+				.length() - 3) : null;
+		Iterator<Map.Entry<String, Slot>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Slot> entry = it.next();
+			String key = entry.getKey();
+			if (key.equals(path) || key.startsWith(children)
+					|| key.equals(original)) {
+				size -= entry.getValue().response.size();
+				it.remove();
+			}
+		}
+		Iterator<String> keys = skipped.keySet().iterator();
+		while (keys.hasNext()) {
+			String key = keys.next();
+			if (key.equals(path) || key.startsWith(children)
+					|| key.equals(original)) {
+				keys.remove();
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ro.dp.serveme.core.utils.DocumentRootWatcher.Listener#allChanged()
+	 */
+	public synchronized void allChanged() {
+		generation++;
+		entries.clear();
+		skipped.clear();
+		hand = null;
+		size = 0;
+	}
+}
@@ -0,0 +1,174 @@
+package ro.dp.serveme.core.impl;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ro.dp.serveme.core.utils.HttpResponseCodes;
+
+/**
+ * Pre-encoded pieces of the response headers.<br>
+ * The status line of every {@link HttpResponseCodes} and the
+ * <code>Content-Type</code> line of every content type are encoded once and
+ * copied as bytes into the {@link ResponseOutput} buffer, so writing a
+ * header needs no string building and no charset encoding.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+class ResponseHeaders {
+
+	private static final byte[] CONTENT_LENGTH = bytes("Content-Length: ");
+
+	private static final byte[] CONTENT_RANGE = bytes("Content-Range: bytes ");
+
+	static final byte[] CRLF = bytes("\r\n");
+
+	static final byte[] TRANSFER_ENCODING_CHUNKED = bytes("Transfer-Encoding: chunked\r\n");
+
+	/**
+	 * The last (empty) chunk of a chunked body, without trailers.
+	 */
+	static final byte[] LAST_CHUNK = bytes("0\r\n\r\n");
+
+	private static final byte[] HEX_DIGITS = bytes("0123456789abcdef");
+
+	/**
+	 * The status lines, e.g. <code>HTTP/1.1 200 OK</code>.
+	 */
+	private static Map<HttpResponseCodes, byte[]> STATUS_LINES = new EnumMap<HttpResponseCodes, byte[]>(
+			HttpResponseCodes.class);
+	static {
+		for (HttpResponseCodes code : HttpResponseCodes.values()) {
+			STATUS_LINES.put(code, bytes("HTTP/1.1 " + code + "\r\n"));
+		}
+	}
+
+	/**
+	 * The <code>Content-Type</code> lines, by content type. Content types
+	 * are added the first time they are used.
+	 */
+	private static Map<String, byte[]> CONTENT_TYPE_LINES = new ConcurrentHashMap<String, byte[]>();
+
+	private ResponseHeaders() {
+	}
+
+	/**
+	 * Writes the status line, the <code>Content-Type</code> and the
+	 * <code>Content-Length</code> headers.
+	 *
+	 * @param out
+	 *            the {@link ResponseOutput} of the connection
+	 * @param responseCode
+	 *            the response code
+	 * @param contentType
+	 *            the content type of the response
+	 * @param contentLength
+	 *            the length of the response body
+	 * @throws IOException
+	 */
+	static void write(ResponseOutput out, HttpResponseCodes responseCode,
+			String contentType, long contentLength) throws IOException {
+		out.write(STATUS_LINES.get(responseCode));
+		out.write(contentTypeLine(contentType));
+		writeContentLength(out, contentLength);
+	}
+
+	/**
+	 * Writes the <code>Content-Length</code> header.
+	 */
+	static void writeContentLength(ResponseOutput out, long contentLength)
+			throws IOException {
+		out.write(CONTENT_LENGTH);
+		out.writeDecimal(contentLength);
+		out.write(CRLF);
+	}
+
+	/**
+	 * Writes the <code>Content-Range</code> header of a range.
+	 *
+	 * @param out
+	 *            the {@link ResponseOutput} of the connection
+	 * @param range
+	 *            the range, or <code>null</code> for an unsatisfiable range
+	 *            (<code>bytes *&#47;length</code>)
+	 * @param length
+	 *            the length of the file
+	 * @throws IOException
+	 */
+	static void writeContentRange(ResponseOutput out, ByteRange range,
+			long length) throws IOException {
+		out.write(CONTENT_RANGE);
+		if (range == null) {
+			out.write('*');
+		} else {
+			out.writeDecimal(range.getStart());
+			out.write('-');
+			out.writeDecimal(range.getEnd());
+		}
+		out.write('/');
+		out.writeDecimal(length);
+		out.write(CRLF);
+	}
+
+	/**
+	 * Writes the size line of a chunk of a chunked body.
+	 */
+	static void writeChunkSize(ResponseOutput out, int size)
+			throws IOException {
+		int shift = 28;
+		while (shift > 0 && (size >>> shift) == 0) {
+			shift -= 4;
+		}
+		for (; shift >= 0; shift -= 4) {
+			out.write(HEX_DIGITS[(size >>> shift) & 0xf]);
+		}
+		out.write(CRLF);
+	}
+
+	/**
+	 * Serializes the status line, the <code>Content-Type</code> and the
+	 * <code>Content-Length</code> headers into a new array.
+	 */
+	static byte[] serialize(HttpResponseCodes responseCode, String contentType,
+			long contentLength) {
+		byte[] status = STATUS_LINES.get(responseCode);
+		byte[] type = contentTypeLine(contentType);
+		byte[] length = bytes(String.valueOf(contentLength));
+		byte[] header = new byte[status.length + type.length
+				+ CONTENT_LENGTH.length + length.length + CRLF.length];
+		int pos = 0;
+		for (byte[] part : new byte[][] { status, type, CONTENT_LENGTH, length,
+				CRLF }) {
+			System.arraycopy(part, 0, header, pos, part.length);
+			pos += part.length;
+		}
+		return header;
+	}
+
+	/**
+	 * Returns the status line of a response code.
+	 */
+	static byte[] statusLine(HttpResponseCodes responseCode) {
+		return STATUS_LINES.get(responseCode);
+	}
+
+	/**
+	 * Returns the <code>Content-Type</code> line of a content type.
+	 */
+	static byte[] contentTypeLine(String contentType) {
+		byte[] line = CONTENT_TYPE_LINES.get(contentType);
+		if (line == null) {
+			line = bytes("Content-Type:" + contentType + "; Charset=UTF-8\r\n");
+			CONTENT_TYPE_LINES.put(contentType, line);
+		}
+		return line;
+	}
+
+	/**
+	 * Encodes a header text as ISO-8859-1.
+	 */
+	static byte[] bytes(String text) {
+		return text.getBytes(ResponseOutput.HEADER_CHARSET);
+	}
+}
@@ -0,0 +1,463 @@
+package ro.dp.serveme.core.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+
+import ro.dp.serveme.core.utils.ConnectionRegistry;
+import ro.dp.serveme.core.utils.HttpResponseCodes;
+
+/**
+ * The output side of a connection, used by {@link HttpRequestHandler} to
+ * write the responses.<br>
+ * Small writes (headers, generated pages) are buffered and sent in one go.
+ * File bodies are transferred with {@link FileChannel#transferTo} straight
+ * to the socket channel when the connection has one, so the kernel can send
+ * them without copying through the heap. Connections without a channel fall
+ * back to copying the file through the output buffer.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+class ResponseOutput extends OutputStream {
+
+	/**
+	 * The charset used for the response headers.
+	 */
+	static final Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
+
+	/**
+	 * The largest number of bytes handed to the channel in one write. A
+	 * blocking write only returns when all its bytes are sent, so large
+	 * bodies are sent in chunks to let the connection registry see the
+	 * progress of slow clients.
+	 */
+	private static final int WRITE_CHUNK = 256 * 1024;
+
+	/**
+	 * The socket's output stream.
+	 */
+	private OutputStream out;
+
+	/**
+	 * The socket's channel, or <code>null</code> if the socket has none.
+	 */
+	private SocketChannel channel;
+
+	/**
+	 * The output buffer.
+	 */
+	private byte[] buffer;
+
+	/**
+	 * The number of bytes in the output buffer.
+	 */
+	private int count = 0;
+
+	/**
+	 * The number of bytes written to the connection, and the time (in
+	 * nanoseconds) spent writing them.
+	 */
+	private long bytesWritten = 0;
+	private long writeNanos = 0;
+
+	/**
+	 * The status and the body length of the last response, for the access
+	 * log. The body length is -1 while the body is being written.
+	 */
+	private HttpResponseCodes status;
+	private long bodyLength;
+
+	/**
+	 * The position of the output where the body of the response being
+	 * written starts.
+	 */
+	private long bodyStart;
+
+	/**
+	 * A view of the output buffer, used to send the buffered bytes in the same
+	 * gathering write as the buffer that follows them.
+	 */
+	private ByteBuffer pending;
+
+	/**
+	 * The buffers of a gathering write and their limits, reused by every
+	 * write.
+	 */
+	private ByteBuffer[] gather = new ByteBuffer[2];
+	private int[] limits = new int[2];
+
+	/**
+	 * The registry entry of the connection, told about every write so that
+	 * a response that makes progress is not taken for a stalled one.
+	 */
+	private ConnectionRegistry.Entry activity;
+
+	/**
+	 * Constructs the output of a connection.
+	 *
+	 * @param socket
+	 *            the connection
+	 * @param bufferSize
+	 *            the size of the output buffer
+	 * @throws IOException
+	 */
+	ResponseOutput(Socket socket, int bufferSize) throws IOException {
+		this.out = socket.getOutputStream();
+		this.channel = socket.getChannel();
+		this.buffer = new byte[bufferSize];
+		this.pending = ByteBuffer.wrap(buffer);
+	}
+
+	/**
+	 * Constructs an output without a channel, e.g. the output of an HTTP/2
+	 * stream, which turns the responses into frames.
+	 *
+	 * @param out
+	 *            the stream the responses are written to
+	 * @param bufferSize
+	 *            the size of the output buffer
+	 */
+	ResponseOutput(OutputStream out, int bufferSize) {
+		this.out = out;
+		this.buffer = new byte[bufferSize];
+		this.pending = ByteBuffer.wrap(buffer);
+	}
+
+	/**
+	 * Writes a string encoded as ISO-8859-1, the charset of the HTTP headers.
+	 *
+	 * @param text
+	 *            the text to write
+	 * @throws IOException
+	 */
+	void print(String text) throws IOException {
+		write(text.getBytes(HEADER_CHARSET));
+	}
+
+	/**
+	 * Sets the registry entry of the connection.
+	 *
+	 * @param activity
+	 *            the entry, or <code>null</code>
+	 */
+	void setActivity(ConnectionRegistry.Entry activity) {
+		this.activity = activity;
+	}
+
+	/**
+	 * Returns the number of bytes written to the connection so far.
+	 */
+	long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Returns the time (in nanoseconds) spent writing to the connection so
+	 * far.
+	 */
+	long getWriteNanos() {
+		return writeNanos;
+	}
+
+	/**
+	 * Forgets the last response, before the next request is served.
+	 */
+	void beginResponse() {
+		status = null;
+		bodyLength = 0;
+	}
+
+	/**
+	 * Records the status of the response whose head was written, so that a
+	 * response that does not complete is logged with the part of its body
+	 * that was sent.
+	 *
+	 * @param status
+	 *            the status of the response
+	 * @param pending
+	 *            the number of bytes of the head still to be written
+	 */
+	void headWritten(HttpResponseCodes status, int pending) {
+		this.status = status;
+		this.bodyLength = -1;
+		this.bodyStart = bytesWritten + count + pending;
+	}
+
+	/**
+	 * Records the status and the body length of the response sent.
+	 */
+	void setResponse(HttpResponseCodes status, long bodyLength) {
+		this.status = status;
+		this.bodyLength = bodyLength;
+	}
+
+	/**
+	 * Returns the status of the last response, or <code>null</code> if no
+	 * response was written yet.
+	 */
+	HttpResponseCodes getStatus() {
+		return status;
+	}
+
+	/**
+	 * Returns the body length of the last response, or the number of bytes
+	 * of its body written to the connection if it did not complete.
+	 */
+	long getBodyLength() {
+		return bodyLength >= 0 ? bodyLength : Math.max(0, bytesWritten
+				- bodyStart);
+	}
+
+	/**
+	 * Writes the decimal representation of a number, without creating a
+	 * string.
+	 *
+	 * @param value
+	 *            a non negative number
+	 * @throws IOException
+	 */
+	void writeDecimal(long value) throws IOException {
+		int digits = 1;
+		for (long rest = value / 10; rest > 0; rest /= 10) {
+			digits++;
+		}
+		if (digits > buffer.length - count) {
+			flushBuffer();
+		}
+		for (int pos = count + digits - 1; pos >= count; pos--) {
+			buffer[pos] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		count += digits;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count == buffer.length) {
+			flushBuffer();
+		}
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len >= buffer.length) {
+			flushBuffer();
+			long start = System.nanoTime();
+			out.write(b, off, len);
+			writeNanos += System.nanoTime() - start;
+			written(len);
+			return;
+		}
+		if (len > buffer.length - count) {
+			flushBuffer();
+		}
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+	}
+
+	/**
+	 * Writes a buffer.<br>
+	 * When the connection has a channel, the buffered output (usually the
+	 * response header) and the buffer are sent with a single gathering write.
+	 * Otherwise the buffered output is flushed first.
+	 *
+	 * @param b
+	 *            the buffer to write, consumed by this call
+	 * @throws IOException
+	 */
+	void write(ByteBuffer b) throws IOException {
+		if (channel != null && channel.isBlocking()) {
+			pending.limit(count).position(0);
+			count = 0;
+			gather[0] = pending;
+			gather[1] = b;
+			try {
+				writeFully(gather, limits);
+			} finally {
+				gather[1] = null;
+			}
+			return;
+		}
+		flushBuffer();
+		copy(b);
+	}
+
+	/**
+	 * Writes a sequence of buffers, e.g. the mappings of a large file.<br>
+	 * When the connection has a channel, the buffered output and the buffers
+	 * are sent with a single gathering write. Otherwise the buffered output
+	 * is flushed first.
+	 *
+	 * @param buffers
+	 *            the buffers to write, consumed by this call
+	 * @throws IOException
+	 */
+	void write(ByteBuffer[] buffers) throws IOException {
+		if (channel != null && channel.isBlocking()) {
+			ByteBuffer[] all = new ByteBuffer[buffers.length + 1];
+			pending.limit(count).position(0);
+			count = 0;
+			all[0] = pending;
+			System.arraycopy(buffers, 0, all, 1, buffers.length);
+			writeFully(all, new int[all.length]);
+			return;
+		}
+		flushBuffer();
+		for (ByteBuffer b : buffers) {
+			copy(b);
+		}
+	}
+
+	/**
+	 * Sends buffers with gathering writes of at most {@link #WRITE_CHUNK}
+	 * bytes.
+	 *
+	 * @param buffers
+	 *            the buffers
+	 * @param limits
+	 *            room for the limits of the buffers, restored after each
+	 *            write
+	 * @throws IOException
+	 */
+	private void writeFully(ByteBuffer[] buffers, int[] limits)
+			throws IOException {
+		long remaining = 0;
+		for (ByteBuffer b : buffers) {
+			remaining += b.remaining();
+		}
+		long start = System.nanoTime();
+		try {
+			while (remaining > 0) {
+				// clipping the buffers to a chunk
+				long budget = WRITE_CHUNK;
+				for (int idx = 0; idx < buffers.length; idx++) {
+					ByteBuffer b = buffers[idx];
+					limits[idx] = b.limit();
+					int length = (int) Math.min(b.remaining(), budget);
+					b.limit(b.position() + length);
+					budget -= length;
+				}
+				long sent;
+				try {
+					sent = channel.write(buffers);
+				} finally {
+					for (int idx = 0; idx < buffers.length; idx++) {
+						buffers[idx].limit(limits[idx]);
+					}
+				}
+				remaining -= sent;
+				written(sent);
+			}
+		} finally {
+			writeNanos += System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * Copies a buffer to the output stream, through the output buffer.
+	 */
+	private void copy(ByteBuffer b) throws IOException {
+		long start = System.nanoTime();
+		while (b.hasRemaining()) {
+			int length = Math.min(buffer.length, b.remaining());
+			b.get(buffer, 0, length);
+			out.write(buffer, 0, length);
+			written(length);
+		}
+		writeNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Sends a region of a file.<br>
+	 * The buffered output is flushed first, then the file region is handed to
+	 * the kernel with {@link FileChannel#transferTo}. If the connection has no
+	 * channel the region is copied through the output buffer instead.
+	 *
+	 * @param file
+	 *            the file to send
+	 * @param position
+	 *            the position of the first byte to send
+	 * @param length
+	 *            the number of bytes to send
+	 * @throws IOException
+	 */
+	void transferFrom(FileChannel file, long position, long length)
+			throws IOException {
+		flushBuffer();
+		long end = position + length;
+		long start = System.nanoTime();
+		try {
+			transfer(file, position, end);
+		} finally {
+			writeNanos += System.nanoTime() - start;
+		}
+	}
+
+	private void transfer(FileChannel file, long position, long end)
+			throws IOException {
+		if (channel != null && channel.isBlocking()) {
+			while (position < end) {
+				long sent = file.transferTo(position, Math.min(end - position,
+						WRITE_CHUNK), channel);
+				if (sent <= 0 && position >= file.size()) {
+					throw new IOException("Unexpected end of file");
+				}
+				position += sent;
+				written(sent);
+			}
+			return;
+		}
+		ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+		while (position < end) {
+			wrapper.clear();
+			wrapper.limit((int) Math.min(buffer.length, end - position));
+			int read = file.read(wrapper, position);
+			if (read < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+			out.write(buffer, 0, read);
+			position += read;
+			written(read);
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			long start = System.nanoTime();
+			out.write(buffer, 0, count);
+			writeNanos += System.nanoTime() - start;
+			written(count);
+			count = 0;
+		}
+	}
+
+	/**
+	 * Counts bytes written to the connection.
+	 */
+	private void written(long length) {
+		bytesWritten += length;
+		if (activity != null) {
+			activity.written(length);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package ro.dp.serveme.core.impl;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import ro.dp.serveme.core.Endpoint;
+import ro.dp.serveme.core.Filter;
+import ro.dp.serveme.core.FilterChain;
+import ro.dp.serveme.core.Request;
+import ro.dp.serveme.core.Response;
+
+/**
+ * Routes the parsed requests to their {@link Endpoint}, through the chain of
+ * {@link Filter}s.<br>
+ * The routes are kept in a trie with a node per path segment. A node holds
+ * the endpoint registered on its exact path and the endpoint registered on
+ * it as a prefix (which answers the path and everything under it). Routing
+ * a request is a single walk down the trie over the decoded segments of its
+ * path, so it takes time proportional to the length of the path whatever
+ * the number of routes: an exact route wins, otherwise the longest prefix
+ * does. Routes and filters may be changed while requests are served.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+class Router {
+
+	/**
+	 * A node of the trie.
+	 */
+	private static class Node {
+
+		private Map<String, Node> children = new ConcurrentHashMap<String, Node>();
+
+		private volatile Endpoint exact;
+
+		private volatile Endpoint prefix;
+	}
+
+	/**
+	 * The chain of filters run on a request, ending with its endpoint.
+	 */
+	private class Chain implements FilterChain {
+
+		private int next = 0;
+
+		private Endpoint endpoint;
+
+		Chain(Endpoint endpoint) {
+			this.endpoint = endpoint;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see ro.dp.serveme.core.FilterChain#proceed(ro.dp.serveme.core.Request,
+		 * ro.dp.serveme.core.Response)
+		 */
+		public void proceed(Request request, Response response)
+				throws Exception {
+			if (next < filters.size()) {
+				filters.get(next++).filter(request, response, this);
+			} else if (endpoint != null) {
+				Endpoint target = endpoint;
+				endpoint = null;
+				target.handle(request, response);
+			}
+		}
+	}
+
+	private Node root = new Node();
+
+	private List<Filter> filters = new CopyOnWriteArrayList<Filter>();
+
+	/**
+	 * Registers (or removes) the endpoint of a path.
+	 *
+	 * @param path
+	 *            the path (e.g. <code>/server-status</code>), decoded and
+	 *            normalized the same way the request paths are
+	 * @param prefix
+	 *            whether the endpoint also answers everything under the path
+	 * @param endpoint
+	 *            the endpoint, or <code>null</code> to remove the route
+	 * @throws IllegalArgumentException
+	 *             if the path is malformed
+	 */
+	synchronized void setRoute(String path, boolean prefix, Endpoint endpoint) {
+		List<String> segments = RequestPaths.segments(path);
+		if (segments == null) {
+			throw new IllegalArgumentException("Malformed route " + path);
+		}
+		Node node = root;
+		for (String segment : segments) {
+			String key = RequestPaths.fold(segment);
+			Node child = node.children.get(key);
+			if (child == null) {
+				if (endpoint == null) {
+					return;
+				}
+				child = new Node();
+				node.children.put(key, child);
+			}
+			node = child;
+		}
+		if (prefix) {
+			node.prefix = endpoint;
+		} else {
+			node.exact = endpoint;
+		}
+	}
+
+	/**
+	 * Appends a filter to the chain.
+	 */
+	void addFilter(Filter filter) {
+		filters.add(filter);
+	}
+
+	/**
+	 * Finds the endpoint of a path.
+	 *
+	 * @param segments
+	 *            the decoded segments of the path, or <code>null</code> if
+	 *            the path is malformed
+	 * @return the endpoint, or <code>null</code> if no route matches
+	 */
+	Endpoint route(List<String> segments) {
+		if (segments == null) {
+			return null;
+		}
+		Node node = root;
+		Endpoint longest = node.prefix;
+		for (String segment : segments) {
+			node = node.children.get(RequestPaths.fold(segment));
+			if (node == null) {
+				return longest;
+			}
+			if (node.prefix != null) {
+				longest = node.prefix;
+			}
+		}
+		Endpoint exact = node.exact;
+		return exact != null ? exact : longest;
+	}
+
+	/**
+	 * Runs the filters on a request, then the endpoint it is routed to. A
+	 * request that no route matches still goes through the filters, and is
+	 * left unanswered.
+	 *
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response
+	 * @throws Exception
+	 */
+	void dispatch(HttpRequest request, Response response) throws Exception {
+		new Chain(route(request.getSegments())).proceed(request, response);
+	}
+}
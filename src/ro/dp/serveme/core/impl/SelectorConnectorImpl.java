@@ -0,0 +1,660 @@
+package ro.dp.serveme.core.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+import ro.dp.serveme.core.Connector;
+import ro.dp.serveme.core.Server;
+import ro.dp.serveme.core.utils.ConnectionRegistry;
+
+/**
+ * A non-blocking implementation of a server connector.<br>
+ * Unlike {@link ConnectorImpl}, this connector does not tie up a pool thread
+ * per connection. A small, fixed set of event loops (each one owning a
+ * {@link Selector} and a dedicated thread) accepts the incoming connections
+ * and reads the request heads. Only when a request head has been fully read
+ * is the connection dispatched to the server's thread pool as a
+ * {@link ChannelConnection} job. When the handler is done with a connection
+ * that is still open, the connection is parked back on its event loop until
+ * the next request arrives.<br>
+ * Where <code>SO_REUSEPORT</code> is supported, every event loop accepts on a
+ * listening channel of its own and keeps the connections it accepted, so
+ * accepting needs no coordination between the loops. Otherwise the first
+ * event loop accepts for all of them and spreads the connections round
+ * robin.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+public class SelectorConnectorImpl implements Connector {
+
+	private static Logger log = Logger.getLogger(SelectorConnectorImpl.class);
+
+	/**
+	 * The maximum size (in bytes) of a request head. Connections sending
+	 * larger heads are closed.
+	 */
+	private static int MAX_HEAD_SIZE = 8192;
+
+	/**
+	 * The interval (in milliseconds) at which the event loops check whether
+	 * the server is overloaded.
+	 */
+	private static int SELECT_INTERVAL = 1000;
+
+	/**
+	 * The time (in milliseconds) after which a paused accept is retried while
+	 * the server is overloaded.
+	 */
+	private static int OVERLOAD_PAUSE = 10;
+
+	/**
+	 * The time (in milliseconds) for which the accepts are paused after an
+	 * accept failed, e.g. because the process ran out of file descriptors.
+	 */
+	private static int ACCEPT_ERROR_PAUSE = 100;
+
+	/**
+	 * The port that this connector is bound to.
+	 */
+	private int port;
+
+	/**
+	 * The hostname that this connector is bound to
+	 */
+	private String host;
+
+	/**
+	 * The reference to the server process that manages this connector.
+	 */
+	private Server server;
+
+	/**
+	 * The number of event loops (selector threads) that this connector runs.
+	 */
+	private int eventLoopCount;
+
+	/**
+	 * The event loops of this connector.
+	 */
+	private EventLoop[] eventLoops;
+
+	/**
+	 * The listening channels: one per event loop, or a single one registered
+	 * with the first event loop.
+	 */
+	private List<ServerSocketChannel> serverChannels = new ArrayList<ServerSocketChannel>();
+
+	/**
+	 * The length of the queue of pending connections.
+	 */
+	private int backlog = ListeningChannels.DEFAULT_BACKLOG;
+
+	/**
+	 * Whether the event loops get listening channels of their own (when
+	 * <code>SO_REUSEPORT</code> is supported).
+	 */
+	private boolean reusePort = false;
+
+	/**
+	 * Whether the listening channels are always bound with
+	 * <code>SO_REUSEPORT</code>, so that another process can take the
+	 * address over.
+	 */
+	private boolean handover = false;
+
+	/**
+	 * The listening channel given to the connector, used instead of binding
+	 * one.
+	 */
+	private ServerSocketChannel serverChannel;
+
+	/**
+	 * Round robin index used to spread accepted connections over the event
+	 * loops.
+	 */
+	private int nextLoop = 0;
+
+	/**
+	 * Flag telling the event loops to keep running.
+	 */
+	private volatile boolean running = false;
+
+	/**
+	 * Constructs a connector using the specified port and hostname and one
+	 * event loop per available processor (but not more than 4).
+	 *
+	 * @param p
+	 *            the port that this connector is bound to
+	 * @param host
+	 *            the host that this connector is bound to
+	 */
+	public SelectorConnectorImpl(int p, String host) {
+		this(p, host, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * Constructs a connector using the specified port, hostname and number of
+	 * event loops.
+	 *
+	 * @param p
+	 *            the port that this connector is bound to
+	 * @param host
+	 *            the host that this connector is bound to
+	 * @param eventLoops
+	 *            the number of selector threads
+	 */
+	public SelectorConnectorImpl(int p, String host, int eventLoops) {
+		this.port = p;
+		this.host = host;
+		this.eventLoopCount = Math.max(1, eventLoops);
+	}
+
+	/**
+	 * The read state of a connection while it is registered with an event
+	 * loop.
+	 */
+	private static class ReadState {
+
+		/**
+		 * The bytes read so far (in write mode).
+		 */
+		ByteBuffer buffer;
+
+		/**
+		 * The offset up to which the buffer was searched for the end of the
+		 * request head.
+		 */
+		int scanned = 0;
+
+		/**
+		 * The number of requests served over the connection.
+		 */
+		int requestCount = 0;
+
+		/**
+		 * The entry of the connection in the server's registry, which closes
+		 * the connection when it stays idle for too long.
+		 */
+		ConnectionRegistry.Entry entry;
+
+		ReadState(ByteBuffer buffer, ConnectionRegistry.Entry entry) {
+			this.buffer = buffer;
+			this.entry = entry;
+		}
+
+		/**
+		 * Checks whether the buffer holds a complete request head (terminated
+		 * by an empty line).
+		 */
+		boolean isHeadComplete() {
+			int limit = buffer.position();
+			for (int idx = Math.max(0, scanned - 3); idx < limit; idx++) {
+				if (buffer.get(idx) != '\n') {
+					continue;
+				}
+				if (idx >= 1 && buffer.get(idx - 1) == '\n') {
+					return true;
+				}
+				if (idx >= 2 && buffer.get(idx - 1) == '\r'
+						&& buffer.get(idx - 2) == '\n') {
+					return true;
+				}
+			}
+			scanned = limit;
+			return false;
+		}
+	}
+
+	/**
+	 * An event loop. <br>
+	 * Each event loop runs on its own thread and multiplexes the connections
+	 * registered with its selector. The first event loop also accepts the
+	 * incoming connections.
+	 *
+	 * @author Daniel Platon (dplaton@gmail.com)
+	 */
+	private class EventLoop implements Runnable {
+
+		private Selector selector;
+
+		/**
+		 * Connections waiting to be registered with the selector, along with
+		 * their read state.
+		 */
+		private Queue<Object[]> pending = new ConcurrentLinkedQueue<Object[]>();
+
+		/**
+		 * The registration of the listening channel this loop accepts on, or
+		 * <code>null</code>.
+		 */
+		private SelectionKey acceptKey = null;
+
+		/**
+		 * Whether the connections accepted by this loop are spread over all
+		 * the event loops (when they share this loop's listening channel).
+		 */
+		private boolean shared = false;
+
+		/**
+		 * The time until which the accepts are paused after an accept failed.
+		 */
+		private long acceptsPausedUntil = 0;
+
+		EventLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		/**
+		 * Makes this loop accept the connections of a listening channel.
+		 */
+		void listen(ServerSocketChannel channel, boolean shared)
+				throws IOException {
+			channel.configureBlocking(false);
+			acceptKey = channel.register(selector, SelectionKey.OP_ACCEPT);
+			this.shared = shared;
+		}
+
+		/**
+		 * Hands a connection over to this event loop. Can be called from any
+		 * thread.
+		 */
+		void register(SocketChannel channel, ReadState state) {
+			pending.add(new Object[] { channel, state });
+			selector.wakeup();
+		}
+
+		public void run() {
+			List<SelectionKey> ready = new ArrayList<SelectionKey>();
+			try {
+				while (running) {
+					selector.select(pauseAccepts() ? OVERLOAD_PAUSE
+							: SELECT_INTERVAL);
+					registerPending(ready);
+					Iterator<SelectionKey> keys = selector.selectedKeys()
+							.iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept((ServerSocketChannel) key.channel());
+						} else if (key.isReadable()) {
+							read(key, ready);
+						}
+					}
+					handOver(ready);
+				}
+			} catch (ClosedSelectorException e) {
+				// the connector is stopping
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
+			} finally {
+				closeAll();
+			}
+		}
+
+		/**
+		 * Stops accepting connections (leaving them in the backlog) while the
+		 * server is overloaded or shortly after an accept failed, and resumes
+		 * when it is not.
+		 *
+		 * @return <code>true</code> if the accepts are paused
+		 */
+		private boolean pauseAccepts() {
+			if (acceptKey == null || !acceptKey.isValid()) {
+				return false;
+			}
+			boolean paused = server.isOverloaded()
+					|| System.currentTimeMillis() < acceptsPausedUntil;
+			acceptKey.interestOps(paused ? 0 : SelectionKey.OP_ACCEPT);
+			return paused;
+		}
+
+		private void registerPending(List<SelectionKey> ready) {
+			Object[] entry;
+			while ((entry = pending.poll()) != null) {
+				SocketChannel channel = (SocketChannel) entry[0];
+				ReadState state = (ReadState) entry[1];
+				try {
+					// a connection is idle between requests, unless it
+					// already sent part of the next one
+					state.entry.setState(state.requestCount == 0
+							|| state.buffer.position() > 0 ? ConnectionRegistry.State.READING
+							: ConnectionRegistry.State.IDLE);
+					SelectionKey key = channel.register(selector,
+							SelectionKey.OP_READ, state);
+					// pipelined requests may already be waiting in the buffer
+					if (state.isHeadComplete()) {
+						key.interestOps(0);
+						ready.add(key);
+					}
+				} catch (IOException e) {
+					closeConnection(channel);
+				}
+			}
+		}
+
+		/**
+		 * Accepts the pending connections. A failed accept (usually the
+		 * process running out of file descriptors) pauses the accepts for a
+		 * while, leaving the connections in the backlog, and a connection that
+		 * cannot be set up is closed; neither stops the loop.
+		 */
+		private void accept(ServerSocketChannel serverChannel) {
+			while (true) {
+				SocketChannel channel;
+				try {
+					channel = serverChannel.accept();
+				} catch (IOException e) {
+					if (!serverChannel.isOpen()) {
+						return;
+					}
+					log.warn("Cannot accept connections (" + e.getMessage()
+							+ "), retrying in " + ACCEPT_ERROR_PAUSE + " ms");
+					acceptsPausedUntil = System.currentTimeMillis()
+							+ ACCEPT_ERROR_PAUSE;
+					return;
+				}
+				if (channel == null) {
+					return;
+				}
+				ConnectionRegistry.Entry entry = server.getConnections().add(
+						channel);
+				if (entry == null) {
+					// too many connections from the same address
+					continue;
+				}
+				try {
+					channel.configureBlocking(false);
+					channel.socket().setTcpNoDelay(true);
+				} catch (IOException e) {
+					log.debug(e.getMessage(), e);
+					closeConnection(channel);
+					continue;
+				}
+				(shared ? nextEventLoop() : this).register(channel,
+						new ReadState(ByteBuffer.allocate(MAX_HEAD_SIZE), entry));
+			}
+		}
+
+		private void read(SelectionKey key, List<SelectionKey> ready) {
+			SocketChannel channel = (SocketChannel) key.channel();
+			ReadState state = (ReadState) key.attachment();
+			try {
+				int count = channel.read(state.buffer);
+				if (count > 0) {
+					state.entry.received();
+				}
+				if (count < 0) {
+					key.cancel();
+					closeConnection(channel);
+				} else if (state.isHeadComplete()) {
+					key.interestOps(0);
+					ready.add(key);
+				} else if (!state.buffer.hasRemaining()) {
+					log.warn("Request head too large, closing connection from "
+							+ channel.socket().getRemoteSocketAddress());
+					key.cancel();
+					closeConnection(channel);
+				}
+			} catch (IOException e) {
+				key.cancel();
+				closeConnection(channel);
+			}
+		}
+
+		/**
+		 * Deregisters the connections that have a complete request head and
+		 * dispatches them to the worker pool.
+		 */
+		private void handOver(List<SelectionKey> ready) throws IOException {
+			if (ready.isEmpty()) {
+				return;
+			}
+			for (SelectionKey key : ready) {
+				key.cancel();
+			}
+			// flush the cancelled keys so the channels can switch to blocking
+			selector.selectNow();
+			for (SelectionKey key : ready) {
+				SocketChannel channel = (SocketChannel) key.channel();
+				ReadState state = (ReadState) key.attachment();
+				try {
+					channel.configureBlocking(true);
+					if (!server.dispatch(new ChannelConnection(channel, state,
+							this))) {
+						server.reject(channel.socket());
+						server.getConnections().remove(channel);
+					}
+				} catch (IOException e) {
+					closeConnection(channel);
+				}
+			}
+			ready.clear();
+		}
+
+		private void closeAll() {
+			try {
+				for (SelectionKey key : selector.keys()) {
+					if (key.channel() instanceof SocketChannel) {
+						closeConnection((SocketChannel) key.channel());
+					}
+				}
+				selector.close();
+			} catch (Exception e) {
+				log.debug(e.getMessage(), e);
+			}
+			Object[] entry;
+			while ((entry = pending.poll()) != null) {
+				closeConnection((SocketChannel) entry[0]);
+			}
+		}
+	}
+
+	/**
+	 * A connection whose request head was read by an {@link EventLoop}. <br>
+	 * A connection is a job that handles the response to a request and then
+	 * parks the connection back on its event loop if it is still open.
+	 *
+	 * @author Daniel Platon (dplaton@gmail.com)
+	 */
+	private class ChannelConnection implements Runnable {
+
+		private SocketChannel channel;
+		private ReadState state;
+		private EventLoop eventLoop;
+
+		ChannelConnection(SocketChannel channel, ReadState state,
+				EventLoop eventLoop) {
+			this.channel = channel;
+			this.state = state;
+			this.eventLoop = eventLoop;
+		}
+
+		public void run() {
+			try {
+				state.buffer.flip();
+				ChannelSocket socket = new ChannelSocket(channel, state.buffer,
+						state.requestCount);
+				server.handle(socket);
+				state.requestCount = socket.getRequestCount();
+				if (channel.isOpen() && running) {
+					// keep whatever the handler did not consume
+					state.buffer.compact();
+					state.scanned = 0;
+					channel.configureBlocking(false);
+					eventLoop.register(channel, state);
+				} else {
+					closeConnection(channel);
+				}
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
+				closeConnection(channel);
+			}
+		}
+	}
+
+	/**
+	 * Sets the length of the queue of pending connections.
+	 *
+	 * @param backlog
+	 *            the backlog, 0 for the default of the JDK
+	 */
+	public void setBacklog(int backlog) {
+		this.backlog = backlog;
+	}
+
+	/**
+	 * Sets whether the event loops accept on listening channels of their own,
+	 * bound with <code>SO_REUSEPORT</code> (where it is supported). Disabled by
+	 * default: a channel bound with <code>SO_REUSEPORT</code> does not keep
+	 * another process from binding the same address.
+	 *
+	 * @param reusePort
+	 *            <code>true</code> to give every event loop its own channel
+	 */
+	public void setReusePort(boolean reusePort) {
+		this.reusePort = reusePort;
+	}
+
+	/**
+	 * Sets whether a single listening channel is bound with
+	 * <code>SO_REUSEPORT</code> too (where it is supported), so that a new
+	 * server process can listen on the address before this one stops.
+	 *
+	 * @param handover
+	 *            <code>true</code> to let another process take over
+	 */
+	public void setHandover(boolean handover) {
+		this.handover = handover;
+	}
+
+	/**
+	 * Sets a bound listening channel that the first event loop accepts on,
+	 * instead of binding one on the host and port of the connector.
+	 *
+	 * @param serverChannel
+	 *            the listening channel, e.g. inherited from the parent
+	 *            process
+	 */
+	public void setServerChannel(ServerSocketChannel serverChannel) {
+		this.serverChannel = serverChannel;
+	}
+
+	private synchronized EventLoop nextEventLoop() {
+		EventLoop loop = eventLoops[nextLoop];
+		nextLoop = (nextLoop + 1) % eventLoops.length;
+		return loop;
+	}
+
+	/**
+	 * Closes a client connection and removes it from the server's registry.
+	 */
+	private void closeConnection(SocketChannel channel) {
+		closeQuietly(channel);
+		server.getConnections().remove(channel);
+	}
+
+	private static void closeQuietly(java.nio.channels.Channel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ro.dp.serveme.core.Connector#start()
+	 */
+	public void start() throws Exception {
+		log.info("Starting selector connector");
+		log.debug("Initializing listening channel (hostname: " + host
+				+ "; port: " + port + ")");
+		boolean ownChannels = serverChannel == null && reusePort
+				&& eventLoopCount > 1
+				&& ListeningChannels.isReusePortSupported();
+		running = true;
+		eventLoops = new EventLoop[eventLoopCount];
+		for (int idx = 0; idx < eventLoopCount; idx++) {
+			eventLoops[idx] = new EventLoop();
+			if (idx == 0 || ownChannels) {
+				ServerSocketChannel listening = idx == 0
+						&& serverChannel != null ? serverChannel
+						: ListeningChannels.open(host, port, backlog,
+								ownChannels || handover);
+				serverChannels.add(listening);
+				eventLoops[idx].listen(listening, !ownChannels);
+			}
+		}
+		log.debug("Starting " + eventLoopCount + " event loops"
+				+ (ownChannels ? " with a listening channel each" : ""));
+		for (int idx = 0; idx < eventLoopCount; idx++) {
+			Thread thread = new Thread(eventLoops[idx], "ServeMe-selector-"
+					+ idx);
+			thread.start();
+		}
+		log.debug("Connector started.");
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ro.dp.serveme.core.Connector#stopAccepting()
+	 */
+	public void stopAccepting() throws Exception {
+		log.debug("Closing the listening channels.");
+		for (ServerSocketChannel listening : serverChannels) {
+			listening.close();
+		}
+		serverChannels.clear();
+		// the channels are released by the next select of their event loop,
+		// which keeps reading the connections already accepted
+		wakeUpEventLoops();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ro.dp.serveme.core.Connector#stop()
+	 */
+	public void stop() throws Exception {
+		log.debug("Stopping selector connector.");
+		running = false;
+		stopAccepting();
+		log.debug("Connector stopped.");
+	}
+
+	private void wakeUpEventLoops() {
+		if (eventLoops != null) {
+			for (EventLoop loop : eventLoops) {
+				loop.selector.wakeup();
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see ro.dp.serveme.core.Connector#setServer(ro.dp.serveme.core.Server)
+	 */
+	public void setServer(Server server) {
+		this.server = server;
+	}
+
+}
@@ -1,9 +1,11 @@
 package ro.dp.serveme.core.impl;
 
+import java.lang.reflect.Method;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -14,6 +16,10 @@ import org.apache.log4j.Logger;
 import ro.dp.serveme.core.Handler;
 import ro.dp.serveme.core.Connector;
 import ro.dp.serveme.core.Server;
+import ro.dp.serveme.core.utils.ConnectionRegistry;
+import ro.dp.serveme.core.utils.ExecutionMode;
+import ro.dp.serveme.core.utils.HttpResponseCodes;
+import ro.dp.serveme.core.utils.ServerMetrics;
 
 public class ServerImpl implements Server {
 	private static Logger log = Logger.getLogger(ServerImpl.class);
@@ -29,25 +35,53 @@ public class ServerImpl implements Server {
 	private List<Connector> connectors = new ArrayList<Connector>();
 
 	/**
-	 * The thread pool of the server.<br>
+	 * The executor of the server.<br>
 	 * This is responsible for the dispatching of {@link Listener} and
-	 * {@link Connection} jobs.
+	 * {@link Connection} jobs. Depending on the {@link ExecutionMode} it is
+	 * either a thread pool or a virtual thread per job executor.
 	 */
-	private ThreadPoolExecutor threadPool = null;
+	private ExecutorService threadPool = null;
 
 	/**
-	 * The initial thread pool size.<br>
-	 * Default value is 5 threads.
+	 * The overload control of the server. It tunes the thread pool and
+	 * decides when the connectors stop accepting connections.
 	 */
-	private static int CORE_POOL_SIZE = 10;
+	private OverloadControl overloadControl;
 
 	/**
-	 * The maximum pool size. <br>
+	 * The metrics of the server.
+	 */
+	private ServerMetrics metrics = new ServerMetrics();
+
+	/**
+	 * The registry of the open connections.
+	 */
+	private ConnectionRegistry connections = new ConnectionRegistry(metrics);
+
+	/**
+	 * The default initial thread pool size.<br>
+	 * Default value is 10 threads.
+	 */
+	public static int CORE_POOL_SIZE = 10;
+
+	/**
+	 * The default maximum pool size. <br>
 	 * This is the maximum number of threads that this pool will hold. Any
 	 * thread that go beyond this value will be rejected.<br>
 	 * Default value is 50 threads.
 	 */
-	private static int MAXIMUM_POOL_SIZE = 50;
+	public static int MAXIMUM_POOL_SIZE = 50;
+
+	/**
+	 * The default size of the thread pool queue.
+	 */
+	public static int QUEUE_SIZE = 50;
+
+	/**
+	 * The default high-water mark (maximum number of jobs in flight) when
+	 * running on virtual threads.
+	 */
+	public static int VIRTUAL_HIGH_WATER_MARK = 10000;
 
 	/**
 	 * The amount of time (in seconds) that a thread will stay idle before it is
@@ -55,14 +89,125 @@ public class ServerImpl implements Server {
 	 */
 	private static int KEEP_ALIVE_TYME = 60;
 
+	/**
+	 * The default time (in milliseconds) given to the requests in flight to
+	 * complete when the server stops.
+	 */
+	public static long DRAIN_TIMEOUT = 30000;
+
+	/**
+	 * The time (in milliseconds) given to the requests in flight to complete
+	 * when the server stops.
+	 */
+	private long drainTimeout = DRAIN_TIMEOUT;
+
+	/**
+	 * Whether the server was stopped (it is stopped once, by the first
+	 * caller).
+	 */
+	private boolean stopped = false;
+
 	/**
 	 * Constructs a {@link ServerImpl} object. This method also initializes the thread pool.
 	 */
 	public ServerImpl() {
-		
-		threadPool = new ThreadPoolExecutor(CORE_POOL_SIZE, MAXIMUM_POOL_SIZE,
-				KEEP_ALIVE_TYME, TimeUnit.SECONDS,
-				new LinkedBlockingQueue<Runnable>(MAXIMUM_POOL_SIZE));
+		this(ExecutionMode.POOLED);
+	}
+
+	/**
+	 * Constructs a {@link ServerImpl} object that runs its jobs according to
+	 * the specified {@link ExecutionMode}.<br>
+	 * If virtual threads are requested but not supported by the running JVM,
+	 * the server falls back to the thread pool.
+	 * 
+	 * @param mode
+	 *            the execution mode
+	 */
+	public ServerImpl(ExecutionMode mode) {
+		this(mode, CORE_POOL_SIZE, MAXIMUM_POOL_SIZE, QUEUE_SIZE);
+	}
+
+	/**
+	 * Constructs a {@link ServerImpl} object with the specified thread pool
+	 * bounds.<br>
+	 * The core size of the pool is adjusted at runtime between
+	 * <code>minThreads</code> and <code>maxThreads</code>, depending on how
+	 * long the jobs wait in the queue and how busy the threads are. The
+	 * connectors stop accepting connections when the pool and three quarters
+	 * of the queue are in use.
+	 * 
+	 * @param mode
+	 *            the execution mode
+	 * @param minThreads
+	 *            the initial (and smallest) core pool size
+	 * @param maxThreads
+	 *            the maximum pool size
+	 * @param queueSize
+	 *            the size of the pool queue
+	 */
+	public ServerImpl(ExecutionMode mode, int minThreads, int maxThreads,
+			int queueSize) {
+		maxThreads = Math.max(1, maxThreads);
+		minThreads = Math.max(1, Math.min(minThreads, maxThreads));
+		int highWaterMark = VIRTUAL_HIGH_WATER_MARK;
+		if (mode == ExecutionMode.VIRTUAL) {
+			threadPool = newVirtualThreadExecutor();
+		}
+		if (threadPool == null) {
+			threadPool = new ThreadPoolExecutor(minThreads, maxThreads,
+					KEEP_ALIVE_TYME, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(Math.max(1, queueSize)));
+			highWaterMark = maxThreads + queueSize * 3 / 4;
+		}
+		overloadControl = new OverloadControl(threadPool, minThreads,
+				maxThreads, highWaterMark);
+		metrics.setExecutor(threadPool);
+		metrics.setConnections(connections);
+	}
+
+	/**
+	 * Sets the number of jobs in flight (queued or running) at which the
+	 * connectors stop accepting connections. They resume accepting when the
+	 * number drops under three quarters of it.
+	 * 
+	 * @param highWaterMark
+	 *            the high-water mark
+	 */
+	public void setHighWaterMark(int highWaterMark) {
+		overloadControl.setHighWaterMark(highWaterMark);
+	}
+
+	/**
+	 * Creates an executor that starts a new virtual thread for each job.<br>
+	 * Virtual threads are looked up reflectively so the server still runs on
+	 * JVMs that do not have them.
+	 * 
+	 * @return the executor, or <code>null</code> if virtual threads are not
+	 *         available
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			log.info("Using a virtual thread per connection");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			log.warn("Virtual threads are not supported by this JVM ("
+					+ System.getProperty("java.version")
+					+ "), using the thread pool");
+			return null;
+		}
+	}
+
+	/**
+	 * Sets the time given to the requests in flight to complete when the
+	 * server stops. The connections still open after it are closed.
+	 * 
+	 * @param drainTimeout
+	 *            the timeout, in milliseconds
+	 */
+	public void setDrainTimeout(long drainTimeout) {
+		this.drainTimeout = Math.max(0, drainTimeout);
 	}
 
 	public List<Connector> getListeners() {
@@ -75,6 +220,8 @@ public class ServerImpl implements Server {
 
 	public void start() throws Exception {
 
+		overloadControl.start();
+		connections.start();
 		log.debug("Starting connectors...");
 		for (Connector l : connectors) {
 			l.start();
@@ -83,12 +230,44 @@ public class ServerImpl implements Server {
 		Runtime.getRuntime().addShutdownHook(new ShutdownHook(this));
 	}
 
+	/**
+	 * Stops the server gracefully.<br>
+	 * The connectors stop accepting connections first, then the idle
+	 * connections are closed and the requests in flight are given
+	 * {@link #drainTimeout} milliseconds to complete (their connections are
+	 * closed as soon as they do). The connections still open after that are
+	 * closed, and the connectors and the thread pool are stopped.
+	 */
 	public void stop() throws Exception {
+		synchronized (this) {
+			if (stopped) {
+				return;
+			}
+			stopped = true;
+		}
 		log.info("Stopping ServeMe web server");
+		log.debug("Closing the listening sockets...");
+		for (Connector c : connectors) {
+			try {
+				c.stopAccepting();
+			} catch (Exception e) {
+				log.warn("Cannot close a listening socket: " + e.getMessage(),
+						e);
+			}
+		}
+		log.info("Draining " + connections.size() + " connections...");
+		int left = connections.drain(drainTimeout);
+		if (left > 0) {
+			log.warn("Closing " + left + " connections still in use after "
+					+ drainTimeout + " ms");
+			connections.closeAll();
+		}
 		log.debug("Stopping connectors...");
 		for (Connector c : connectors) {
 			c.stop();
 		}
+		overloadControl.stop();
+		connections.stop();
 		log.info("Shutting down the thread pool...");
 		threadPool.shutdown();
 		log.info("Server stopped");
@@ -111,14 +290,34 @@ public class ServerImpl implements Server {
 		c.setServer(this);
 	}
 
-	public void dispatch(Runnable job) {
+	public boolean dispatch(Runnable job) {
 		try {
-			threadPool.execute(job);
+			threadPool.execute(overloadControl.track(job));
+			return true;
 		} catch (RejectedExecutionException e) {
-			log.fatal("Cannot dispatch job because the thread pool queue is full");
+			overloadControl.rejected();
+			log.debug("Cannot dispatch job because the thread pool queue is full");
+			return false;
 		}
 	}
 
+	public boolean isOverloaded() {
+		return overloadControl.isOverloaded();
+	}
+
+	public void reject(Socket connection) {
+		overloadControl.reject(connection);
+		metrics.responseSent(HttpResponseCodes.HTTP_SERVICE_UNAVAILABLE);
+	}
+
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	public ConnectionRegistry getConnections() {
+		return connections;
+	}
+
 	private class ShutdownHook extends Thread {
 		private Server serverProcess;
 
@@ -0,0 +1,435 @@
+package ro.dp.serveme.core.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The access log, written in the Combined Log Format:<br>
+ * <code>host - - [date] "request line" status bytes "referer" "user agent"</code>
+ * <br>
+ * The request threads never touch the disk: an entry is stored in a bounded,
+ * lock-free ring buffer and a background thread formats the entries in
+ * batches and writes them to the log file. The batch is written when the
+ * write buffer is full or when the oldest entry in it waited for
+ * {@link #FLUSH_INTERVAL} milliseconds. The file is rotated when it reaches
+ * its maximum size. When the ring buffer is full the entry is dropped (and
+ * counted) rather than making the request wait.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+public class AccessLog implements Runnable {
+
+	private static Logger log = Logger.getLogger(AccessLog.class);
+
+	/**
+	 * The longest time (in milliseconds) an entry waits in the write buffer.
+	 */
+	private static final long FLUSH_INTERVAL = 1000;
+
+	/**
+	 * How long (in nanoseconds) the writer sleeps when there is nothing to
+	 * write.
+	 */
+	private static final long IDLE_PARK_NANOS = 10000000;
+
+	/**
+	 * The size of the write buffer.
+	 */
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The log file.
+	 */
+	private File file;
+
+	/**
+	 * The size (in bytes) at which the log file is rotated.
+	 */
+	private long maxFileSize;
+
+	/**
+	 * The number of rotated files kept (<code>access.log.1</code> is the most
+	 * recent).
+	 */
+	private int maxBackups;
+
+	/**
+	 * The entries of the ring buffer, one array per field. The slot of a
+	 * sequence number is <code>sequence &amp; mask</code>.
+	 */
+	private int mask;
+	private String[] hosts;
+	private long[] times;
+	private String[] requestLines;
+	private int[] statuses;
+	private long[] lengths;
+	private String[] referers;
+	private String[] userAgents;
+
+	/**
+	 * The state of each slot: a slot with the state <code>s</code> is free for
+	 * the producer of the sequence number <code>s</code> and readable by the
+	 * writer when the state is <code>s + 1</code>.
+	 */
+	private AtomicLongArray states;
+
+	/**
+	 * The next sequence number claimed by a request thread.
+	 */
+	private AtomicLong tail = new AtomicLong();
+
+	/**
+	 * The next sequence number read by the writer (only used by the writer
+	 * thread).
+	 */
+	private long head = 0;
+
+	/**
+	 * The number of entries dropped because the ring buffer was full.
+	 */
+	private LongAdder dropped = new LongAdder();
+
+	/**
+	 * The number of dropped entries already reported.
+	 */
+	private long reportedDrops = 0;
+
+	private volatile boolean running = false;
+
+	private Thread writer;
+
+	private FileChannel channel;
+
+	private long fileSize;
+
+	private ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+
+	/**
+	 * The date format of the entries and the last formatted second (only used
+	 * by the writer thread).
+	 */
+	private SimpleDateFormat dateFormat = new SimpleDateFormat(
+			"dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+	private long formattedSecond = -1;
+	private String formattedDate;
+
+	/**
+	 * Constructs an access log. The log is not started.
+	 *
+	 * @param file
+	 *            the log file
+	 * @param capacity
+	 *            the number of entries held by the ring buffer (rounded up to
+	 *            a power of two)
+	 * @param maxFileSize
+	 *            the size (in bytes) at which the file is rotated
+	 * @param maxBackups
+	 *            the number of rotated files kept, 0 to truncate the file
+	 *            instead
+	 */
+	public AccessLog(File file, int capacity, long maxFileSize, int maxBackups) {
+		this.file = file.getAbsoluteFile();
+		this.maxFileSize = maxFileSize;
+		this.maxBackups = maxBackups;
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.mask = size - 1;
+		hosts = new String[size];
+		times = new long[size];
+		requestLines = new String[size];
+		statuses = new int[size];
+		lengths = new long[size];
+		referers = new String[size];
+		userAgents = new String[size];
+		states = new AtomicLongArray(size);
+		for (int idx = 0; idx < size; idx++) {
+			states.set(idx, idx);
+		}
+	}
+
+	/**
+	 * Opens the log file and starts the writer thread.
+	 *
+	 * @throws IOException
+	 *             if the log file cannot be opened
+	 */
+	public void start() throws IOException {
+		open();
+		running = true;
+		writer = new Thread(this, "AccessLog");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Stops the writer thread, after it wrote the pending entries.
+	 */
+	public void stop() {
+		running = false;
+		if (writer != null) {
+			LockSupport.unpark(writer);
+			try {
+				writer.join(FLUSH_INTERVAL * 5);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of entries dropped because the ring buffer was full.
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Records a request. The call never blocks: if the ring buffer is full
+	 * the entry is dropped.
+	 *
+	 * @param host
+	 *            the address of the client
+	 * @param time
+	 *            the time the request was received, in milliseconds
+	 * @param requestLine
+	 *            the request line, e.g. <code>GET / HTTP/1.1</code>
+	 * @param status
+	 *            the status code of the response
+	 * @param length
+	 *            the length of the response body
+	 * @param referer
+	 *            the <code>Referer</code> header, or <code>null</code>
+	 * @param userAgent
+	 *            the <code>User-Agent</code> header, or <code>null</code>
+	 * @return <code>true</code> if the entry was recorded, <code>false</code>
+	 *         if it was dropped
+	 */
+	public boolean log(String host, long time, String requestLine, int status,
+			long length, String referer, String userAgent) {
+		long sequence = tail.get();
+		int slot;
+		while (true) {
+			slot = (int) sequence & mask;
+			long state = states.get(slot);
+			if (state == sequence) {
+				if (tail.compareAndSet(sequence, sequence + 1)) {
+					break;
+				}
+				sequence = tail.get();
+			} else if (state < sequence) {
+				// the writer did not read the entry stored here a lap ago
+				dropped.increment();
+				return false;
+			} else {
+				sequence = tail.get();
+			}
+		}
+		hosts[slot] = host;
+		times[slot] = time;
+		requestLines[slot] = requestLine;
+		statuses[slot] = status;
+		lengths[slot] = length;
+		referers[slot] = referer;
+		userAgents[slot] = userAgent;
+		// publishes the fields to the writer
+		states.lazySet(slot, sequence + 1);
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		long oldest = 0;
+		try {
+			while (true) {
+				boolean stopping = !running;
+				int drained = drain();
+				if (drained > 0 && oldest == 0) {
+					oldest = System.currentTimeMillis();
+				}
+				if (buffer.position() > 0
+						&& (stopping || System.currentTimeMillis() - oldest >= FLUSH_INTERVAL)) {
+					writeBuffer();
+					oldest = 0;
+				}
+				reportDrops();
+				if (stopping) {
+					break;
+				}
+				if (drained == 0) {
+					LockSupport.parkNanos(IDLE_PARK_NANOS);
+				}
+			}
+		} catch (IOException e) {
+			log.error("Cannot write the access log " + file + ": "
+					+ e.getMessage(), e);
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Formats the published entries into the write buffer, writing the buffer
+	 * out whenever it is full.
+	 *
+	 * @return the number of entries read
+	 */
+	private int drain() throws IOException {
+		int count = 0;
+		while (true) {
+			int slot = (int) head & mask;
+			if (states.get(slot) != head + 1) {
+				return count;
+			}
+			format(slot);
+			hosts[slot] = null;
+			requestLines[slot] = null;
+			referers[slot] = null;
+			userAgents[slot] = null;
+			// frees the slot for the producer one lap ahead
+			states.lazySet(slot, head + mask + 1);
+			head++;
+			count++;
+		}
+	}
+
+	/**
+	 * Appends an entry to the write buffer.
+	 */
+	private void format(int slot) throws IOException {
+		if (buffer.remaining() < 1024) {
+			writeBuffer();
+		}
+		append(hosts[slot], false);
+		append(" - - [", false);
+		append(date(times[slot]), false);
+		append("] \"", false);
+		append(requestLines[slot], true);
+		append("\" ", false);
+		append(Integer.toString(statuses[slot]), false);
+		buffer.put((byte) ' ');
+		append(lengths[slot] > 0 ? Long.toString(lengths[slot]) : "-", false);
+		append(" \"", false);
+		append(referers[slot] != null ? referers[slot] : "-", true);
+		append("\" \"", false);
+		append(userAgents[slot] != null ? userAgents[slot] : "-", true);
+		append("\"\n", false);
+	}
+
+	/**
+	 * Appends a string to the write buffer, escaping the quotes, the
+	 * backslashes and the non printable characters of the values sent by the
+	 * client.
+	 */
+	private void append(String text, boolean escape) throws IOException {
+		for (int idx = 0; idx < text.length(); idx++) {
+			if (buffer.remaining() < 4) {
+				writeBuffer();
+			}
+			char c = text.charAt(idx);
+			if (!escape) {
+				buffer.put((byte) c);
+			} else if (c == '"' || c == '\\') {
+				buffer.put((byte) '\\').put((byte) c);
+			} else if (c < 0x20 || c >= 0x7f) {
+				buffer.put((byte) '\\').put((byte) 'x')
+						.put((byte) Character.forDigit((c >> 4) & 0xf, 16))
+						.put((byte) Character.forDigit(c & 0xf, 16));
+			} else {
+				buffer.put((byte) c);
+			}
+		}
+	}
+
+	/**
+	 * Formats a time, reusing the formatted date within the same second.
+	 */
+	private String date(long time) {
+		long second = time / 1000;
+		if (second != formattedSecond) {
+			formattedDate = dateFormat.format(new Date(time));
+			formattedSecond = second;
+		}
+		return formattedDate;
+	}
+
+	/**
+	 * Writes the write buffer to the log file, rotating the file first if it
+	 * would grow past its maximum size.
+	 */
+	private void writeBuffer() throws IOException {
+		buffer.flip();
+		if (fileSize > 0 && fileSize + buffer.remaining() > maxFileSize) {
+			rotate();
+		}
+		while (buffer.hasRemaining()) {
+			fileSize += channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Logs the entries dropped since the last report.
+	 */
+	private void reportDrops() {
+		long drops = dropped.sum();
+		if (drops != reportedDrops) {
+			log.warn("The access log dropped " + (drops - reportedDrops)
+					+ " entries (the buffer is full)");
+			reportedDrops = drops;
+		}
+	}
+
+	private void open() throws IOException {
+		channel = new FileOutputStream(file, true).getChannel();
+		fileSize = channel.size();
+	}
+
+	/**
+	 * Renames <code>access.log.N</code> to <code>access.log.N+1</code> (the
+	 * oldest file is deleted), the current file to <code>access.log.1</code>
+	 * and opens a new file.
+	 */
+	private void rotate() throws IOException {
+		channel.close();
+		if (maxBackups > 0) {
+			new File(file.getPath() + "." + maxBackups).delete();
+			for (int idx = maxBackups - 1; idx >= 1; idx--) {
+				File backup = new File(file.getPath() + "." + idx);
+				if (backup.exists()) {
+					backup.renameTo(new File(file.getPath() + "." + (idx + 1)));
+				}
+			}
+			if (!file.renameTo(new File(file.getPath() + ".1"))) {
+				log.warn("Cannot rotate the access log " + file);
+			}
+		} else {
+			file.delete();
+		}
+		open();
+	}
+
+	private void close() {
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+		} catch (IOException e) {
+			log.debug(e.getMessage(), e);
+		}
+	}
+}
@@ -0,0 +1,594 @@
+package ro.dp.serveme.core.utils;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The connections open on a server, with their state and the time of their
+ * last activity.<br>
+ * The connectors register the connections they accept and remove them when
+ * they are closed, whichever way they are closed, so the registry only ever
+ * holds live connections. Every connection has a check scheduled on a
+ * {@link TimerWheel}: when it runs, a connection that made no progress for
+ * longer than the timeout of its state is closed, any other one gets its
+ * check scheduled again. The activity itself only updates a timestamp, so
+ * the connections that are busy cost nothing to the reaper.<br>
+ * Besides the idle and stall timeouts, the reaper enforces a deadline for
+ * receiving a whole request head and a minimum rate for writing a response,
+ * so that clients trickling bytes in or out (slowloris) cannot hold a
+ * worker thread for long. The registry can also limit the number of
+ * connections open from the same address.<br>
+ * When the server stops, the registry drains the connections: the idle
+ * ones are closed at once (and the ones that become idle as soon as they
+ * do), the others are given until a deadline to finish their request.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+public class ConnectionRegistry {
+
+	private static Logger log = Logger.getLogger(ConnectionRegistry.class);
+
+	/**
+	 * The duration (in milliseconds) of a tick of the timer wheel.
+	 */
+	private static final long TICK_DURATION = 100;
+
+	/**
+	 * The number of slots of the timer wheel (a turn of about 50 seconds).
+	 */
+	private static final int SLOT_COUNT = 512;
+
+	/**
+	 * The window (in milliseconds) over which the write rate of a response is
+	 * measured.
+	 */
+	private static final long RATE_WINDOW = 10000;
+
+	/**
+	 * The state of a connection.
+	 */
+	public enum State {
+		/**
+		 * Waiting for (or receiving) the head of the first request.
+		 */
+		READING,
+		/**
+		 * A request is being handled.
+		 */
+		PROCESSING,
+		/**
+		 * The response to a request is being written.
+		 */
+		WRITING,
+		/**
+		 * Waiting for the next request of a persistent connection.
+		 */
+		IDLE
+	}
+
+	/**
+	 * A registered connection.
+	 */
+	public class Entry implements Runnable {
+
+		private SocketChannel channel;
+
+		private SocketAddress remoteAddress;
+
+		private long acceptedTime;
+
+		private volatile State state = State.READING;
+
+		/**
+		 * The time the connection entered its state.
+		 */
+		private volatile long stateSince;
+
+		private volatile long lastActivity;
+
+		/**
+		 * The number of bytes written to the connection (only updated by the
+		 * thread serving it).
+		 */
+		private volatile long bytesWritten = 0;
+
+		/**
+		 * The start of the current write rate window and the bytes written
+		 * before it (only used by the reaper).
+		 */
+		private long windowStart = 0;
+		private long windowBytes;
+
+		/**
+		 * The address counted against the per address limit, or
+		 * <code>null</code>.
+		 */
+		private InetAddress countedAddress = null;
+
+		private volatile boolean reaped = false;
+
+		/**
+		 * The next check of the connection.
+		 */
+		private volatile TimerWheel.Timeout check;
+
+		Entry(SocketChannel channel) {
+			this.channel = channel;
+			this.remoteAddress = channel.socket().getRemoteSocketAddress();
+			this.acceptedTime = System.currentTimeMillis();
+			this.lastActivity = acceptedTime;
+			this.stateSince = acceptedTime;
+		}
+
+		/**
+		 * Changes the state of the connection, which counts as activity.
+		 */
+		public void setState(State state) {
+			long now = System.currentTimeMillis();
+			if (this.state != state) {
+				this.stateSince = now;
+				this.state = state;
+			}
+			this.lastActivity = now;
+			if (state == State.IDLE && draining) {
+				close();
+			}
+		}
+
+		public State getState() {
+			return state;
+		}
+
+		/**
+		 * Records bytes received from the connection. An idle connection
+		 * starts reading a request.
+		 */
+		public void received() {
+			if (state == State.IDLE) {
+				setState(State.READING);
+			} else {
+				lastActivity = System.currentTimeMillis();
+			}
+		}
+
+		/**
+		 * Records bytes written to the connection. A connection processing a
+		 * request starts writing its response.
+		 *
+		 * @param count
+		 *            the number of bytes written
+		 */
+		public void written(long count) {
+			bytesWritten += count;
+			if (state == State.PROCESSING) {
+				setState(State.WRITING);
+			} else {
+				lastActivity = System.currentTimeMillis();
+			}
+		}
+
+		public long getLastActivity() {
+			return lastActivity;
+		}
+
+		public long getAcceptedTime() {
+			return acceptedTime;
+		}
+
+		public SocketAddress getRemoteAddress() {
+			return remoteAddress;
+		}
+
+		/**
+		 * Checks whether the connection was closed by the reaper, or by the
+		 * drain (the thread serving it sees the failures that follow as
+		 * expected).
+		 */
+		public boolean isReaped() {
+			return reaped;
+		}
+
+		/**
+		 * The reaper's check: closes the connection if it made no progress
+		 * within the timeout of its state, or checks it again later.
+		 */
+		public void run() {
+			if (!connections.containsKey(channel)) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			State current = state;
+			long since = stateSince;
+			long left = lastActivity + timeout(current) - now;
+			String reason = "without activity";
+			if (current == State.READING) {
+				long headLeft = since + headerTimeout - now;
+				if (headLeft < left) {
+					left = headLeft;
+					reason = "without a complete request head";
+				}
+			}
+			if (left > 0 && current == State.WRITING && minWriteRate > 0) {
+				if (windowStart < since) {
+					// a new response, the window starts now
+					windowStart = now;
+					windowBytes = bytesWritten;
+				} else if (now - windowStart >= RATE_WINDOW) {
+					long written = bytesWritten - windowBytes;
+					if (written * 1000 < minWriteRate * (now - windowStart)) {
+						left = 0;
+						reason = "writing " + written + " bytes in "
+								+ (now - windowStart) + " ms";
+					}
+					windowStart = now;
+					windowBytes = bytesWritten;
+				}
+				left = Math.min(left, windowStart + RATE_WINDOW - now);
+			}
+			if (left > 0) {
+				scheduleCheck(this, left);
+				return;
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("Closing " + current.name().toLowerCase()
+						+ " connection from " + remoteAddress + " after "
+						+ (now - since) + " ms " + reason);
+			}
+			metrics.connectionTimedOut();
+			close();
+		}
+
+		/**
+		 * Closes the connection on behalf of the registry, abortively if a
+		 * request is being served over it.
+		 */
+		private void close() {
+			reaped = true;
+			try {
+				if (state == State.PROCESSING || state == State.WRITING) {
+					abort();
+				}
+			} catch (IOException e) {
+				log.debug(e.getMessage(), e);
+			} finally {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					log.debug(e.getMessage(), e);
+				}
+			}
+			remove(channel);
+		}
+
+		/**
+		 * Prepares the connection of a stalled response for an abortive
+		 * close. A thread blocked writing to the connection is woken up by
+		 * the shutdown (closing the channel alone does not interrupt a file
+		 * transfer), and the connection is reset instead of the kernel
+		 * trickling out the bytes it still holds.
+		 */
+		private void abort() throws IOException {
+			channel.setOption(StandardSocketOptions.SO_LINGER, Integer.valueOf(0));
+			channel.shutdownOutput();
+		}
+	}
+
+	private ConcurrentMap<SocketChannel, Entry> connections = new ConcurrentHashMap<SocketChannel, Entry>();
+
+	/**
+	 * The number of connections open from each address, when they are
+	 * limited.
+	 */
+	private ConcurrentMap<InetAddress, AtomicInteger> connectionsPerAddress = new ConcurrentHashMap<InetAddress, AtomicInteger>();
+
+	private ServerMetrics metrics;
+
+	private TimerWheel wheel = new TimerWheel("ServeMe-reaper",
+			TICK_DURATION, SLOT_COUNT);
+
+	/**
+	 * The amount of time (in milliseconds) a connection may wait for a
+	 * request. Defaults to 15 seconds.
+	 */
+	private volatile int idleTimeout = 15000;
+
+	/**
+	 * The amount of time (in milliseconds) a response may make no progress
+	 * before its connection is closed. Defaults to 60 seconds.
+	 */
+	private volatile int stallTimeout = 60000;
+
+	/**
+	 * The amount of time (in milliseconds) a client may take to send a whole
+	 * request head. Defaults to 10 seconds.
+	 */
+	private volatile int headerTimeout = 10000;
+
+	/**
+	 * The lowest rate (in bytes per second) at which a response may be
+	 * written, 0 for no limit. Defaults to 256 bytes per second.
+	 */
+	private volatile int minWriteRate = 256;
+
+	/**
+	 * The maximum number of connections open from the same address, 0 for no
+	 * limit.
+	 */
+	private volatile int maxConnectionsPerAddress = 0;
+
+	/**
+	 * Whether the server is stopping: the connections are closed instead of
+	 * waiting for another request.
+	 */
+	private volatile boolean draining = false;
+
+	/**
+	 * Constructs a registry.
+	 *
+	 * @param metrics
+	 *            the metrics where the connections accepted and closed are
+	 *            recorded
+	 */
+	public ConnectionRegistry(ServerMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Starts reaping the connections.
+	 */
+	public void start() {
+		wheel.start();
+	}
+
+	/**
+	 * Stops reaping the connections.
+	 */
+	public void stop() {
+		wheel.stop();
+	}
+
+	/**
+	 * Sets the amount of time (in milliseconds) that a connection may wait
+	 * for a request (the first one or the next one) before it is closed.
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Sets the amount of time (in milliseconds) that the response to a
+	 * request may make no progress (e.g. because the client does not read
+	 * it) before the connection is closed.
+	 */
+	public void setStallTimeout(int stallTimeout) {
+		this.stallTimeout = stallTimeout;
+	}
+
+	/**
+	 * Sets the amount of time (in milliseconds) that a client may take to
+	 * send a whole request head, however steadily it sends it.
+	 */
+	public void setHeaderTimeout(int headerTimeout) {
+		this.headerTimeout = headerTimeout;
+	}
+
+	/**
+	 * Sets the lowest rate (in bytes per second) at which a response may be
+	 * written, measured over windows of {@link #RATE_WINDOW} milliseconds.
+	 *
+	 * @param minWriteRate
+	 *            the rate, 0 for no limit
+	 */
+	public void setMinWriteRate(int minWriteRate) {
+		this.minWriteRate = minWriteRate;
+	}
+
+	/**
+	 * Sets the maximum number of connections open at the same time from the
+	 * same address. Must be set before connections are registered.
+	 *
+	 * @param maxConnectionsPerAddress
+	 *            the limit, 0 for no limit
+	 */
+	public void setMaxConnectionsPerAddress(int maxConnectionsPerAddress) {
+		this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+	}
+
+	/**
+	 * Registers an accepted connection, in the {@link State#READING} state.
+	 * A connection over the limit of its address is closed instead.
+	 *
+	 * @param channel
+	 *            the connection's channel
+	 * @return the entry of the connection, or <code>null</code> if the
+	 *         connection was refused (and closed)
+	 */
+	public Entry add(SocketChannel channel) {
+		metrics.connectionAccepted();
+		Entry entry = new Entry(channel);
+		if (maxConnectionsPerAddress > 0
+				&& entry.remoteAddress instanceof InetSocketAddress) {
+			InetAddress address = ((InetSocketAddress) entry.remoteAddress)
+					.getAddress();
+			if (!acquire(address)) {
+				if (log.isDebugEnabled()) {
+					log.debug("Refusing connection from " + entry.remoteAddress
+							+ ", too many connections from that address");
+				}
+				metrics.connectionRefused();
+				try {
+					channel.close();
+				} catch (IOException e) {
+					log.debug(e.getMessage(), e);
+				}
+				metrics.connectionClosed();
+				return null;
+			}
+			entry.countedAddress = address;
+		}
+		connections.put(channel, entry);
+		scheduleCheck(entry, Math.min(idleTimeout, headerTimeout));
+		return entry;
+	}
+
+	/**
+	 * Returns the entry of a connection.
+	 *
+	 * @param channel
+	 *            the connection's channel, may be <code>null</code>
+	 * @return the entry, or <code>null</code> if the connection is not
+	 *         registered
+	 */
+	public Entry get(SocketChannel channel) {
+		return channel != null ? connections.get(channel) : null;
+	}
+
+	/**
+	 * Removes a closed connection. Removing a connection more than once has
+	 * no effect.
+	 *
+	 * @param channel
+	 *            the connection's channel, may be <code>null</code>
+	 * @return <code>true</code> if the connection was registered
+	 */
+	public boolean remove(SocketChannel channel) {
+		Entry entry = channel != null ? connections.remove(channel) : null;
+		if (entry == null) {
+			return false;
+		}
+		if (entry.check != null) {
+			entry.check.cancel();
+		}
+		if (entry.countedAddress != null) {
+			release(entry.countedAddress);
+		}
+		metrics.connectionClosed();
+		return true;
+	}
+
+	/**
+	 * Counts a connection against the limit of its address.
+	 *
+	 * @return <code>false</code> if the address reached the limit
+	 */
+	private boolean acquire(InetAddress address) {
+		while (true) {
+			AtomicInteger count = connectionsPerAddress.get(address);
+			if (count == null) {
+				if (connectionsPerAddress.putIfAbsent(address,
+						new AtomicInteger(1)) == null) {
+					return true;
+				}
+				continue;
+			}
+			int current = count.get();
+			if (current >= maxConnectionsPerAddress) {
+				return false;
+			}
+			// a count that dropped to 0 is being removed from the map
+			if (current > 0 && count.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	private void release(InetAddress address) {
+		AtomicInteger count = connectionsPerAddress.get(address);
+		if (count != null && count.decrementAndGet() == 0) {
+			connectionsPerAddress.remove(address, count);
+		}
+	}
+
+	/**
+	 * Drains the connections: closes the idle ones, and waits for the others
+	 * to finish the request they are serving. The connections that become
+	 * idle from now on are closed too, and the handler does not keep the
+	 * connections open after their response.
+	 *
+	 * @param timeout
+	 *            the time (in milliseconds) given to the requests in flight
+	 * @return the number of connections still open at the deadline
+	 * @throws InterruptedException
+	 */
+	public int drain(long timeout) throws InterruptedException {
+		draining = true;
+		long deadline = System.currentTimeMillis() + timeout;
+		while (true) {
+			for (Entry entry : connections.values()) {
+				if (entry.state == State.IDLE) {
+					entry.close();
+				}
+			}
+			long left = deadline - System.currentTimeMillis();
+			if (connections.isEmpty() || left <= 0) {
+				return connections.size();
+			}
+			Thread.sleep(Math.min(left, TICK_DURATION));
+		}
+	}
+
+	/**
+	 * Tells whether the connections are being drained.
+	 */
+	public boolean isDraining() {
+		return draining;
+	}
+
+	/**
+	 * Closes all the connections, e.g. the ones left when the drain timed
+	 * out.
+	 */
+	public void closeAll() {
+		for (Entry entry : connections.values()) {
+			entry.close();
+		}
+	}
+
+	/**
+	 * Returns the number of registered connections.
+	 */
+	public int size() {
+		return connections.size();
+	}
+
+	/**
+	 * Counts the registered connections by state.
+	 *
+	 * @return the counts, by {@link State#ordinal()}
+	 */
+	public int[] countByState() {
+		int[] counts = new int[State.values().length];
+		for (Entry entry : connections.values()) {
+			counts[entry.state.ordinal()]++;
+		}
+		return counts;
+	}
+
+	private long timeout(State state) {
+		return state == State.PROCESSING || state == State.WRITING ? stallTimeout
+				: idleTimeout;
+	}
+
+	/**
+	 * Schedules the next check of a connection. The check is never further
+	 * away than the shortest timeout, so that a connection switching to a
+	 * state with a shorter timeout is not reaped late.
+	 */
+	private void scheduleCheck(Entry entry, long delay) {
+		long shortest = Math.min(Math.min(idleTimeout, stallTimeout),
+				headerTimeout);
+		if (minWriteRate > 0) {
+			shortest = Math.min(shortest, RATE_WINDOW);
+		}
+		entry.check = wheel.schedule(entry, Math.min(delay, shortest));
+	}
+}
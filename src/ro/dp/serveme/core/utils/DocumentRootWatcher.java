@@ -0,0 +1,222 @@
+package ro.dp.serveme.core.utils;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Watches a document root (and all its sub-folders) for changes.<br>
+ * The components that keep in-memory copies of the document root (caches,
+ * indexes) register a {@link Listener} and are notified from the watcher
+ * thread whenever a file or folder is created, modified or deleted.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+public class DocumentRootWatcher implements Runnable {
+
+	private static Logger log = Logger.getLogger(DocumentRootWatcher.class);
+
+	/**
+	 * Receives the change notifications of a {@link DocumentRootWatcher}.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called when a file or folder under the document root was created,
+		 * modified or deleted. For folders, the notification also applies to
+		 * everything under the folder.
+		 *
+		 * @param file
+		 *            the changed file, as an absolute path
+		 */
+		public void fileChanged(File file);
+
+		/**
+		 * Called when the watcher lost track of the changes (e.g. too many
+		 * events at once); everything under the document root must be
+		 * considered changed.
+		 */
+		public void allChanged();
+	}
+
+	/**
+	 * The watched folder.
+	 */
+	private Path root;
+
+	/**
+	 * The underlying watch service.
+	 */
+	private WatchService watchService;
+
+	/**
+	 * The registered listeners.
+	 */
+	private List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	/**
+	 * Constructs a watcher for the specified document root. The watcher is
+	 * not started.
+	 *
+	 * @param documentRoot
+	 *            the folder to watch
+	 */
+	public DocumentRootWatcher(String documentRoot) {
+		this.root = new File(documentRoot).getAbsoluteFile().toPath();
+	}
+
+	/**
+	 * Registers a listener.
+	 *
+	 * @param listener
+	 *            the {@link Listener} being added
+	 */
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Starts watching the document root on a background (daemon) thread.
+	 *
+	 * @throws IOException
+	 *             if the document root cannot be watched
+	 */
+	public void start() throws IOException {
+		watchService = FileSystems.getDefault().newWatchService();
+		registerAll(root);
+		Thread thread = new Thread(this, "ServeMe-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops watching the document root.
+	 *
+	 * @throws IOException
+	 */
+	public void stop() throws IOException {
+		if (watchService != null) {
+			watchService.close();
+		}
+	}
+
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				Path folder = (Path) key.watchable();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == OVERFLOW) {
+						notifyAllChanged();
+						continue;
+					}
+					Path changed = folder.resolve((Path) event.context());
+					if (event.kind() == ENTRY_CREATE
+							&& Files.isDirectory(changed)) {
+						try {
+							registerAll(changed);
+						} catch (IOException e) {
+							// usually deleted already
+							skipped(changed, e);
+						}
+					}
+					notifyChanged(changed.toFile());
+				}
+				if (!key.reset() && folder.equals(root)) {
+					log.warn("The document root is no longer accessible");
+					notifyAllChanged();
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			// the watcher was stopped
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Notifies the listeners of a change. A listener that fails is logged and
+	 * skipped, so that it does not stop the watcher.
+	 */
+	private void notifyChanged(File file) {
+		for (Listener listener : listeners) {
+			try {
+				listener.fileChanged(file);
+			} catch (RuntimeException e) {
+				log.error(e.getMessage(), e);
+			}
+		}
+	}
+
+	private void notifyAllChanged() {
+		for (Listener listener : listeners) {
+			try {
+				listener.allChanged();
+			} catch (RuntimeException e) {
+				log.error(e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Registers a folder and all its sub-folders with the watch service. The
+	 * sub-folders that cannot be watched (typically because they were
+	 * deleted meanwhile) are skipped.
+	 *
+	 * @throws IOException
+	 *             if the folder itself cannot be watched
+	 */
+	private void registerAll(final Path start) throws IOException {
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir,
+					BasicFileAttributes attrs) throws IOException {
+				try {
+					dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE,
+							ENTRY_MODIFY);
+				} catch (IOException e) {
+					if (dir.equals(start)) {
+						throw e;
+					}
+					skipped(dir, e);
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e)
+					throws IOException {
+				if (file.equals(start)) {
+					throw e;
+				}
+				skipped(file, e);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private void skipped(Path path, IOException e) {
+		if (log.isDebugEnabled()) {
+			log.debug("Cannot watch " + path + ": " + e);
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package ro.dp.serveme.core.utils;
+
+/**
+ * Enum class that holds the strategies available to the server for running
+ * the {@link Listener} and {@link Connection} jobs.
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+public enum ExecutionMode {
+	/**
+	 * Jobs run on a bounded pool of platform threads.
+	 */
+	POOLED("pooled"),
+	/**
+	 * Every job runs on its own virtual thread (requires Java 21 or greater).
+	 */
+	VIRTUAL("virtual");
+	
+	private String name;
+	
+	private ExecutionMode(String name) {
+		this.name = name;
+	}
+	
+	public String getName() {
+		return this.name;
+	}
+	
+	@Override
+	public String toString() {
+		return this.getName();
+	}
+	
+	/**
+	 * Returns the execution mode with the specified name.
+	 * @param name - the name of the mode (case insensitive)
+	 * @return the mode, or <code>null</code> if there is no mode with this name
+	 */
+	public static ExecutionMode forName(String name) {
+		for (ExecutionMode mode : values()) {
+			if (mode.getName().equalsIgnoreCase(name)) {
+				return mode;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,55 @@
+package ro.dp.serveme.core.utils;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Formats and parses the dates used in the HTTP headers (RFC 1123, e.g.
+ * <code>Sun, 06 Nov 1994 08:49:37 GMT</code>).<br>
+ * The formatters are not thread safe, so each thread gets its own.
+ * @author Daniel Platon (dplaton@gmail.com)
+ * @see http://www.w3.org/Protocols/rfc2616/rfc2616-sec3.html#sec3.3.1
+ */
+public class HttpDates {
+
+	private static ThreadLocal<DateFormat> FORMATS = new ThreadLocal<DateFormat>() {
+		@Override
+		protected DateFormat initialValue() {
+			DateFormat format = new SimpleDateFormat(
+					"EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+			format.setLenient(false);
+			return format;
+		}
+	};
+
+	private HttpDates() {
+	}
+
+	/**
+	 * Formats a date.
+	 * @param time - the date, in milliseconds since the epoch
+	 * @return the formatted date
+	 */
+	public static String format(long time) {
+		return FORMATS.get().format(new Date(time));
+	}
+
+	/**
+	 * Parses a date.
+	 * @param date - the formatted date
+	 * @return the date in milliseconds since the epoch, or -1 if the date is
+	 *         not valid
+	 */
+	public static long parse(String date) {
+		try {
+			return FORMATS.get().parse(date.trim()).getTime();
+		} catch (ParseException e) {
+			return -1;
+		}
+	}
+}
@@ -9,9 +9,14 @@ import java.io.File;
  */
 public enum HttpResponseCodes {
 	HTTP_OK(200,"OK"),
+	HTTP_PARTIAL_CONTENT(206,"Partial content"),
+	HTTP_NOT_MODIFIED(304,"Not modified"),
+	HTTP_BAD_REQUEST(400,"Bad request"),
 	HTTP_NOT_FOUND(404,"Not found"),
+	HTTP_RANGE_NOT_SATISFIABLE(416,"Requested range not satisfiable"),
 	HTTP_SERVER_ERROR(500,"Internal server error"),
-	HTTP_NOT_IMPLEMENTED(501,"Not implemented");
+	HTTP_NOT_IMPLEMENTED(501,"Not implemented"),
+	HTTP_SERVICE_UNAVAILABLE(503,"Service unavailable");
 	
 	private int code;
 	private String description;
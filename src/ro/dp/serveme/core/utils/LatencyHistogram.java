@@ -0,0 +1,180 @@
+package ro.dp.serveme.core.utils;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * A histogram of durations with fixed, logarithmic buckets (in the spirit of
+ * HdrHistogram).<br>
+ * Durations are counted in microseconds. Every power of two is split into 4
+ * buckets, so a bucket is never wider than a quarter of its lower bound;
+ * durations longer than about an hour fall in the last bucket. Each bucket
+ * is a {@link LongAdder}, so recording is contended only between threads
+ * that record the same bucket at the same time, and allocates nothing.
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+public class LatencyHistogram {
+
+	/**
+	 * The number of buckets per power of two (as a number of bits).
+	 */
+	private static final int SUB_BUCKET_BITS = 2;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * The largest power of two (in microseconds) that has its own buckets.
+	 */
+	private static final int MAX_EXPONENT = 31;
+
+	private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2)
+			* SUB_BUCKETS;
+
+	private LongAdder[] counts = new LongAdder[BUCKET_COUNT];
+
+	/**
+	 * The sum of the recorded durations, in nanoseconds.
+	 */
+	private LongAdder total = new LongAdder();
+
+	/**
+	 * The longest recorded duration, in nanoseconds.
+	 */
+	private LongAccumulator max = new LongAccumulator(new LongBinaryOperator() {
+		public long applyAsLong(long left, long right) {
+			return Math.max(left, right);
+		}
+	}, 0);
+
+	public LatencyHistogram() {
+		for (int idx = 0; idx < BUCKET_COUNT; idx++) {
+			counts[idx] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records a duration.
+	 * @param nanos - the duration, in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			return;
+		}
+		counts[bucketOf(nanos / 1000)].increment();
+		total.add(nanos);
+		max.accumulate(nanos);
+	}
+
+	/**
+	 * Returns the index of the bucket of a duration in microseconds.
+	 */
+	private static int bucketOf(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKET_COUNT - 1;
+		}
+		int shift = exponent - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS
+				+ (int) ((micros >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * Returns the upper bound (exclusive, in microseconds) of a bucket.
+	 */
+	private static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket + 1;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS + 1) << shift;
+	}
+
+	/**
+	 * Returns a snapshot of the bucket counts.
+	 */
+	public long[] snapshot() {
+		long[] snapshot = new long[BUCKET_COUNT];
+		for (int idx = 0; idx < BUCKET_COUNT; idx++) {
+			snapshot[idx] = counts[idx].sum();
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Returns the sum of the recorded durations, in nanoseconds.
+	 */
+	public long getTotal() {
+		return total.sum();
+	}
+
+	/**
+	 * Returns the longest recorded duration, in nanoseconds.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the number of durations in a snapshot.
+	 */
+	public static long count(long[] snapshot) {
+		long count = 0;
+		for (long c : snapshot) {
+			count += c;
+		}
+		return count;
+	}
+
+	/**
+	 * Estimates a percentile from a snapshot.
+	 * @param snapshot - the bucket counts
+	 * @param percentile - the percentile, between 0 and 100
+	 * @return the upper bound (in microseconds) of the bucket holding the
+	 *         percentile, or 0 if nothing was recorded
+	 */
+	public static long percentile(long[] snapshot, double percentile) {
+		long count = count(snapshot);
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int idx = 0; idx < snapshot.length; idx++) {
+			seen += snapshot[idx];
+			if (seen >= rank && snapshot[idx] > 0) {
+				return upperBound(idx);
+			}
+		}
+		return upperBound(snapshot.length - 1);
+	}
+
+	/**
+	 * Appends the histogram in the Prometheus text format: cumulative
+	 * buckets at every power of two, the sum and the count (in seconds).
+	 * @param out - where the histogram is written
+	 * @param name - the name of the metric
+	 * @param snapshot - the bucket counts
+	 */
+	public void appendPrometheus(StringBuilder out, String name, long[] snapshot) {
+		out.append("# TYPE ").append(name).append(" histogram\n");
+		long cumulative = 0;
+		for (int idx = 0; idx < snapshot.length; idx++) {
+			cumulative += snapshot[idx];
+			// only the buckets ending on a power of two are exported
+			if (idx >= SUB_BUCKETS - 1 && idx % SUB_BUCKETS == SUB_BUCKETS - 1
+					&& idx < snapshot.length - 1) {
+				out.append(name).append("_bucket{le=\"")
+						.append(upperBound(idx) / 1e6).append("\"} ")
+						.append(cumulative).append('\n');
+			}
+		}
+		out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative)
+				.append('\n');
+		out.append(name).append("_sum ").append(getTotal() / 1e9).append('\n');
+		out.append(name).append("_count ").append(cumulative).append('\n');
+	}
+}
@@ -0,0 +1,148 @@
+package ro.dp.serveme.core.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The file holding the process id of the running server.<br>
+ * A new server process taking over the listening sockets of the running one
+ * reads the file to find the process it replaces, writes its own id in it
+ * once it accepts connections, and then asks the previous process to stop
+ * (which drains its connections and exits).
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+public class PidFile {
+
+	private static Logger log = Logger.getLogger(PidFile.class);
+
+	private static Charset US_ASCII = Charset.forName("US-ASCII");
+
+	private File file;
+
+	/**
+	 * Constructs a pid file.
+	 *
+	 * @param file
+	 *            the path of the file
+	 */
+	public PidFile(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Returns the id of the process running the server, or -1 if the JVM
+	 * does not tell it.
+	 */
+	public static long currentPid() {
+		// "pid@hostname" on the usual JVMs
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		int at = name.indexOf('@');
+		try {
+			return Long.parseLong(at != -1 ? name.substring(0, at) : name);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Reads the process id held by the file.
+	 *
+	 * @return the process id, or -1 if the file does not exist or does not
+	 *         hold a process id
+	 */
+	public long read() {
+		try {
+			byte[] content = Files.readAllBytes(file.toPath());
+			return Long.parseLong(new String(content, US_ASCII).trim());
+		} catch (IOException e) {
+			return -1;
+		} catch (NumberFormatException e) {
+			log.warn("The pid file " + file + " does not hold a process id");
+			return -1;
+		}
+	}
+
+	/**
+	 * Writes the id of this process in the file, replacing its content.
+	 *
+	 * @throws IOException
+	 */
+	public void write() throws IOException {
+		long pid = currentPid();
+		if (pid == -1) {
+			throw new IOException("The id of the process is not known");
+		}
+		// written beside the file and renamed, so that it is never read
+		// half written
+		File temp = new File(file.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(temp);
+		try {
+			out.write((pid + "\n").getBytes(US_ASCII));
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			file.delete();
+			if (!temp.renameTo(file)) {
+				temp.delete();
+				throw new IOException("Cannot write " + file);
+			}
+		}
+	}
+
+	/**
+	 * Deletes the file, unless another process replaced its content.
+	 */
+	public void delete() {
+		if (read() == currentPid() && !file.delete()) {
+			log.debug("Cannot delete the pid file " + file);
+		}
+	}
+
+	/**
+	 * Asks a process to stop (<code>SIGTERM</code> on Unix), which lets the
+	 * server drain its connections from its shutdown hook.<br>
+	 * <code>ProcessHandle</code> is looked up reflectively, as it does not
+	 * exist before Java 9; <code>kill</code> is used instead.
+	 *
+	 * @param pid
+	 *            the id of the process
+	 * @return <code>true</code> if the process was asked to stop
+	 */
+	public static boolean terminate(long pid) {
+		try {
+			Class<?> handles = Class.forName("java.lang.ProcessHandle");
+			Object found = handles.getMethod("of", long.class).invoke(null,
+					pid);
+			Object handle = found.getClass().getMethod("orElse", Object.class)
+					.invoke(found, (Object) null);
+			if (handle == null) {
+				return false;
+			}
+			Method destroy = handles.getMethod("destroy");
+			return (Boolean) destroy.invoke(handle);
+		} catch (ClassNotFoundException e) {
+			// before Java 9
+		} catch (Exception e) {
+			log.debug("Cannot stop process " + pid + ": " + e.getMessage(), e);
+			return false;
+		}
+		try {
+			Process kill = Runtime.getRuntime().exec(
+					new String[] { "kill", "-TERM", String.valueOf(pid) });
+			return kill.waitFor() == 0;
+		} catch (Exception e) {
+			log.debug("Cannot stop process " + pid + ": " + e.getMessage(), e);
+			return false;
+		}
+	}
+}
@@ -0,0 +1,273 @@
+package ro.dp.serveme.core.utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of a server: connections, thread pool, responses, bytes sent
+ * and the time spent parsing the requests, looking up the responses and
+ * writing them.<br>
+ * Counters are {@link LongAdder}s and durations go to
+ * {@link LatencyHistogram}s, so recording is cheap and allocates nothing;
+ * the pool gauges are only read when the metrics are rendered. The metrics
+ * are rendered in the Prometheus text format or as JSON.
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+public class ServerMetrics {
+
+	private long startTime = System.currentTimeMillis();
+
+	private LongAdder acceptedConnections = new LongAdder();
+
+	private LongAdder closedConnections = new LongAdder();
+
+	private LongAdder refusedConnections = new LongAdder();
+
+	private LongAdder timedOutConnections = new LongAdder();
+
+	/**
+	 * The number of responses, by {@link HttpResponseCodes#ordinal()}.
+	 */
+	private LongAdder[] responses = new LongAdder[HttpResponseCodes.values().length];
+
+	private LongAdder bytesSent = new LongAdder();
+
+	private LatencyHistogram parseTime = new LatencyHistogram();
+
+	private LatencyHistogram lookupTime = new LatencyHistogram();
+
+	private LatencyHistogram writeTime = new LatencyHistogram();
+
+	/**
+	 * The executor of the server, read for the pool gauges.
+	 */
+	private ExecutorService executor = null;
+
+	/**
+	 * The access log, read for the number of dropped entries.
+	 */
+	private AccessLog accessLog = null;
+
+	/**
+	 * The registry of the open connections, read for their states.
+	 */
+	private ConnectionRegistry connections = null;
+
+	public ServerMetrics() {
+		for (int idx = 0; idx < responses.length; idx++) {
+			responses[idx] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Sets the executor whose threads and queue are reported.
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Sets the access log whose dropped entries are reported.
+	 */
+	public void setAccessLog(AccessLog accessLog) {
+		this.accessLog = accessLog;
+	}
+
+	/**
+	 * Sets the registry whose connections are reported by state.
+	 */
+	public void setConnections(ConnectionRegistry connections) {
+		this.connections = connections;
+	}
+
+	/**
+	 * Records a connection accepted by a connector.
+	 */
+	public void connectionAccepted() {
+		acceptedConnections.increment();
+	}
+
+	/**
+	 * Records a connection closed by the server or by the client.
+	 */
+	public void connectionClosed() {
+		closedConnections.increment();
+	}
+
+	/**
+	 * Records a connection refused because its address has too many
+	 * connections open.
+	 */
+	public void connectionRefused() {
+		refusedConnections.increment();
+	}
+
+	/**
+	 * Records a connection closed because it was idle, too slow or stalled.
+	 */
+	public void connectionTimedOut() {
+		timedOutConnections.increment();
+	}
+
+	/**
+	 * Records a response.
+	 * @param responseCode - the status of the response
+	 */
+	public void responseSent(HttpResponseCodes responseCode) {
+		responses[responseCode.ordinal()].increment();
+	}
+
+	/**
+	 * Records bytes written to the connections.
+	 */
+	public void bytesSent(long count) {
+		bytesSent.add(count);
+	}
+
+	/**
+	 * Records the durations of the phases of a request.
+	 * @param parseNanos - the time spent parsing the request head
+	 * @param lookupNanos - the time spent finding (or preparing) the response
+	 * @param writeNanos - the time spent writing the response to the
+	 *        connection
+	 */
+	public void requestTimed(long parseNanos, long lookupNanos, long writeNanos) {
+		parseTime.record(parseNanos);
+		lookupTime.record(lookupNanos);
+		writeTime.record(writeNanos);
+	}
+
+	/**
+	 * Renders the metrics in the Prometheus text format.
+	 */
+	public String toPrometheus() {
+		StringBuilder out = new StringBuilder(8192);
+		counter(out, "serveme_connections_accepted_total",
+				acceptedConnections.sum());
+		gauge(out, "serveme_connections_active", activeConnections());
+		counter(out, "serveme_connections_refused_total",
+				refusedConnections.sum());
+		counter(out, "serveme_connections_timed_out_total",
+				timedOutConnections.sum());
+		if (connections != null) {
+			int[] counts = connections.countByState();
+			out.append("# TYPE serveme_connections gauge\n");
+			for (ConnectionRegistry.State state : ConnectionRegistry.State
+					.values()) {
+				out.append("serveme_connections{state=\"")
+						.append(state.name().toLowerCase()).append("\"} ")
+						.append(counts[state.ordinal()]).append('\n');
+			}
+		}
+		ThreadPoolExecutor pool = pool();
+		if (pool != null) {
+			gauge(out, "serveme_pool_threads", pool.getPoolSize());
+			gauge(out, "serveme_pool_active_threads", pool.getActiveCount());
+			gauge(out, "serveme_pool_queue_depth", pool.getQueue().size());
+		}
+		out.append("# TYPE serveme_responses_total counter\n");
+		for (HttpResponseCodes code : HttpResponseCodes.values()) {
+			out.append("serveme_responses_total{code=\"")
+					.append(code.getCode()).append("\"} ")
+					.append(responses[code.ordinal()].sum()).append('\n');
+		}
+		counter(out, "serveme_sent_bytes_total", bytesSent.sum());
+		if (accessLog != null) {
+			counter(out, "serveme_access_log_dropped_total",
+					accessLog.getDropped());
+		}
+		parseTime.appendPrometheus(out, "serveme_parse_seconds",
+				parseTime.snapshot());
+		lookupTime.appendPrometheus(out, "serveme_lookup_seconds",
+				lookupTime.snapshot());
+		writeTime.appendPrometheus(out, "serveme_write_seconds",
+				writeTime.snapshot());
+		gauge(out, "serveme_uptime_seconds",
+				(System.currentTimeMillis() - startTime) / 1000);
+		return out.toString();
+	}
+
+	/**
+	 * Renders the metrics as a JSON object. Durations are summarized by
+	 * their percentiles, in microseconds.
+	 */
+	public String toJson() {
+		StringBuilder out = new StringBuilder(1024);
+		out.append("{\"uptimeSeconds\":")
+				.append((System.currentTimeMillis() - startTime) / 1000);
+		out.append(",\"connections\":{\"accepted\":")
+				.append(acceptedConnections.sum()).append(",\"active\":")
+				.append(activeConnections()).append(",\"refused\":")
+				.append(refusedConnections.sum()).append(",\"timedOut\":")
+				.append(timedOutConnections.sum());
+		if (connections != null) {
+			int[] counts = connections.countByState();
+			for (ConnectionRegistry.State state : ConnectionRegistry.State
+					.values()) {
+				out.append(",\"").append(state.name().toLowerCase())
+						.append("\":").append(counts[state.ordinal()]);
+			}
+		}
+		out.append('}');
+		ThreadPoolExecutor pool = pool();
+		if (pool != null) {
+			out.append(",\"pool\":{\"threads\":").append(pool.getPoolSize())
+					.append(",\"activeThreads\":")
+					.append(pool.getActiveCount()).append(",\"queueDepth\":")
+					.append(pool.getQueue().size()).append('}');
+		}
+		out.append(",\"responses\":{");
+		for (HttpResponseCodes code : HttpResponseCodes.values()) {
+			if (code.ordinal() > 0) {
+				out.append(',');
+			}
+			out.append('"').append(code.getCode()).append("\":")
+					.append(responses[code.ordinal()].sum());
+		}
+		out.append("},\"bytesSent\":").append(bytesSent.sum());
+		if (accessLog != null) {
+			out.append(",\"accessLogDropped\":").append(accessLog.getDropped());
+		}
+		json(out, "parse", parseTime);
+		json(out, "lookup", lookupTime);
+		json(out, "write", writeTime);
+		out.append('}');
+		return out.toString();
+	}
+
+	private long activeConnections() {
+		return acceptedConnections.sum() - closedConnections.sum();
+	}
+
+	private ThreadPoolExecutor pool() {
+		return executor instanceof ThreadPoolExecutor ? (ThreadPoolExecutor) executor
+				: null;
+	}
+
+	private static void counter(StringBuilder out, String name, long value) {
+		out.append("# TYPE ").append(name).append(" counter\n");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void gauge(StringBuilder out, String name, long value) {
+		out.append("# TYPE ").append(name).append(" gauge\n");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void json(StringBuilder out, String name,
+			LatencyHistogram histogram) {
+		long[] snapshot = histogram.snapshot();
+		// a percentile is the upper bound of its bucket, never above the max
+		long max = histogram.getMax() / 1000;
+		out.append(",\"").append(name).append("Micros\":{\"count\":")
+				.append(LatencyHistogram.count(snapshot));
+		out.append(",\"p50\":").append(
+				Math.min(max, LatencyHistogram.percentile(snapshot, 50)));
+		out.append(",\"p90\":").append(
+				Math.min(max, LatencyHistogram.percentile(snapshot, 90)));
+		out.append(",\"p99\":").append(
+				Math.min(max, LatencyHistogram.percentile(snapshot, 99)));
+		out.append(",\"max\":").append(max).append('}');
+	}
+}
@@ -0,0 +1,248 @@
+package ro.dp.serveme.core.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A hashed timer wheel: runs tasks after a delay, with the precision of a
+ * tick.<br>
+ * The wheel is a ring of slots, each one holding the timeouts that expire on
+ * the ticks that map to it. A thread of its own advances the wheel one slot
+ * per tick and runs the expired tasks of the slot, so scheduling and
+ * cancelling are constant time whatever the number of timeouts. The slots
+ * are only touched by the wheel thread: the other threads hand their
+ * schedules and cancellations over through lock-free queues, drained on
+ * every tick. The tasks run on the wheel thread and must be short.
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+public class TimerWheel implements Runnable {
+
+	private static Logger log = Logger.getLogger(TimerWheel.class);
+
+	/**
+	 * A scheduled task.
+	 */
+	public class Timeout {
+
+		private Runnable task;
+
+		/**
+		 * The tick on which the task runs.
+		 */
+		private long deadline;
+
+		private volatile boolean cancelled = false;
+
+		/**
+		 * The neighbours in the slot, while the timeout is in one.
+		 */
+		private Timeout previous;
+		private Timeout next;
+		private int slot = -1;
+
+		Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the task, unless it already ran.
+		 */
+		public void cancel() {
+			if (!cancelled) {
+				cancelled = true;
+				cancellations.add(this);
+			}
+		}
+	}
+
+	/**
+	 * The duration of a tick, in milliseconds.
+	 */
+	private long tickDuration;
+
+	/**
+	 * The heads of the lists of timeouts of the slots.
+	 */
+	private Timeout[] slots;
+
+	/**
+	 * The timeouts scheduled or cancelled since the last tick.
+	 */
+	private Queue<Timeout> schedules = new ConcurrentLinkedQueue<Timeout>();
+	private Queue<Timeout> cancellations = new ConcurrentLinkedQueue<Timeout>();
+
+	/**
+	 * The time the wheel started, in milliseconds.
+	 */
+	private long startTime;
+
+	/**
+	 * The number of ticks elapsed.
+	 */
+	private volatile long tick = 0;
+
+	private volatile boolean running = false;
+
+	private Thread thread;
+
+	private String name;
+
+	/**
+	 * Constructs a timer wheel. The wheel is not started.
+	 *
+	 * @param name
+	 *            the name of the wheel thread
+	 * @param tickDuration
+	 *            the duration of a tick, in milliseconds
+	 * @param slotCount
+	 *            the number of slots; delays longer than a turn of the wheel
+	 *            stay in their slot for several turns
+	 */
+	public TimerWheel(String name, long tickDuration, int slotCount) {
+		this.name = name;
+		this.tickDuration = Math.max(1, tickDuration);
+		this.slots = new Timeout[Math.max(1, slotCount)];
+	}
+
+	/**
+	 * Starts the wheel thread.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		startTime = System.currentTimeMillis();
+		running = true;
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the wheel thread. The pending tasks do not run.
+	 */
+	public synchronized void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Schedules a task.
+	 *
+	 * @param task
+	 *            the task, run on the wheel thread
+	 * @param delay
+	 *            the delay, in milliseconds
+	 * @return the timeout, which can be cancelled
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		// the wheel may be a tick late, the task is never early
+		long ticks = Math.max(1, (delay + tickDuration - 1) / tickDuration);
+		Timeout timeout = new Timeout(task, elapsedTicks() + ticks);
+		schedules.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Returns the number of ticks elapsed since the start, from the clock.
+	 */
+	private long elapsedTicks() {
+		return running ? (System.currentTimeMillis() - startTime)
+				/ tickDuration : tick;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		while (running) {
+			long next = startTime + (tick + 1) * tickDuration;
+			long sleep = next - System.currentTimeMillis();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException e) {
+					continue;
+				}
+			}
+			tick++;
+			drainCancellations();
+			drainSchedules();
+			expire();
+		}
+	}
+
+	private void drainCancellations() {
+		Timeout timeout;
+		while ((timeout = cancellations.poll()) != null) {
+			unlink(timeout);
+		}
+	}
+
+	private void drainSchedules() {
+		Timeout timeout;
+		while ((timeout = schedules.poll()) != null) {
+			if (timeout.cancelled) {
+				continue;
+			}
+			// a timeout scheduled on the tick being processed expires now
+			int slot = (int) (Math.max(timeout.deadline, tick) % slots.length);
+			timeout.slot = slot;
+			timeout.next = slots[slot];
+			if (slots[slot] != null) {
+				slots[slot].previous = timeout;
+			}
+			slots[slot] = timeout;
+		}
+	}
+
+	/**
+	 * Runs the expired tasks of the current slot.
+	 */
+	private void expire() {
+		Timeout timeout = slots[(int) (tick % slots.length)];
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.deadline <= tick) {
+				unlink(timeout);
+				if (!timeout.cancelled) {
+					timeout.cancelled = true;
+					try {
+						timeout.task.run();
+					} catch (Exception e) {
+						log.error(e.getMessage(), e);
+					}
+				}
+			}
+			timeout = next;
+		}
+	}
+
+	/**
+	 * Removes a timeout from its slot.
+	 */
+	private void unlink(Timeout timeout) {
+		if (timeout.slot == -1) {
+			return;
+		}
+		if (timeout.previous != null) {
+			timeout.previous.next = timeout.next;
+		} else {
+			slots[timeout.slot] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.previous = timeout.previous;
+		}
+		timeout.previous = null;
+		timeout.next = null;
+		timeout.slot = -1;
+	}
+}
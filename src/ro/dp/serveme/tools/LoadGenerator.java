@@ -0,0 +1,542 @@
+package ro.dp.serveme.tools;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ro.dp.serveme.core.utils.LatencyHistogram;
+
+/**
+ * A load generator that replays a corpus of requests against a running
+ * server and reports the throughput and the latency percentiles.<br>
+ * Each connection is driven by a thread of its own, in one of two modes:
+ * <ul>
+ * <li>closed loop (the default): every connection sends its next request as
+ * soon as the previous response arrived, so the load adapts to the server;</li>
+ * <li>open loop (<code>loadgen.rate</code> set): the requests are sent on a
+ * fixed schedule, whatever the server does. The latency of a request is
+ * measured from the time it was scheduled, not from the time it could be
+ * sent, so the time requests spend waiting behind a slow response is
+ * counted (the "coordinated omission" correction). The time from sending to
+ * receiving is reported separately as the service time.</li>
+ * </ul>
+ * The corpus holds one request per line: a path (<code>/index.html</code>),
+ * a method and a path (<code>GET /index.html</code>), or a JSON object with a
+ * <code>uri</code> or <code>path</code> field. Empty lines and lines starting
+ * with <code>#</code> are skipped. Without a corpus <code>/</code> is
+ * requested.<br>
+ * Usage:
+ * <code>LoadGenerator host:port [corpus]</code>, configured with the
+ * <code>loadgen.*</code> system properties (see the constants).
+ *
+ * @author Daniel Platon (dplaton@gmail.com)
+ */
+public class LoadGenerator {
+
+	/**
+	 * System property holding the number of concurrent connections (default
+	 * 10).
+	 */
+	public static final String CONNECTIONS_PROPERTY = "loadgen.connections";
+
+	/**
+	 * System property holding the duration of the measurement, in seconds
+	 * (default 30).
+	 */
+	public static final String DURATION_PROPERTY = "loadgen.duration";
+
+	/**
+	 * System property holding the duration of the warm-up, in seconds
+	 * (default 5). Nothing is recorded during the warm-up.
+	 */
+	public static final String WARMUP_PROPERTY = "loadgen.warmup";
+
+	/**
+	 * System property holding the total request rate, in requests per second.
+	 * 0 (the default) selects the closed loop mode.
+	 */
+	public static final String RATE_PROPERTY = "loadgen.rate";
+
+	/**
+	 * System property selecting whether the connections are reused for
+	 * several requests (default <code>true</code>).
+	 */
+	public static final String KEEP_ALIVE_PROPERTY = "loadgen.keepAlive";
+
+	/**
+	 * System property holding the socket timeout, in seconds (default 30).
+	 */
+	public static final String TIMEOUT_PROPERTY = "loadgen.timeout";
+
+	private static Charset ASCII = Charset.forName("ISO-8859-1");
+
+	private static Pattern JSON_URI = Pattern
+			.compile("\"(?:uri|path)\"\\s*:\\s*\"([^\"]*)\"");
+
+	private static Pattern REQUEST_LINE = Pattern
+			.compile("([A-Z]+)\\s+(\\S+)");
+
+	private String host;
+
+	private int port;
+
+	/**
+	 * The serialized requests of the corpus.
+	 */
+	private List<byte[]> requests;
+
+	private int connections;
+
+	private double rate;
+
+	private boolean keepAlive;
+
+	private int timeout;
+
+	/**
+	 * The latency (from the scheduled time in the open loop mode) and the
+	 * service time (from the time the request was sent) of the requests.
+	 */
+	private LatencyHistogram latency = new LatencyHistogram();
+	private LatencyHistogram serviceTime = new LatencyHistogram();
+
+	private LongAdder bytesReceived = new LongAdder();
+
+	private LongAdder connects = new LongAdder();
+
+	/**
+	 * The number of responses by status code, and of errors by kind.
+	 */
+	private Map<String, LongAdder> outcomes = new TreeMap<String, LongAdder>();
+
+	/**
+	 * The window in which the requests are recorded, in
+	 * {@link System#nanoTime()} units.
+	 */
+	private volatile long recordFrom;
+	private volatile long recordUntil;
+
+	public LoadGenerator(String host, int port, List<byte[]> requests,
+			int connections, double rate, boolean keepAlive, int timeout) {
+		this.host = host;
+		this.port = port;
+		this.requests = requests;
+		this.connections = connections;
+		this.rate = rate;
+		this.keepAlive = keepAlive;
+		this.timeout = timeout;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1 || args[0].indexOf(':') == -1) {
+			System.err.println("Usage: LoadGenerator host:port [corpus]");
+			System.exit(1);
+		}
+		String[] hp = args[0].split(":");
+		int connections = Math.max(1, Integer.getInteger(CONNECTIONS_PROPERTY,
+				10));
+		double rate = Double.parseDouble(System.getProperty(RATE_PROPERTY,
+				"0"));
+		boolean keepAlive = Boolean.parseBoolean(System.getProperty(
+				KEEP_ALIVE_PROPERTY, "true"));
+		List<byte[]> requests = loadCorpus(args.length > 1 ? args[1] : null,
+				hp[0], keepAlive);
+		LoadGenerator generator = new LoadGenerator(hp[0],
+				Integer.parseInt(hp[1]), requests, connections, rate,
+				keepAlive, Integer.getInteger(TIMEOUT_PROPERTY, 30) * 1000);
+		int duration = Math.max(1, Integer.getInteger(DURATION_PROPERTY, 30));
+		generator.run(Integer.getInteger(WARMUP_PROPERTY, 5), duration);
+		System.out.print(generator.report(duration));
+	}
+
+	/**
+	 * Reads the corpus and serializes its requests.
+	 *
+	 * @param corpus
+	 *            the corpus file, or <code>null</code> to request
+	 *            <code>/</code>
+	 * @param host
+	 *            the value of the <code>Host</code> header
+	 * @param keepAlive
+	 *            whether the connections are reused
+	 */
+	static List<byte[]> loadCorpus(String corpus, String host,
+			boolean keepAlive) throws IOException {
+		List<byte[]> requests = new ArrayList<byte[]>();
+		if (corpus != null) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(corpus), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					line = line.trim();
+					if (line.length() == 0 || line.startsWith("#")) {
+						continue;
+					}
+					String method = "GET";
+					String uri = null;
+					Matcher json = JSON_URI.matcher(line);
+					Matcher requestLine = REQUEST_LINE.matcher(line);
+					if (line.startsWith("{")) {
+						if (json.find()) {
+							uri = json.group(1);
+						}
+					} else if (line.startsWith("/")) {
+						uri = line.split("\\s+")[0];
+					} else if (requestLine.lookingAt()) {
+						method = requestLine.group(1);
+						uri = requestLine.group(2);
+					}
+					if (uri != null && uri.startsWith("/")) {
+						requests.add(request(method, uri, host, keepAlive));
+					}
+				}
+			} finally {
+				reader.close();
+			}
+			if (requests.isEmpty()) {
+				throw new IOException("No requests found in " + corpus);
+			}
+		} else {
+			requests.add(request("GET", "/", host, keepAlive));
+		}
+		return requests;
+	}
+
+	private static byte[] request(String method, String uri, String host,
+			boolean keepAlive) {
+		return (method + " " + uri + " HTTP/1.1\r\nHost: " + host
+				+ "\r\nUser-Agent: ServeMe-LoadGenerator\r\n"
+				+ (keepAlive ? "" : "Connection: close\r\n") + "\r\n")
+				.getBytes(ASCII);
+	}
+
+	/**
+	 * Runs the load: the warm-up, then the measurement.
+	 *
+	 * @param warmup
+	 *            the duration of the warm-up, in seconds
+	 * @param duration
+	 *            the duration of the measurement, in seconds
+	 */
+	public void run(int warmup, int duration) throws InterruptedException {
+		long start = System.nanoTime();
+		recordFrom = start + warmup * 1000000000L;
+		recordUntil = recordFrom + duration * 1000000000L;
+		final CountDownLatch done = new CountDownLatch(connections);
+		for (int idx = 0; idx < connections; idx++) {
+			final int worker = idx;
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						drive(worker);
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "LoadGenerator-" + idx);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		done.await();
+	}
+
+	/**
+	 * Sends the requests of one connection until the end of the measurement.
+	 * The workers start at different positions in the corpus.
+	 */
+	private void drive(int worker) {
+		// in the open loop mode, the connections share the rate evenly and
+		// are shifted so that they do not send at the same time
+		long interval = rate > 0 ? (long) (1e9 * connections / rate) : 0;
+		long scheduled = System.nanoTime() + interval * worker / connections;
+		int next = worker % requests.size();
+		Connection connection = null;
+		while (true) {
+			long now = System.nanoTime();
+			if (interval > 0) {
+				while (now < scheduled) {
+					LockSupport.parkNanos(scheduled - now);
+					now = System.nanoTime();
+				}
+			} else {
+				scheduled = now;
+			}
+			if (now - recordUntil >= 0) {
+				break;
+			}
+			byte[] request = requests.get(next);
+			next = (next + 1) % requests.size();
+			try {
+				if (connection == null) {
+					connection = new Connection();
+				}
+				int status = connection.exchange(request);
+				long end = System.nanoTime();
+				record(scheduled, now, end, Integer.toString(status));
+				if (!keepAlive || connection.closed) {
+					connection.close();
+					connection = null;
+				}
+			} catch (IOException e) {
+				record(scheduled, now, System.nanoTime(), "error: "
+						+ e.getClass().getSimpleName());
+				if (connection != null) {
+					connection.close();
+					connection = null;
+				}
+			}
+			scheduled += interval;
+		}
+		if (connection != null) {
+			connection.close();
+		}
+	}
+
+	private void record(long scheduled, long sent, long end, String outcome) {
+		if (scheduled - recordFrom < 0 || scheduled - recordUntil >= 0) {
+			return;
+		}
+		latency.record(end - scheduled);
+		serviceTime.record(end - sent);
+		LongAdder counter;
+		synchronized (outcomes) {
+			counter = outcomes.get(outcome);
+			if (counter == null) {
+				counter = new LongAdder();
+				outcomes.put(outcome, counter);
+			}
+		}
+		counter.increment();
+	}
+
+	/**
+	 * Renders the results of the measurement.
+	 *
+	 * @param duration
+	 *            the duration of the measurement, in seconds
+	 */
+	public String report(int duration) {
+		long[] latencies = latency.snapshot();
+		long count = LatencyHistogram.count(latencies);
+		StringBuilder out = new StringBuilder();
+		out.append("Target:       ").append(host).append(':').append(port)
+				.append(", ").append(requests.size())
+				.append(" distinct requests\n");
+		out.append("Mode:         ")
+				.append(rate > 0 ? "open loop, " + rate + " requests/s"
+						: "closed loop").append(", ").append(connections)
+				.append(" connections, ")
+				.append(keepAlive ? "persistent" : "one request per connection")
+				.append('\n');
+		out.append("Requests:     ").append(count).append(" in ")
+				.append(duration).append(" s (")
+				.append(String.format("%.1f", count / (double) duration))
+				.append(" requests/s), ").append(connects.sum())
+				.append(" connections opened\n");
+		out.append("Received:     ").append(bytesReceived.sum())
+				.append(" bytes\n");
+		out.append("Outcomes:    ");
+		synchronized (outcomes) {
+			for (Map.Entry<String, LongAdder> outcome : outcomes.entrySet()) {
+				out.append(' ').append(outcome.getKey()).append(" x")
+						.append(outcome.getValue().sum());
+			}
+		}
+		out.append('\n');
+		percentiles(out, rate > 0 ? "Latency (corrected for coordinated omission)"
+				: "Latency", latency, latencies);
+		if (rate > 0) {
+			percentiles(out, "Service time", serviceTime,
+					serviceTime.snapshot());
+		}
+		return out.toString();
+	}
+
+	private static void percentiles(StringBuilder out, String title,
+			LatencyHistogram histogram, long[] snapshot) {
+		long max = histogram.getMax() / 1000;
+		out.append(title).append(", in microseconds:\n");
+		double[] percentiles = { 50, 90, 99, 99.9, 99.99 };
+		for (double percentile : percentiles) {
+			out.append(String.format("  p%-6s %d%n",
+					(percentile == (long) percentile ? Long
+							.toString((long) percentile) : Double
+							.toString(percentile)), Math.min(max,
+							LatencyHistogram.percentile(snapshot, percentile))));
+		}
+		out.append(String.format("  max     %d%n", max));
+	}
+
+	/**
+	 * A connection to the server.
+	 */
+	private class Connection {
+
+		private Socket socket;
+
+		private InputStream in;
+
+		private OutputStream out;
+
+		private byte[] buffer = new byte[64 * 1024];
+
+		/**
+		 * The bytes of the buffer not consumed yet.
+		 */
+		private int start = 0;
+		private int end = 0;
+
+		/**
+		 * Whether the server closes the connection after the last response.
+		 */
+		private boolean closed = false;
+
+		Connection() throws IOException {
+			socket = new Socket();
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(timeout);
+			socket.connect(new InetSocketAddress(host, port), timeout);
+			in = socket.getInputStream();
+			out = socket.getOutputStream();
+			connects.increment();
+		}
+
+		/**
+		 * Sends a request and reads its response.
+		 *
+		 * @return the status code of the response
+		 */
+		int exchange(byte[] request) throws IOException {
+			out.write(request);
+			String statusLine = readLine();
+			String[] parts = statusLine.split(" ");
+			if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+				throw new IOException("Bad status line: " + statusLine);
+			}
+			int status = Integer.parseInt(parts[1]);
+			long length = -1;
+			boolean chunked = false;
+			String line;
+			while ((line = readLine()).length() > 0) {
+				int colon = line.indexOf(':');
+				if (colon == -1) {
+					continue;
+				}
+				String name = line.substring(0, colon).trim();
+				String value = line.substring(colon + 1).trim();
+				if (name.equalsIgnoreCase("Content-Length")) {
+					length = Long.parseLong(value);
+				} else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+					chunked = value.toLowerCase().contains("chunked");
+				} else if (name.equalsIgnoreCase("Connection")) {
+					closed = value.toLowerCase().contains("close");
+				}
+			}
+			if (chunked) {
+				long size;
+				while ((size = Long.parseLong(readLine().split(";")[0].trim(),
+						16)) > 0) {
+					skip(size);
+					readLine();
+				}
+				// the trailers
+				while (readLine().length() > 0) {
+				}
+			} else if (length >= 0) {
+				skip(length);
+			} else if (status != 204 && status != 304) {
+				// the body ends with the connection
+				while (fill()) {
+					skip(end - start);
+				}
+				closed = true;
+			}
+			return status;
+		}
+
+		/**
+		 * Reads a line ending with CRLF, without the line end.
+		 */
+		private String readLine() throws IOException {
+			int pos = start;
+			while (true) {
+				for (; pos < end; pos++) {
+					if (buffer[pos] == '\n') {
+						int lineEnd = pos > start && buffer[pos - 1] == '\r' ? pos - 1
+								: pos;
+						String line = new String(buffer, start, lineEnd - start,
+								ASCII);
+						start = pos + 1;
+						return line;
+					}
+				}
+				int consumed = pos - start;
+				if (!fill()) {
+					throw new IOException("Connection closed by the server");
+				}
+				pos = start + consumed;
+			}
+		}
+
+		/**
+		 * Skips bytes of the body.
+		 */
+		private void skip(long count) throws IOException {
+			while (count > 0) {
+				if (start == end && !fill()) {
+					throw new IOException("Connection closed by the server");
+				}
+				int skipped = (int) Math.min(count, end - start);
+				start += skipped;
+				count -= skipped;
+			}
+		}
+
+		/**
+		 * Reads more bytes, keeping the unconsumed ones.
+		 *
+		 * @return <code>false</code> if the connection was closed
+		 */
+		private boolean fill() throws IOException {
+			if (start > 0) {
+				System.arraycopy(buffer, start, buffer, 0, end - start);
+				end -= start;
+				start = 0;
+			}
+			if (end == buffer.length) {
+				throw new IOException("Response header too large");
+			}
+			int read = in.read(buffer, end, buffer.length - end);
+			if (read < 0) {
+				return false;
+			}
+			end += read;
+			bytesReceived.add(read);
+			return true;
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+}